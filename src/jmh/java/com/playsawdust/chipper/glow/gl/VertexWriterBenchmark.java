@@ -0,0 +1,148 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.gl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Vector2d;
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.playsawdust.chipper.glow.model.Face;
+import com.playsawdust.chipper.glow.model.Material;
+import com.playsawdust.chipper.glow.model.MaterialAttribute;
+import com.playsawdust.chipper.glow.model.Mesh;
+import com.playsawdust.chipper.glow.model.Vertex;
+
+/**
+ * Compares {@link MeshFlattener#writeVertex(Vertex, Material, VertexBuffer.Layout, List, ByteBuffer)}, which looks up each attribute's writer
+ * for every vertex, against a {@link VertexWriter} built once for the layout. Both write the same mesh in the same layout as RenderScheduler's
+ * solid pass, into the same buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VertexWriterBenchmark {
+	@Param({ "4096" })
+	public int faceCount;
+	
+	/** Direct native-order buffers take VertexWriter's raw-store path; heap buffers go through ByteBuffer puts like writeVertex does */
+	@Param({ "true", "false" })
+	public boolean direct;
+	
+	private VertexBuffer.Layout layout;
+	private List<MaterialAttribute<?>> attributes;
+	private VertexWriter writer;
+	private Material material;
+	private Vertex[] vertices;
+	private ByteBuffer buffer;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		layout = new VertexBuffer.Layout();
+		layout.addVertexAttribute(VertexBuffer.Layout.Entry
+				.forAttribute(MaterialAttribute.POSITION)
+				.named("position")
+				.withLayout(GL20.GL_FLOAT, 3)
+				.nonNormalized()
+				.withWriter(BufferWriter.WRITE_VEC3_TO_FLOATS));
+		layout.addVertexAttribute(VertexBuffer.Layout.Entry
+				.forAttribute(MaterialAttribute.NORMAL)
+				.named("normal")
+				.withLayout(GL20.GL_FLOAT, 3)
+				.nonNormalized()
+				.withWriter(BufferWriter.WRITE_VEC3_TO_FLOATS));
+		layout.addVertexAttribute(VertexBuffer.Layout.Entry
+				.forAttribute(MaterialAttribute.UV)
+				.named("uv")
+				.withLayout(GL20.GL_FLOAT, 2)
+				.nonNormalized()
+				.withWriter(BufferWriter.WRITE_VEC2_TO_FLOATS));
+		attributes = layout.getAttributes();
+		writer = new VertexWriter(layout);
+		
+		//A fixed seed, so every run and both benchmarks see the same mesh
+		Random random = new Random(1L);
+		Mesh mesh = new Mesh();
+		mesh.setMaterial(Material.BLANK);
+		for(int i=0; i<faceCount; i++) {
+			Vector3dc normal = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+			mesh.addFace(new Face(
+					vertex(random, normal),
+					vertex(random, normal),
+					vertex(random, normal)));
+		}
+		material = mesh.getMaterial();
+		
+		ArrayList<Vertex> flattened = new ArrayList<>();
+		for(Face face : mesh.faces()) {
+			for(Vertex v : face) flattened.add(v);
+		}
+		vertices = flattened.toArray(new Vertex[flattened.size()]);
+		
+		int size = vertices.length * layout.getByteCount();
+		buffer = (direct) ? MemoryUtil.memAlloc(size) : ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (direct) MemoryUtil.memFree(buffer);
+		buffer = null;
+	}
+	
+	@Benchmark
+	public ByteBuffer writeVertex() {
+		buffer.clear();
+		for(Vertex v : vertices) {
+			MeshFlattener.writeVertex(v, material, layout, attributes, buffer);
+		}
+		return buffer;
+	}
+	
+	@Benchmark
+	public ByteBuffer vertexWriter() {
+		buffer.clear();
+		for(Vertex v : vertices) {
+			writer.write(v, material, buffer);
+		}
+		return buffer;
+	}
+	
+	private static Vertex vertex(Random random, Vector3dc normal) {
+		Vertex result = new Vertex(
+				new Vector3d(random.nextDouble()*64, random.nextDouble()*64, random.nextDouble()*64),
+				new Vector2d(random.nextDouble(), random.nextDouble()));
+		result.putMaterialAttribute(MaterialAttribute.NORMAL, normal);
+		return result;
+	}
+}
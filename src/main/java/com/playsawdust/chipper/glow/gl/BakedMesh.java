@@ -20,11 +20,17 @@ import com.playsawdust.chipper.glow.util.AbstractGPUResource;
 public class BakedMesh extends AbstractGPUResource {
 	private Material material;
 	private VertexBuffer mesh;
+	private @Nullable IndexBuffer indices;
 	private @Nullable RenderPass renderPass;
 	
 	public BakedMesh(Material material, VertexBuffer mesh, @Nullable RenderPass pass) {
+		this(material, mesh, null, pass);
+	}
+	
+	public BakedMesh(Material material, VertexBuffer mesh, @Nullable IndexBuffer indices, @Nullable RenderPass pass) {
 		this.material = material;
 		this.mesh = mesh;
+		this.indices = indices;
 		this.renderPass = pass;
 	}
 	
@@ -44,12 +50,24 @@ public class BakedMesh extends AbstractGPUResource {
 		return mesh;
 	}
 	
+	/**
+	 * Gets the indices this Mesh is drawn with
+	 * @return the IndexBuffer for this mesh, or null if its VertexBuffer is drawn in order as plain triangles
+	 */
+	public @Nullable IndexBuffer getIndexBuffer() {
+		return indices;
+	}
+	
 	/**
 	 * Asks the VertexBuffer referenced by this mesh to draw itself. Does not set material parameters or position!
 	 * @param program The currently bound ShaderProgram
 	 */
 	public void paint(ShaderProgram program) {
-		mesh.draw(program);
+		if (indices!=null) {
+			indices.draw(program, mesh);
+		} else {
+			mesh.draw(program);
+		}
 	}
 	
 	/**
@@ -69,5 +87,7 @@ public class BakedMesh extends AbstractGPUResource {
 	protected void _free() {
 		if (mesh!=null) mesh.free();
 		mesh = null;
+		if (indices!=null) indices.free();
+		indices = null;
 	}
 }
\ No newline at end of file
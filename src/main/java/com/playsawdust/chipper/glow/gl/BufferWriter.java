@@ -10,6 +10,7 @@
 package com.playsawdust.chipper.glow.gl;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import org.joml.Vector2dc;
 import org.joml.Vector3dc;
@@ -33,33 +34,88 @@ public interface BufferWriter<T> {
 	}
 	
 	public static BufferWriter<Vector3dc> makeVec3Writer(BufferWriter<Double> writer) {
-		return (buf, vec) -> {
-			writer.write(buf, vec.x());
-			writer.write(buf, vec.y());
-			writer.write(buf, vec.z());
-		};
+		return new Vec3Writer(DoubleWriter.of(writer));
 	}
 	
 	public static BufferWriter<Vector2dc> makeVec2Writer(BufferWriter<Double> writer) {
-		return (buf, vec) -> {
-			writer.write(buf, vec.x());
-			writer.write(buf, vec.y());
-		};
+		return new Vec2Writer(DoubleWriter.of(writer));
 	}
 	
+	/** A BufferWriter for scalars which can also take a primitive double, so callers that already have one don't need to box it */
+	@FunctionalInterface
+	public interface DoubleWriter extends BufferWriter<Double> {
+		public void writeDouble(ByteBuffer buf, double data);
+		
+		@Override
+		public default void write(ByteBuffer buf, Double data) {
+			writeDouble(buf, data.doubleValue());
+		}
+		
+		/** Returns the writer itself if it's already a DoubleWriter, or wraps it in one which boxes each value on its way through */
+		public static DoubleWriter of(BufferWriter<Double> writer) {
+			if (writer instanceof DoubleWriter) return (DoubleWriter) writer;
+			return (buf, data) -> writer.write(buf, data);
+		}
+	}
+	
+	/** A BufferWriter for ints which can also take a primitive int */
+	@FunctionalInterface
+	public interface IntWriter extends BufferWriter<Integer> {
+		public void writeInt(ByteBuffer buf, int data);
+		
+		@Override
+		public default void write(ByteBuffer buf, Integer data) {
+			writeInt(buf, data.intValue());
+		}
+	}
+	
+	/** Writes each component of a vector with a DoubleWriter. VertexWriter looks inside these to pick a faster path for known components. */
+	public static final class Vec3Writer implements BufferWriter<Vector3dc> {
+		private final DoubleWriter component;
+		
+		public Vec3Writer(DoubleWriter component) {
+			this.component = component;
+		}
+		
+		public DoubleWriter getComponentWriter() {
+			return component;
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, Vector3dc vec) {
+			component.writeDouble(buf, vec.x());
+			component.writeDouble(buf, vec.y());
+			component.writeDouble(buf, vec.z());
+		}
+	}
 	
-	public static BufferWriter<Integer> WRITE_INT_TO_INT = (buf, it) -> {
-		buf.put((byte) ((it >> 24) & 0xFF));
-		buf.put((byte) ((it >> 16) & 0xFF));
-		buf.put((byte) ((it >>  8) & 0xFF));
-		buf.put((byte) ((it >>  0) & 0xFF));
+	/** Writes each component of a vector with a DoubleWriter. VertexWriter looks inside these to pick a faster path for known components. */
+	public static final class Vec2Writer implements BufferWriter<Vector2dc> {
+		private final DoubleWriter component;
+		
+		public Vec2Writer(DoubleWriter component) {
+			this.component = component;
+		}
+		
+		public DoubleWriter getComponentWriter() {
+			return component;
+		}
 		
-		//buf.putInt(it);
+		@Override
+		public void write(ByteBuffer buf, Vector2dc vec) {
+			component.writeDouble(buf, vec.x());
+			component.writeDouble(buf, vec.y());
+		}
+	}
+	
+	/** Writes the int's bytes most-significant first whatever the buffer's byte order, so an ARGB color lands as A, R, G, B */
+	public static IntWriter WRITE_INT_TO_INT = (buf, it) -> {
+		buf.putInt((buf.order()==ByteOrder.BIG_ENDIAN) ? it : Integer.reverseBytes(it));
 	};
 	
 	
 	
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_HALF_FLOAT = (buf, it)->{
+	public static DoubleWriter WRITE_DOUBLE_TO_HALF_FLOAT = (buf, it)->{
 		int FP16_SIGN_SHIFT = 15;
 		int FP16_EXPONENT_SHIFT = 10;
 		int FP16_EXPONENT_BIAS = 15;
@@ -69,7 +125,7 @@ public interface BufferWriter<T> {
 		int FP32_SIGNIFICAND_MASK = 0x7fffff;
 		int FP32_EXPONENT_BIAS = 127;
 		
-		int bits = Float.floatToRawIntBits((float)it.doubleValue());
+		int bits = Float.floatToRawIntBits((float)it);
 		int s = (bits >>> FP32_SIGN_SHIFT);
 		int e = (bits >>> FP32_EXPONENT_SHIFT) & FP32_EXPONENT_MASK;
 		int m = (bits) & FP32_SIGNIFICAND_MASK;
@@ -139,27 +195,27 @@ public interface BufferWriter<T> {
 	 * </code>
 	 */
 	
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_BYTE_NORMALIZED = (buf, it)->{
-		double d = it.doubleValue()*Byte.MAX_VALUE;
+	public static DoubleWriter WRITE_DOUBLE_TO_BYTE_NORMALIZED = (buf, it)->{
+		double d = it*Byte.MAX_VALUE;
 		buf.put((byte)d);
 	};
 	
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_UBYTE_NORMALIZED = (buf, it)->{
+	public static DoubleWriter WRITE_DOUBLE_TO_UBYTE_NORMALIZED = (buf, it)->{
 		buf.putShort((short)(it*UBYTE_MAX));
 	};
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_SHORT_NORMALIZED = (buf, it)->{
-		double d = it.doubleValue()*Short.MAX_VALUE;
+	public static DoubleWriter WRITE_DOUBLE_TO_SHORT_NORMALIZED = (buf, it)->{
+		double d = it*Short.MAX_VALUE;
 		buf.putShort((short)d);
 	};
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_USHORT_NORMALIZED = (buf, it)->{
+	public static DoubleWriter WRITE_DOUBLE_TO_USHORT_NORMALIZED = (buf, it)->{
 		buf.putShort((short)(it*USHORT_MAX));
 	};
 	
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_BYTE = (buf, it)->{ buf.putInt((byte)it.intValue()); };
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_SHORT = (buf, it)->{ buf.putShort((short)it.intValue()); };
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_INT = (buf, it)->{ buf.putInt(it.intValue()); };
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_FLOAT = (buf, it)->{ buf.putFloat(it.floatValue()); };
-	public static BufferWriter<Double> WRITE_DOUBLE_TO_DOUBLE = (buf, it)->{ buf.putDouble(it); };
+	public static DoubleWriter WRITE_DOUBLE_TO_BYTE = (buf, it)->{ buf.putInt((byte)(int)it); };
+	public static DoubleWriter WRITE_DOUBLE_TO_SHORT = (buf, it)->{ buf.putShort((short)(int)it); };
+	public static DoubleWriter WRITE_DOUBLE_TO_INT = (buf, it)->{ buf.putInt((int)it); };
+	public static DoubleWriter WRITE_DOUBLE_TO_FLOAT = (buf, it)->{ buf.putFloat((float)it); };
+	public static DoubleWriter WRITE_DOUBLE_TO_DOUBLE = (buf, it)->{ buf.putDouble(it); };
 	
 	public static BufferWriter<Vector2dc> WRITE_VEC2_TO_HALF_FLOATS = makeVec2Writer(WRITE_DOUBLE_TO_HALF_FLOAT);
 	public static BufferWriter<Vector2dc> WRITE_VEC2_TO_FLOATS = makeVec2Writer(WRITE_DOUBLE_TO_FLOAT);
@@ -0,0 +1,65 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.gl;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+
+import com.playsawdust.chipper.glow.gl.shader.ShaderProgram;
+import com.playsawdust.chipper.glow.util.AbstractGPUResource;
+
+/**
+ * A GL_ELEMENT_ARRAY_BUFFER of triangle indices into a VertexBuffer
+ */
+public class IndexBuffer extends AbstractGPUResource {
+	private int handle = 0;
+	private int indexCount = 0;
+	private int glType = GL11.GL_UNSIGNED_INT;
+	
+	/** Uploads finished index data. The IndexBufferData is not freed. */
+	public IndexBuffer(IndexBufferData data) {
+		this.indexCount = data.indexCount();
+		this.glType = data.getGLType();
+		
+		handle = GL20.glGenBuffers();
+		GL20.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, handle);
+		GL20.glBufferData(GL20.GL_ELEMENT_ARRAY_BUFFER, data.buffer(), GL20.GL_STATIC_DRAW);
+		GL20.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+	
+	public int handle() {
+		return handle;
+	}
+	
+	public int getIndexCount() {
+		return indexCount;
+	}
+	
+	/** Gets the type of each index: GL_UNSIGNED_SHORT or GL_UNSIGNED_INT */
+	public int getGLType() {
+		return glType;
+	}
+	
+	/** Draws the triangles these indices describe, pulling vertices from the given VertexBuffer */
+	public void draw(ShaderProgram prog, VertexBuffer vertices) {
+		GL20.glBindBuffer(GL20.GL_ARRAY_BUFFER, vertices.handle());
+		vertices.getLayout().bind(prog);
+		GL20.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, handle);
+		GL11.glDrawElements(GL11.GL_TRIANGLES, indexCount, glType, 0L);
+		GL20.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+	
+	@Override
+	public void _free() {
+		if (handle==0) return;
+		GL20.glDeleteBuffers(handle);
+		handle = 0;
+	}
+}
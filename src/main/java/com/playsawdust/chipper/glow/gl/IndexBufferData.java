@@ -0,0 +1,107 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.gl;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.system.MemoryUtil;
+
+import com.playsawdust.chipper.glow.util.AbstractOffheapResource;
+
+/**
+ * Clientside triangle indices for an indexed VertexBuffer. Indices are always written as 32-bit ints; {@link #endWriting(int)} then packs them
+ * down to 16 bits in place if every index fits, halving the upload.
+ */
+public class IndexBufferData extends AbstractOffheapResource {
+	private ByteBuffer buf;
+	private int numIndices = 0;
+	private int glType = GL11.GL_UNSIGNED_INT;
+	
+	@Override
+	public void _free() {
+		if (buf!=null) MemoryUtil.memFree(buf);
+		buf = null;
+		numIndices = 0;
+	}
+	
+	/** Makes room for at least {@code extra} more indices */
+	public void ensureCapacity(int extra) {
+		int bytes = extra*4;
+		if (buf==null) {
+			buf = MemoryUtil.memAlloc(Math.max(bytes, 1024));
+		}
+		
+		int remaining = buf.capacity()-buf.position();
+		if (bytes>remaining) {
+			int toRealloc = Math.max(buf.position()+bytes, buf.capacity()*3/2);
+			buf = MemoryUtil.memRealloc(buf, toRealloc);
+		}
+	}
+	
+	public void beginWriting() {
+		if (buf==null) buf = MemoryUtil.memAlloc(1024);
+		buf.clear();
+		numIndices = 0;
+		glType = GL11.GL_UNSIGNED_INT;
+	}
+	
+	/** Appends an index. Call {@link #ensureCapacity(int)} first. */
+	public void put(int index) {
+		buf.putInt(index);
+		numIndices++;
+	}
+	
+	/** Appends {@code count} indices from an array, adding {@code baseVertex} to each one. Makes room for them first. */
+	public void put(int[] indices, int count, int baseVertex) {
+		ensureCapacity(count);
+		if (baseVertex==0) {
+			buf.asIntBuffer().put(indices, 0, count);
+			buf.position(buf.position() + count*4);
+		} else {
+			for(int i=0; i<count; i++) buf.putInt(indices[i] + baseVertex);
+		}
+		numIndices += count;
+	}
+	
+	/**
+	 * Finishes writing to the buffer.
+	 * @param vertexCount the number of vertices the indices refer into. If it's 65536 or less, the indices are narrowed to GL_UNSIGNED_SHORT.
+	 */
+	public void endWriting(int vertexCount) {
+		if (buf==null) return;
+		if (vertexCount<=65536) {
+			//Each short lands at or before the int it came from, so this can be done front-to-back without clobbering anything
+			for(int i=0; i<numIndices; i++) {
+				buf.putShort(i*2, (short) buf.getInt(i*4));
+			}
+			buf.position(numIndices*2);
+			glType = GL11.GL_UNSIGNED_SHORT;
+		}
+		buf.flip();
+	}
+	
+	public ByteBuffer buffer() {
+		return buf;
+	}
+	
+	public int indexCount() {
+		return numIndices;
+	}
+	
+	/** Gets the type of the finished indices: GL_UNSIGNED_SHORT or GL_UNSIGNED_INT */
+	public int getGLType() {
+		return glType;
+	}
+	
+	public int getBytesPerIndex() {
+		return (glType==GL11.GL_UNSIGNED_SHORT) ? 2 : 4;
+	}
+}
@@ -10,18 +10,26 @@
 package com.playsawdust.chipper.glow.gl;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.lwjgl.system.MemoryUtil;
 
 import com.playsawdust.chipper.glow.model.Face;
+import com.playsawdust.chipper.glow.model.IndexedMesh;
 import com.playsawdust.chipper.glow.model.Material;
 import com.playsawdust.chipper.glow.model.MaterialAttribute;
 import com.playsawdust.chipper.glow.model.Mesh;
+import com.playsawdust.chipper.glow.model.PackedMesh;
 import com.playsawdust.chipper.glow.model.Vertex;
 
 public class MeshFlattener {
+	/** writeMeshParallel keeps splitting until each task has this many faces or fewer */
+	private static final int PARALLEL_FACES_PER_TASK = 2048;
+	
 	private VertexBuffer.Layout layout = new VertexBuffer.Layout();
 	
 	public VertexBuffer.Layout getLayout() { return layout; }
@@ -62,54 +70,233 @@ public class MeshFlattener {
 		int vertexCount = 0;
 		int bytesPerVertex = layout.getByteCount();
 		
-		List<MaterialAttribute<?>> attributes = layout.getAttributes();
+		VertexWriter writer = new VertexWriter(layout);
 		Material material = mesh.getMaterial();
 		for(Face face : mesh.faces()) {
-			if (face.vertexCount()==3) {
-				buf.ensureCapacity(bytesPerVertex*3);
-				for(Vertex v : face) {
-					writeVertex(v, material, layout, attributes, buf.buffer());
-					vertexCount++;
-				}
-			} else if (face.vertexCount()==4) {
-				buf.ensureCapacity(bytesPerVertex*6);
-				
-				//There's an easy tesselation for this
-				Iterator<Vertex> iterator = face.iterator();
-				Vertex a = iterator.next();
-				Vertex b = iterator.next();
-				Vertex c = iterator.next();
-				Vertex d = iterator.next();
-				
-				writeVertex(a, material, layout, attributes, buf.buffer());
-				writeVertex(b, material, layout, attributes, buf.buffer());
-				writeVertex(c, material, layout, attributes, buf.buffer());
-				
-				writeVertex(a, material, layout, attributes, buf.buffer());
-				writeVertex(c, material, layout, attributes, buf.buffer());
-				writeVertex(d, material, layout, attributes, buf.buffer());
+			buf.ensureCapacity(bytesPerVertex*flattenedVertexCount(face));
+			vertexCount += writeFace(face, material, writer, buf.buffer());
+		}
+		buf.numVertices += vertexCount;
+	}
+	
+	/**
+	 * Writes a flattened mesh into a clientside vertex buffer on the common ForkJoinPool. See
+	 * {@link #writeMeshParallel(VertexBufferData, Mesh, VertexBuffer.Layout, ForkJoinPool) the full version} for details.
+	 */
+	public static void writeMeshParallel(VertexBufferData buf, Mesh mesh, VertexBuffer.Layout layout) {
+		writeMeshParallel(buf, mesh, layout, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Writes a flattened mesh into a clientside vertex buffer, splitting the faces up between the threads of a ForkJoinPool. The output is
+	 * byte-for-byte the same as {@link #writeMesh(VertexBufferData, Mesh, VertexBuffer.Layout)}.
+	 * 
+	 * <p>Each face's output size is known up front, so a prefix sum over the faces gives every face its exact spot in the buffer. The buffer
+	 * is grown once to fit the whole mesh, and then each task writes its run of faces through its own view of the buffer, so no two threads
+	 * ever touch the same bytes. Faces with fewer than three vertices write nothing. The mesh must not be modified while this runs.
+	 * @param buf The buffer to write mesh data into
+	 * @param mesh The mesh to write
+	 * @param layout The layout of vertex attributes
+	 * @param pool The pool to write faces on
+	 */
+	public static void writeMeshParallel(VertexBufferData buf, Mesh mesh, VertexBuffer.Layout layout, ForkJoinPool pool) {
+		int faceCount = mesh.getFaceCount();
+		int bytesPerVertex = layout.getByteCount();
+		
+		//vertexOffsets[i] is the number of vertices written before face i, so vertexOffsets[faceCount] is the total
+		Face[] faces = new Face[faceCount];
+		int[] vertexOffsets = new int[faceCount+1];
+		for(int i=0; i<faceCount; i++) {
+			faces[i] = mesh.getFace(i);
+			vertexOffsets[i+1] = vertexOffsets[i] + flattenedVertexCount(faces[i]);
+		}
+		int total = vertexOffsets[faceCount];
+		if (total==0) return;
+		
+		buf.ensureCapacity(bytesPerVertex*total);
+		ByteBuffer buffer = buf.buffer();
+		int baseOffset = buffer.position();
+		VertexWriter writer = new VertexWriter(layout);
+		
+		if (faceCount<=PARALLEL_FACES_PER_TASK) {
+			new WriteFacesTask(faces, vertexOffsets, 0, faceCount, mesh.getMaterial(), writer, buffer, baseOffset).compute();
+		} else {
+			pool.invoke(new WriteFacesTask(faces, vertexOffsets, 0, faceCount, mesh.getMaterial(), writer, buffer, baseOffset));
+		}
+		
+		buffer.position(baseOffset + bytesPerVertex*total);
+		buf.numVertices += total;
+	}
+	
+	/** Gets the number of vertices a face flattens into: three for each triangle in its fan, or none if it isn't at least a triangle */
+	private static int flattenedVertexCount(Face face) {
+		int count = face.vertexCount();
+		return (count<3) ? 0 : (count-2)*3;
+	}
+	
+	/**
+	 * Writes one face as triangles, relative to the buffer's position. The caller must have made room for it.
+	 * @return the number of vertices written
+	 */
+	private static int writeFace(Face face, Material material, VertexWriter writer, ByteBuffer buffer) {
+		int count = face.vertexCount();
+		if (count<3) return 0;
+		
+		if (count==4) {
+			//There's an easy tesselation for this
+			Iterator<Vertex> iterator = face.iterator();
+			Vertex a = iterator.next();
+			Vertex b = iterator.next();
+			Vertex c = iterator.next();
+			Vertex d = iterator.next();
+			
+			writer.write(a, material, buffer);
+			writer.write(b, material, buffer);
+			writer.write(c, material, buffer);
+			
+			writer.write(a, material, buffer);
+			writer.write(c, material, buffer);
+			writer.write(d, material, buffer);
+			return 6;
+		} else {
+			//Triangle fan, triangle fan, does whatever triangles can. For a plain triangle this is just the one.
+			Iterator<Vertex> iterator = face.iterator();
+			Vertex a = iterator.next();
+			Vertex prev = iterator.next();
+			while(iterator.hasNext()) {
+				Vertex cur = iterator.next();
+				writer.write(a, material, buffer);
+				writer.write(prev, material, buffer);
+				writer.write(cur, material, buffer);
 				
-				vertexCount += 6;
-			} else {
-				buf.ensureCapacity(bytesPerVertex*(face.vertexCount()-2)*3);
-				//Triangle fan, triangle fan, does whatever triangles can
-				Iterator<Vertex> iterator = face.iterator();
-				Vertex a = iterator.next();
-				Vertex prev = iterator.next();
-				while(iterator.hasNext()) {
-					Vertex cur = iterator.next();
-					writeVertex(a, material, layout, attributes, buf.buffer());
-					writeVertex(prev, material, layout, attributes, buf.buffer());
-					writeVertex(cur, material, layout, attributes, buf.buffer());
-					
-					prev = cur;
-					vertexCount+=3;
+				prev = cur;
+			}
+			return (count-2)*3;
+		}
+	}
+	
+	/**
+	 * Writes a mesh as indexed triangles. Vertices are welded after they're flattened, so any two corners which would write the same bytes in
+	 * this layout share one vertex, even if they differ in attributes the layout doesn't use. Welding only happens within this one Mesh.
+	 * @param buf The buffer to write unique vertices into
+	 * @param indices The buffer to write triangle indices into. Indices count from the start of {@code buf}, so several meshes can share the buffers.
+	 * @param mesh The mesh to write
+	 * @param layout The layout of vertex attributes
+	 */
+	public static void writeIndexedMesh(VertexBufferData buf, IndexBufferData indices, Mesh mesh, VertexBuffer.Layout layout) {
+		int bytesPerVertex = layout.getByteCount();
+		VertexWriter writer = new VertexWriter(layout);
+		Material material = mesh.getMaterial();
+		
+		buf.ensureCapacity(bytesPerVertex*3);
+		VertexWelder welder = new VertexWelder(buf, bytesPerVertex, mesh.getFaceCount()*2);
+		for(Face face : mesh.faces()) {
+			int vertexCount = face.vertexCount();
+			if (vertexCount<3) continue;
+			buf.ensureCapacity(bytesPerVertex*vertexCount);
+			indices.ensureCapacity((vertexCount-2)*3);
+			
+			//Same triangle fan as writeMesh; for quads this is the same a,b,c a,c,d split
+			Iterator<Vertex> iterator = face.iterator();
+			int a = welder.weld(iterator.next(), material, writer);
+			int prev = welder.weld(iterator.next(), material, writer);
+			while(iterator.hasNext()) {
+				int cur = welder.weld(iterator.next(), material, writer);
+				indices.put(a);
+				indices.put(prev);
+				indices.put(cur);
+				prev = cur;
+			}
+		}
+	}
+	
+	/**
+	 * Writes an IndexedMesh's vertices and indices as-is, without any further welding
+	 * @param buf The buffer to write vertices into
+	 * @param indices The buffer to write triangle indices into. Indices count from the start of {@code buf}, so several meshes can share the buffers.
+	 * @param mesh The mesh to write
+	 * @param layout The layout of vertex attributes
+	 */
+	public static void writeIndexedMesh(VertexBufferData buf, IndexBufferData indices, IndexedMesh mesh, VertexBuffer.Layout layout) {
+		VertexWriter writer = new VertexWriter(layout);
+		Material material = mesh.getMaterial();
+		int baseVertex = buf.numVertices;
+		
+		buf.ensureCapacity(writer.getStride()*mesh.getVertexCount());
+		ByteBuffer buffer = buf.buffer();
+		for(int i=0; i<mesh.getVertexCount(); i++) {
+			writer.write(mesh.getVertex(i), material, buffer);
+		}
+		buf.numVertices += mesh.getVertexCount();
+		
+		int[] meshIndices = mesh.getIndices();
+		indices.ensureCapacity(mesh.getIndexCount());
+		for(int i=0; i<mesh.getIndexCount(); i++) {
+			indices.put(baseVertex + meshIndices[i]);
+		}
+	}
+	
+	/**
+	 * Writes a PackedMesh's vertices and indices. Attributes the mesh has a float column for, and which the layout writes as plain floats, are
+	 * copied straight out of the column; anything else goes through the layout's BufferWriter. Attributes the mesh has no column for come from
+	 * its Material, or from the attribute's default.
+	 * @param buf The buffer to write vertices into
+	 * @param indices The buffer to write triangle indices into. Indices count from the start of {@code buf}, so several meshes can share the buffers.
+	 * @param mesh The mesh to write
+	 * @param layout The layout of vertex attributes
+	 */
+	public static void writePackedMesh(VertexBufferData buf, IndexBufferData indices, PackedMesh mesh, VertexBuffer.Layout layout) {
+		List<MaterialAttribute<?>> attributes = layout.getAttributes();
+		int attributeCount = attributes.size();
+		Material material = mesh.getMaterial();
+		int baseVertex = buf.numVertices;
+		int vertexCount = mesh.getVertexCount();
+		
+		//Work out where each attribute comes from once, rather than once per vertex
+		float[][] floatColumns = new float[attributeCount][];
+		int[] components = new int[attributeCount];
+		boolean[] direct = new boolean[attributeCount];
+		Object[] constants = new Object[attributeCount];
+		BufferWriter<?>[] writers = new BufferWriter<?>[attributeCount];
+		for(int i=0; i<attributeCount; i++) {
+			MaterialAttribute<?> attribute = attributes.get(i);
+			writers[i] = layout.getWriterFor(attribute);
+			components[i] = mesh.getComponentCount(attribute);
+			floatColumns[i] = mesh.getFloatColumn(attribute);
+			if (floatColumns[i]!=null) {
+				BufferWriter<?> writer = writers[i];
+				direct[i] =
+						(components[i]==3 && writer==BufferWriter.WRITE_VEC3_TO_FLOATS) ||
+						(components[i]==2 && writer==BufferWriter.WRITE_VEC2_TO_FLOATS) ||
+						(components[i]==1 && writer==BufferWriter.WRITE_DOUBLE_TO_FLOAT);
+			} else if (!mesh.hasAttribute(attribute)) {
+				Object o = material.getMaterialAttribute(attribute);
+				if (o==null) o = attribute.getDefaultValue();
+				constants[i] = o;
+			}
+		}
+		
+		buf.ensureCapacity(layout.getByteCount()*vertexCount);
+		ByteBuffer buffer = buf.buffer();
+		for(int v=0; v<vertexCount; v++) {
+			for(int i=0; i<attributeCount; i++) {
+				if (direct[i]) {
+					float[] column = floatColumns[i];
+					int n = components[i];
+					for(int c=0; c<n; c++) buffer.putFloat(column[v*n + c]);
+				} else if (constants[i]!=null) {
+					writers[i].writeUnsafe(buffer, constants[i]);
+				} else {
+					writers[i].writeUnsafe(buffer, mesh.getAttribute(v, attributes.get(i)));
 				}
 			}
 		}
 		buf.numVertices += vertexCount;
+		
+		indices.put(mesh.getIndices(), mesh.getIndexCount(), baseVertex);
 	}
 	
+	/** Writes a single vertex by looking up each attribute's writer. To write many vertices in one layout, a {@link VertexWriter} is much faster. */
 	public static void writeVertex(Vertex v, Material material, VertexBuffer.Layout layout, List<MaterialAttribute<?>> attributes, ByteBuffer buffer) {
 		for(MaterialAttribute<?> attribute : attributes) {
 			if (buffer.remaining()<layout.getStride(attribute)) {
@@ -139,6 +326,117 @@ public class MeshFlattener {
 		return result;
 	}
 	
+	/**
+	 * Uploads a Mesh like {@link #bake(Mesh, VertexBuffer.Layout)}, but flattens it with
+	 * {@link #writeMeshParallel(VertexBufferData, Mesh, VertexBuffer.Layout) writeMeshParallel} first. Worthwhile for large meshes; the upload
+	 * itself still happens on the calling thread, which must own the GL context.
+	 * @param mesh The Mesh to upload
+	 * @param layout The layout of vertex attributes needed for the shader to understand the uploaded flattened Mesh
+	 * @return A BakedMesh which can then be scheduled to render the Mesh straight from the GPU without uploading it again.
+	 */
+	public static BakedMesh bakeParallel(Mesh mesh, VertexBuffer.Layout layout) {
+		VertexBufferData data = new VertexBufferData();
+		data.layout = layout;
+		
+		data.beginWriting();
+		{
+			writeMeshParallel(data, mesh, layout);
+		}
+		data.endWriting();
+		
+		VertexBuffer buf = new VertexBuffer(data.buffer(), layout, data.numVertices);
+		data.free();
+		return new BakedMesh(mesh.getMaterial(), buf, null);
+	}
+	
+	/**
+	 * Uploads a Mesh as welded, indexed triangles and packages it with material data. This usually takes much less GPU memory than
+	 * {@link #bake(Mesh, VertexBuffer.Layout)}, since corners shared between faces are only uploaded once.
+	 * @param mesh The Mesh to upload
+	 * @param layout The layout of vertex attributes needed for the shader to understand the uploaded flattened Mesh
+	 * @return A BakedMesh which draws its VertexBuffer through an IndexBuffer
+	 */
+	public static BakedMesh bakeIndexed(Mesh mesh, VertexBuffer.Layout layout) {
+		VertexBufferData vertices = new VertexBufferData();
+		vertices.layout = layout;
+		IndexBufferData indices = new IndexBufferData();
+		
+		vertices.beginWriting();
+		indices.beginWriting();
+		{
+			writeIndexedMesh(vertices, indices, mesh, layout);
+		}
+		vertices.endWriting();
+		indices.endWriting(vertices.vertexCount());
+		
+		return bake(mesh.getMaterial(), vertices, indices, layout);
+	}
+	
+	/**
+	 * Uploads an IndexedMesh and packages it with material data
+	 * @param mesh The IndexedMesh to upload
+	 * @param layout The layout of vertex attributes needed for the shader to understand the uploaded flattened Mesh
+	 * @return A BakedMesh which draws its VertexBuffer through an IndexBuffer
+	 */
+	public static BakedMesh bake(IndexedMesh mesh, VertexBuffer.Layout layout) {
+		VertexBufferData vertices = new VertexBufferData();
+		vertices.layout = layout;
+		IndexBufferData indices = new IndexBufferData();
+		
+		vertices.beginWriting();
+		indices.beginWriting();
+		{
+			writeIndexedMesh(vertices, indices, mesh, layout);
+		}
+		vertices.endWriting();
+		indices.endWriting(vertices.vertexCount());
+		
+		return bake(mesh.getMaterial(), vertices, indices, layout);
+	}
+	
+	/**
+	 * Uploads a PackedMesh and packages it with material data
+	 * @param mesh The PackedMesh to upload
+	 * @param layout The layout of vertex attributes needed for the shader to understand the uploaded flattened Mesh
+	 * @return A BakedMesh which draws its VertexBuffer through an IndexBuffer
+	 */
+	public static BakedMesh bake(PackedMesh mesh, VertexBuffer.Layout layout) {
+		VertexBufferData vertices = new VertexBufferData();
+		vertices.layout = layout;
+		IndexBufferData indices = new IndexBufferData();
+		
+		vertices.beginWriting();
+		indices.beginWriting();
+		{
+			writePackedMesh(vertices, indices, mesh, layout);
+		}
+		vertices.endWriting();
+		indices.endWriting(vertices.vertexCount());
+		
+		return bake(mesh.getMaterial(), vertices, indices, layout);
+	}
+	
+	private static BakedMesh bake(Material material, VertexBufferData vertices, IndexBufferData indices, VertexBuffer.Layout layout) {
+		VertexBuffer vertexBuffer = new VertexBuffer(vertices.buffer(), layout, vertices.vertexCount());
+		IndexBuffer indexBuffer = new IndexBuffer(indices);
+		vertices.free();
+		indices.free();
+		return new BakedMesh(material, vertexBuffer, indexBuffer, null);
+	}
+	
+	/**
+	 * Uploads vertex data which has already been flattened, for instance by {@link QuadWriter}, and packages it with a Material.
+	 * The VertexBufferData is not freed, so it can be reused for the next bake.
+	 * @param material The Material to render the data with
+	 * @param data Flattened vertices which have been finished with {@link VertexBufferData#endWriting()}
+	 * @param layout The layout the vertices were written in
+	 * @return A BakedMesh which can be scheduled to render the data straight from the GPU
+	 */
+	public static BakedMesh bake(Material material, VertexBufferData data, VertexBuffer.Layout layout) {
+		VertexBuffer buf = new VertexBuffer(data.buffer(), layout, data.vertexCount());
+		return new BakedMesh(material, buf, null);
+	}
+	
 	/**
 	 * Gets the exact size in bytes that the provided Mesh will take up if flattened, assuming that every mesh face is a triangle.
 	 * 
@@ -147,4 +445,130 @@ public class MeshFlattener {
 	public static int bufferSize(Mesh mesh, VertexBuffer.Layout layout) {
 		return layout.getByteCount()*mesh.getFaceCount()*4;
 	}
+	
+	/** Writes faces [start, end) at their precomputed offsets, splitting the range in half until it's small enough */
+	private static class WriteFacesTask extends RecursiveAction {
+		private static final long serialVersionUID = 5316422760419468823L;
+		
+		private final Face[] faces;
+		private final int[] vertexOffsets;
+		private final int start;
+		private final int end;
+		private final Material material;
+		private final VertexWriter writer;
+		private final ByteBuffer buffer;
+		private final int baseOffset;
+		
+		public WriteFacesTask(Face[] faces, int[] vertexOffsets, int start, int end, Material material, VertexWriter writer, ByteBuffer buffer, int baseOffset) {
+			this.faces = faces;
+			this.vertexOffsets = vertexOffsets;
+			this.start = start;
+			this.end = end;
+			this.material = material;
+			this.writer = writer;
+			this.buffer = buffer;
+			this.baseOffset = baseOffset;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end-start>PARALLEL_FACES_PER_TASK) {
+				int mid = (start+end) >>> 1;
+				invokeAll(
+						new WriteFacesTask(faces, vertexOffsets, start, mid, material, writer, buffer, baseOffset),
+						new WriteFacesTask(faces, vertexOffsets, mid,   end, material, writer, buffer, baseOffset));
+				return;
+			}
+			
+			//Each task gets its own position to write from. Duplicates always come back big-endian, so copy the order over too.
+			ByteBuffer view = buffer.duplicate().order(buffer.order());
+			view.limit(view.capacity());
+			view.position(baseOffset + vertexOffsets[start]*writer.getStride());
+			for(int i=start; i<end; i++) {
+				writeFace(faces[i], material, writer, view);
+			}
+		}
+	}
+	
+	/**
+	 * Dedupes flattened vertices as they're written. Each candidate vertex is written to the end of the buffer, then hashed and compared
+	 * against the vertices already written; if it's a repeat the buffer position is rewound over it.
+	 */
+	private static class VertexWelder {
+		private final VertexBufferData buf;
+		private final int stride;
+		private final int baseVertex;
+		private final int baseOffset;
+		/** Open-addressed table of local vertex number + 1, or 0 for an empty slot */
+		private int[] table;
+		private int[] hashes;
+		private int size = 0;
+		
+		public VertexWelder(VertexBufferData buf, int stride, int expected) {
+			this.buf = buf;
+			this.stride = stride;
+			this.baseVertex = buf.numVertices;
+			this.baseOffset = buf.buffer().position();
+			int capacity = 16;
+			while(capacity<expected*2) capacity <<= 1;
+			table = new int[capacity];
+			hashes = new int[Math.max(16, expected)];
+		}
+		
+		/** Writes the vertex if it's new, and returns its index in the buffer either way */
+		public int weld(Vertex v, Material material, VertexWriter writer) {
+			ByteBuffer buffer = buf.buffer();
+			int start = buffer.position();
+			writer.write(v, material, buffer);
+			int hash = hash(buffer, start);
+			
+			int mask = table.length-1;
+			int slot = hash & mask;
+			while(table[slot]!=0) {
+				int existing = table[slot]-1;
+				if (hashes[existing]==hash && matches(buffer, baseOffset + existing*stride, start)) {
+					buffer.position(start);
+					return baseVertex + existing;
+				}
+				slot = (slot+1) & mask;
+			}
+			
+			if (size==hashes.length) hashes = Arrays.copyOf(hashes, size*2);
+			hashes[size] = hash;
+			table[slot] = size+1;
+			size++;
+			buf.numVertices++;
+			if (size*2>table.length) rehash();
+			return baseVertex + size-1;
+		}
+		
+		private void rehash() {
+			table = new int[table.length*2];
+			int mask = table.length-1;
+			for(int i=0; i<size; i++) {
+				int slot = hashes[i] & mask;
+				while(table[slot]!=0) slot = (slot+1) & mask;
+				table[slot] = i+1;
+			}
+		}
+		
+		private int hash(ByteBuffer buffer, int start) {
+			int result = 1;
+			for(int i=0; i<stride; i++) {
+				result = result*31 + buffer.get(start+i);
+			}
+			//Spread the bits out so the low ones, which pick the slot, depend on the whole vertex
+			result ^= (result >>> 16);
+			result *= 0x85EBCA6B;
+			result ^= (result >>> 13);
+			return result;
+		}
+		
+		private boolean matches(ByteBuffer buffer, int a, int b) {
+			for(int i=0; i<stride; i++) {
+				if (buffer.get(a+i)!=buffer.get(b+i)) return false;
+			}
+			return true;
+		}
+	}
 }
@@ -0,0 +1,111 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.gl;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.joml.Vector2d;
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+
+import com.playsawdust.chipper.glow.model.Material;
+import com.playsawdust.chipper.glow.model.MaterialAttribute;
+
+/**
+ * Writes loose quads straight into a VertexBufferData, for meshers which can produce raw corner data and don't need a Mesh in between.
+ * Positions, UVs, and the normal come from the caller; every other attribute in the Layout is taken from the Material, or from the
+ * attribute's default value, exactly like {@link MeshFlattener#writeVertex} does.
+ *
+ * <p>QuadWriters hold scratch vectors, so they are not threadsafe. Use one per thread.
+ */
+public class QuadWriter {
+	private final VertexBuffer.Layout layout;
+	private final MaterialAttribute<?>[] attributes;
+	private final BufferWriter<?>[] writers;
+	private final int bytesPerVertex;
+	
+	private final Vector3d[] positions = { new Vector3d(), new Vector3d(), new Vector3d(), new Vector3d() };
+	private final Vector2d[] uvs = { new Vector2d(), new Vector2d(), new Vector2d(), new Vector2d() };
+	
+	/** Attribute values looked up from the last Material written, so we don't hit its attribute map for every vertex */
+	private final Object[] materialValues;
+	private Material lastMaterial = null;
+	
+	public QuadWriter(VertexBuffer.Layout layout) {
+		this.layout = layout;
+		List<MaterialAttribute<?>> attributeList = layout.getAttributes();
+		this.attributes = attributeList.toArray(new MaterialAttribute<?>[attributeList.size()]);
+		this.writers = new BufferWriter<?>[attributes.length];
+		for(int i=0; i<attributes.length; i++) {
+			writers[i] = layout.getWriterFor(attributes[i]);
+		}
+		this.bytesPerVertex = layout.getByteCount();
+		this.materialValues = new Object[attributes.length];
+	}
+	
+	public VertexBuffer.Layout getLayout() {
+		return layout;
+	}
+	
+	/**
+	 * Writes one quad into the buffer as two triangles, using the same tesselation as {@link MeshFlattener#writeMesh}.
+	 * @param buf The buffer to write into. Its layout will be set to this writer's layout.
+	 * @param material The Material to pull any attributes other than position, normal, and UV from
+	 * @param normal The face normal, shared by all four corners
+	 * @param corners Four corners in counter-clockwise order, each laid out as {x, y, z, u, v}
+	 */
+	public void write(VertexBufferData buf, Material material, Vector3dc normal, double[] corners) {
+		if (material!=lastMaterial) {
+			for(int i=0; i<attributes.length; i++) {
+				Object o = material.getMaterialAttribute(attributes[i]);
+				materialValues[i] = (o==null) ? attributes[i].getDefaultValue() : o;
+			}
+			lastMaterial = material;
+		}
+		
+		for(int i=0; i<4; i++) {
+			int ofs = i*5;
+			positions[i].set(corners[ofs], corners[ofs+1], corners[ofs+2]);
+			uvs[i].set(corners[ofs+3], corners[ofs+4]);
+		}
+		
+		buf.layout = layout;
+		buf.ensureCapacity(bytesPerVertex*6);
+		ByteBuffer buffer = buf.buffer();
+		
+		writeVertex(buffer, 0, normal);
+		writeVertex(buffer, 1, normal);
+		writeVertex(buffer, 2, normal);
+		
+		writeVertex(buffer, 0, normal);
+		writeVertex(buffer, 2, normal);
+		writeVertex(buffer, 3, normal);
+		
+		buf.numVertices += 6;
+	}
+	
+	private void writeVertex(ByteBuffer buffer, int corner, Vector3dc normal) {
+		for(int i=0; i<attributes.length; i++) {
+			MaterialAttribute<?> attribute = attributes[i];
+			Object o;
+			if (attribute==MaterialAttribute.POSITION) {
+				o = positions[corner];
+			} else if (attribute==MaterialAttribute.UV) {
+				o = uvs[corner];
+			} else if (attribute==MaterialAttribute.NORMAL) {
+				o = normal;
+			} else {
+				o = materialValues[i];
+			}
+			writers[i].writeUnsafe(buffer, o);
+		}
+	}
+}
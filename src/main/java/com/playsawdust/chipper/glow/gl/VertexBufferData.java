@@ -35,7 +35,7 @@ public class VertexBufferData extends AbstractOffheapResource {
 		
 		int remaining = buf.capacity()-buf.position();
 		if (extra>remaining) {
-			int toRealloc = Math.max(remaining+extra, buf.capacity()*3/2);
+			int toRealloc = Math.max(buf.position()+extra, buf.capacity()*3/2);
 			buf = MemoryUtil.memRealloc(buf, toRealloc);
 		}
 	}
@@ -0,0 +1,272 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.gl;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.joml.Vector2dc;
+import org.joml.Vector3dc;
+import org.lwjgl.system.MemoryUtil;
+
+import com.playsawdust.chipper.glow.gl.BufferWriter.DoubleWriter;
+import com.playsawdust.chipper.glow.gl.BufferWriter.IntWriter;
+import com.playsawdust.chipper.glow.model.Material;
+import com.playsawdust.chipper.glow.model.MaterialAttribute;
+import com.playsawdust.chipper.glow.model.Vertex;
+
+/**
+ * Writes whole vertices in one Layout. The Layout's writers are looked at once, up front, and each attribute gets a lane specialized for
+ * what it writes: vectors and scalars of floats are stored straight to memory with {@link MemoryUtil}, other {@link DoubleWriter DoubleWriters}
+ * and {@link IntWriter IntWriters} are handed primitives, and only writers this class doesn't know about see boxed values.
+ *
+ * <p>Each attribute lands at the offset {@link VertexBuffer.Layout#bind(com.playsawdust.chipper.glow.gl.shader.ShaderProgram)} tells GL it's
+ * at, and every vertex advances the buffer by exactly {@link #getStride()} bytes.
+ *
+ * <p>The writer captures the Layout as it was when it was created. VertexWriters hold no per-write state, so one can be shared between threads.
+ */
+public final class VertexWriter {
+	private static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder()==ByteOrder.BIG_ENDIAN;
+	
+	private final Lane[] lanes;
+	private final int stride;
+	
+	public VertexWriter(VertexBuffer.Layout layout) {
+		lanes = new Lane[layout.size()];
+		int offset = 0;
+		for(int i=0; i<lanes.length; i++) {
+			MaterialAttribute<?> attribute = layout.getAttribute(i);
+			int bytes = layout.getStride(attribute);
+			lanes[i] = createLane(attribute, layout.getWriterFor(attribute), offset, bytes);
+			offset += bytes;
+		}
+		stride = offset;
+	}
+	
+	/** Gets the number of bytes each vertex takes up */
+	public int getStride() {
+		return stride;
+	}
+	
+	/**
+	 * Writes one vertex at the buffer's position, and advances the position past it. Attributes the vertex doesn't have come from the
+	 * Material, or failing that, from the attribute's default.
+	 * @throws BufferOverflowException if there's less than a whole vertex of room left in the buffer
+	 */
+	public void write(Vertex v, Material material, ByteBuffer buf) {
+		int start = buf.position();
+		if (buf.remaining()<stride) throw new BufferOverflowException();
+		
+		//Raw stores are only safe when the bytes would come out the same as a ByteBuffer put
+		long address = (buf.isDirect() && buf.order()==ByteOrder.nativeOrder()) ? MemoryUtil.memAddress(buf) : 0L;
+		for(Lane lane : lanes) {
+			Object o = v.getMaterialAttribute(lane.attribute);
+			if (o==null) {
+				o = material.getMaterialAttribute(lane.attribute);
+				if (o==null) o = lane.attribute.getDefaultValue();
+			}
+			lane.write(buf, start+lane.offset, (address==0L) ? 0L : address+lane.offset, o);
+		}
+		buf.position(start+stride);
+	}
+	
+	private static Lane createLane(MaterialAttribute<?> attribute, BufferWriter<?> writer, int offset, int bytes) {
+		if (writer instanceof BufferWriter.Vec3Writer) {
+			DoubleWriter component = ((BufferWriter.Vec3Writer) writer).getComponentWriter();
+			if (component==BufferWriter.WRITE_DOUBLE_TO_FLOAT && bytes==12) return new Vec3FloatLane(attribute, offset);
+			return new Vec3Lane(attribute, offset, component);
+		} else if (writer instanceof BufferWriter.Vec2Writer) {
+			DoubleWriter component = ((BufferWriter.Vec2Writer) writer).getComponentWriter();
+			if (component==BufferWriter.WRITE_DOUBLE_TO_FLOAT && bytes==8) return new Vec2FloatLane(attribute, offset);
+			return new Vec2Lane(attribute, offset, component);
+		} else if (writer instanceof DoubleWriter) {
+			if (writer==BufferWriter.WRITE_DOUBLE_TO_FLOAT && bytes==4) return new FloatLane(attribute, offset);
+			return new DoubleLane(attribute, offset, (DoubleWriter) writer);
+		} else if (writer==BufferWriter.WRITE_INT_TO_INT && bytes==4) {
+			return new BigEndianIntLane(attribute, offset);
+		} else if (writer instanceof IntWriter) {
+			return new IntLane(attribute, offset, (IntWriter) writer);
+		} else {
+			return new GenericLane(attribute, offset, writer);
+		}
+	}
+	
+	/** Writes one attribute of a vertex */
+	private static abstract class Lane {
+		protected final MaterialAttribute<?> attribute;
+		protected final int offset;
+		
+		public Lane(MaterialAttribute<?> attribute, int offset) {
+			this.attribute = attribute;
+			this.offset = offset;
+		}
+		
+		/**
+		 * @param buf the buffer being written
+		 * @param index where in the buffer this attribute goes
+		 * @param address the memory address of that spot, or 0 if it can't be written to directly
+		 * @param value the attribute's value
+		 */
+		public abstract void write(ByteBuffer buf, int index, long address, Object value);
+	}
+	
+	private static class Vec3FloatLane extends Lane {
+		public Vec3FloatLane(MaterialAttribute<?> attribute, int offset) {
+			super(attribute, offset);
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			Vector3dc vec = (Vector3dc) value;
+			if (address!=0L) {
+				MemoryUtil.memPutFloat(address,   (float) vec.x());
+				MemoryUtil.memPutFloat(address+4, (float) vec.y());
+				MemoryUtil.memPutFloat(address+8, (float) vec.z());
+			} else {
+				buf.putFloat(index,   (float) vec.x());
+				buf.putFloat(index+4, (float) vec.y());
+				buf.putFloat(index+8, (float) vec.z());
+			}
+		}
+	}
+	
+	private static class Vec2FloatLane extends Lane {
+		public Vec2FloatLane(MaterialAttribute<?> attribute, int offset) {
+			super(attribute, offset);
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			Vector2dc vec = (Vector2dc) value;
+			if (address!=0L) {
+				MemoryUtil.memPutFloat(address,   (float) vec.x());
+				MemoryUtil.memPutFloat(address+4, (float) vec.y());
+			} else {
+				buf.putFloat(index,   (float) vec.x());
+				buf.putFloat(index+4, (float) vec.y());
+			}
+		}
+	}
+	
+	private static class FloatLane extends Lane {
+		public FloatLane(MaterialAttribute<?> attribute, int offset) {
+			super(attribute, offset);
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			float f = ((Number) value).floatValue();
+			if (address!=0L) {
+				MemoryUtil.memPutFloat(address, f);
+			} else {
+				buf.putFloat(index, f);
+			}
+		}
+	}
+	
+	/** Matches {@link BufferWriter#WRITE_INT_TO_INT}, which puts the most significant byte first */
+	private static class BigEndianIntLane extends Lane {
+		public BigEndianIntLane(MaterialAttribute<?> attribute, int offset) {
+			super(attribute, offset);
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			int i = ((Integer) value).intValue();
+			if (address!=0L) {
+				MemoryUtil.memPutInt(address, NATIVE_BIG_ENDIAN ? i : Integer.reverseBytes(i));
+			} else {
+				buf.putInt(index, (buf.order()==ByteOrder.BIG_ENDIAN) ? i : Integer.reverseBytes(i));
+			}
+		}
+	}
+	
+	private static class Vec3Lane extends Lane {
+		private final DoubleWriter component;
+		
+		public Vec3Lane(MaterialAttribute<?> attribute, int offset, DoubleWriter component) {
+			super(attribute, offset);
+			this.component = component;
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			Vector3dc vec = (Vector3dc) value;
+			buf.position(index);
+			component.writeDouble(buf, vec.x());
+			component.writeDouble(buf, vec.y());
+			component.writeDouble(buf, vec.z());
+		}
+	}
+	
+	private static class Vec2Lane extends Lane {
+		private final DoubleWriter component;
+		
+		public Vec2Lane(MaterialAttribute<?> attribute, int offset, DoubleWriter component) {
+			super(attribute, offset);
+			this.component = component;
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			Vector2dc vec = (Vector2dc) value;
+			buf.position(index);
+			component.writeDouble(buf, vec.x());
+			component.writeDouble(buf, vec.y());
+		}
+	}
+	
+	private static class DoubleLane extends Lane {
+		private final DoubleWriter writer;
+		
+		public DoubleLane(MaterialAttribute<?> attribute, int offset, DoubleWriter writer) {
+			super(attribute, offset);
+			this.writer = writer;
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			buf.position(index);
+			writer.writeDouble(buf, ((Number) value).doubleValue());
+		}
+	}
+	
+	private static class IntLane extends Lane {
+		private final IntWriter writer;
+		
+		public IntLane(MaterialAttribute<?> attribute, int offset, IntWriter writer) {
+			super(attribute, offset);
+			this.writer = writer;
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			buf.position(index);
+			writer.writeInt(buf, ((Number) value).intValue());
+		}
+	}
+	
+	/** For writers this class doesn't recognize. The value goes through {@link BufferWriter#writeUnsafe(ByteBuffer, Object)} as-is. */
+	private static class GenericLane extends Lane {
+		private final BufferWriter<?> writer;
+		
+		public GenericLane(MaterialAttribute<?> attribute, int offset, BufferWriter<?> writer) {
+			super(attribute, offset);
+			this.writer = writer;
+		}
+		
+		@Override
+		public void write(ByteBuffer buf, int index, long address, Object value) {
+			buf.position(index);
+			writer.writeUnsafe(buf, value);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.mesher;
+
+import java.util.BitSet;
+
+import com.playsawdust.chipper.glow.event.ConsumerEvent;
+import com.playsawdust.chipper.glow.model.Model;
+import com.playsawdust.chipper.glow.voxel.VecFunction;
+import com.playsawdust.chipper.glow.voxel.VoxelPatch;
+import com.playsawdust.chipper.glow.voxel.VoxelShape;
+
+/**
+ * Keeps one cached Model per dirty-tracking sub-block of a VoxelPatch, and rebuilds only the sub-blocks which were edited since the last
+ * {@link #update()}, plus their face-adjacent neighbours, since an edit on a block's edge can expose or hide faces on the other side of it.
+ *
+ * <p>Listeners on {@link #onBlockRemeshed()} are told about each Block as soon as its new Model has been swapped in, so they can re-bake just
+ * that block.
+ */
+public class IncrementalVoxelMesher {
+	private final VoxelPatch patch;
+	private final double voxelSize;
+	private final boolean greedy;
+	
+	private int granularity;
+	private int xBlocks;
+	private int yBlocks;
+	private int zBlocks;
+	private Block[] blocks = new Block[0];
+	private BitSet pending = new BitSet();
+	
+	private ConsumerEvent<Block> onBlockRemeshed = new ConsumerEvent<>();
+	/** Answers for voxels outside the patch, so faces against neighbouring chunks can be culled. Null means the outside is empty. */
+	private VecFunction<VoxelShape> outside = null;
+	
+	public IncrementalVoxelMesher(VoxelPatch patch, double voxelSize, boolean greedy) {
+		this.patch = patch;
+		this.voxelSize = voxelSize;
+		this.greedy = greedy;
+		patch.markAllDirty();
+	}
+	
+	public VoxelPatch getPatch() { return patch; }
+	
+	/**
+	 * Sets where voxels beyond the patch's bounds are looked up, for example {@code world::getShape}, so that faces buried against neighbouring
+	 * chunks are culled. Blocks on the patch's border are only rebuilt when they or their neighbours inside the patch are dirty, so call
+	 * {@link VoxelPatch#markAllDirty()} if a neighbouring chunk changes.
+	 */
+	public void setOutside(VecFunction<VoxelShape> outside) {
+		this.outside = outside;
+	}
+	
+	public int xBlocks() { return xBlocks; }
+	public int yBlocks() { return yBlocks; }
+	public int zBlocks() { return zBlocks; }
+	
+	/** Fired once for each Block rebuilt during {@link #update()}, right after its Model is replaced */
+	public ConsumerEvent<Block> onBlockRemeshed() {
+		return onBlockRemeshed;
+	}
+	
+	/** Gets the cached Block at the given sub-block coordinates, or null if it's out of range. Its Model may be stale until the next update. */
+	public Block getBlock(int blockX, int blockY, int blockZ) {
+		if (blockX<0 || blockY<0 || blockZ<0 || blockX>=xBlocks || blockY>=yBlocks || blockZ>=zBlocks) return null;
+		return blocks[blockX + blockY*xBlocks + blockZ*xBlocks*yBlocks];
+	}
+	
+	/**
+	 * Remeshes every sub-block the patch reports as dirty, along with its six face-adjacent neighbours, and clears the patch's dirty flags.
+	 * If the patch was resized or its granularity changed, every block is rebuilt.
+	 * @return the number of blocks which were remeshed
+	 */
+	public int update() {
+		if (patch.getDirtyGranularity()!=granularity || patch.xBlocks()!=xBlocks || patch.yBlocks()!=yBlocks || patch.zBlocks()!=zBlocks) {
+			resize();
+		}
+		
+		pending.clear();
+		for(int bz=0; bz<zBlocks; bz++) {
+			for(int by=0; by<yBlocks; by++) {
+				for(int bx=0; bx<xBlocks; bx++) {
+					if (!patch.isDirty(bx, by, bz)) continue;
+					markPending(bx,   by,   bz  );
+					markPending(bx-1, by,   bz  );
+					markPending(bx+1, by,   bz  );
+					markPending(bx,   by-1, bz  );
+					markPending(bx,   by+1, bz  );
+					markPending(bx,   by,   bz-1);
+					markPending(bx,   by,   bz+1);
+				}
+			}
+		}
+		patch.clearDirty();
+		
+		int remeshed = 0;
+		for(int i=pending.nextSetBit(0); i>=0; i=pending.nextSetBit(i+1)) {
+			remesh(blocks[i]);
+			remeshed++;
+			onBlockRemeshed.fire(blocks[i]);
+		}
+		return remeshed;
+	}
+	
+	/** Builds a single Model holding the geometry of every block. This copies every Face, so prefer rendering the blocks separately. */
+	public Model getModel() {
+		Model result = new Model();
+		for(Block block : blocks) {
+			result.combineFrom(block.model);
+		}
+		return result;
+	}
+	
+	private void resize() {
+		granularity = patch.getDirtyGranularity();
+		xBlocks = patch.xBlocks();
+		yBlocks = patch.yBlocks();
+		zBlocks = patch.zBlocks();
+		
+		blocks = new Block[xBlocks*yBlocks*zBlocks];
+		for(int bz=0; bz<zBlocks; bz++) {
+			for(int by=0; by<yBlocks; by++) {
+				for(int bx=0; bx<xBlocks; bx++) {
+					blocks[bx + by*xBlocks + bz*xBlocks*yBlocks] = new Block(bx, by, bz);
+				}
+			}
+		}
+		patch.markAllDirty();
+	}
+	
+	private void markPending(int blockX, int blockY, int blockZ) {
+		if (blockX<0 || blockY<0 || blockZ<0 || blockX>=xBlocks || blockY>=yBlocks || blockZ>=zBlocks) return;
+		pending.set(blockX + blockY*xBlocks + blockZ*xBlocks*yBlocks);
+	}
+	
+	private void remesh(Block block) {
+		int x1 = block.blockX*granularity;
+		int y1 = block.blockY*granularity;
+		int z1 = block.blockZ*granularity;
+		int xSize = Math.min(granularity, patch.xSize()-x1);
+		int ySize = Math.min(granularity, patch.ySize()-y1);
+		int zSize = Math.min(granularity, patch.zSize()-z1);
+		x1 += patch.xOffset();
+		y1 += patch.yOffset();
+		z1 += patch.zOffset();
+		
+		VecFunction<VoxelShape> getShape = patch::getShape;
+		if (outside!=null) {
+			int px1 = patch.xOffset();
+			int py1 = patch.yOffset();
+			int pz1 = patch.zOffset();
+			int px2 = px1 + patch.xSize();
+			int py2 = py1 + patch.ySize();
+			int pz2 = pz1 + patch.zSize();
+			VecFunction<VoxelShape> outside = this.outside;
+			getShape = (x, y, z)->{
+				if (x<px1 || y<py1 || z<pz1 || x>=px2 || y>=py2 || z>=pz2) return outside.apply(x, y, z);
+				return patch.getShape(x, y, z);
+			};
+		}
+		
+		Model model = (greedy) ?
+				VoxelMesher.meshGreedy(x1, y1, z1, xSize, ySize, zSize, getShape, patch::getMaterial, voxelSize, patch) :
+				VoxelMesher.mesh(x1, y1, z1, xSize, ySize, zSize, getShape, patch::getMaterial, voxelSize, patch);
+		block.model = model;
+		block.version++;
+	}
+	
+	/** One sub-block's worth of cached geometry */
+	public static class Block {
+		private final int blockX;
+		private final int blockY;
+		private final int blockZ;
+		private Model model = new Model();
+		private int version = 0;
+		
+		private Block(int blockX, int blockY, int blockZ) {
+			this.blockX = blockX;
+			this.blockY = blockY;
+			this.blockZ = blockZ;
+		}
+		
+		public int getBlockX() { return blockX; }
+		public int getBlockY() { return blockY; }
+		public int getBlockZ() { return blockZ; }
+		
+		/** Gets the most recent Model for this block. Models are replaced, never edited, so it's safe to hold onto one while baking it. */
+		public Model getModel() { return model; }
+		
+		/** Gets a counter which goes up by one every time this block is remeshed, so renderers can tell whether their baked copy is stale */
+		public int getVersion() { return version; }
+	}
+}
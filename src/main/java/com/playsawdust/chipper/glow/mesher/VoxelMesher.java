@@ -9,12 +9,20 @@
 
 package com.playsawdust.chipper.glow.mesher;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.joml.Vector2d;
 import org.joml.Vector3d;
 import org.joml.Vector3dc;
 
+import com.playsawdust.chipper.glow.gl.QuadWriter;
+import com.playsawdust.chipper.glow.gl.VertexBuffer;
+import com.playsawdust.chipper.glow.gl.VertexBufferData;
 import com.playsawdust.chipper.glow.model.Face;
 import com.playsawdust.chipper.glow.model.Material;
 import com.playsawdust.chipper.glow.model.MaterialAttribute;
@@ -22,6 +30,8 @@ import com.playsawdust.chipper.glow.model.Mesh;
 import com.playsawdust.chipper.glow.model.Model;
 import com.playsawdust.chipper.glow.model.Vertex;
 import com.playsawdust.chipper.glow.voxel.VecFunction;
+import com.playsawdust.chipper.glow.voxel.VoxelLighting;
+import com.playsawdust.chipper.glow.voxel.VoxelPatch;
 import com.playsawdust.chipper.glow.voxel.VoxelShape;
 
 public class VoxelMesher {
@@ -32,6 +42,16 @@ public class VoxelMesher {
 	public static final Vector3dc VEC_YMINUS = new Vector3d( 0, -1,  0);
 	public static final Vector3dc VEC_YPLUS  = new Vector3d( 0,  1,  0);
 	
+	/** Indices into the neighbour array for {@link #meshChunk(VoxelPatch, VoxelPatch[], double, boolean)} */
+	public static final int NEIGHBOUR_XMINUS = 0;
+	public static final int NEIGHBOUR_XPLUS  = 1;
+	public static final int NEIGHBOUR_YMINUS = 2;
+	public static final int NEIGHBOUR_YPLUS  = 3;
+	public static final int NEIGHBOUR_ZMINUS = 4;
+	public static final int NEIGHBOUR_ZPLUS  = 5;
+	
+	private static final int DEFAULT_BLOCK_SIZE = 32;
+	
 	public static Model mesh(
 			int x1, int y1, int z1, int xSize, int ySize, int zSize,
 			VecFunction<VoxelShape> getShape,
@@ -45,138 +65,177 @@ public class VoxelMesher {
 			VecFunction<Material> getMaterial,
 			double voxelSize
 			) {
+		return mesh(x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, null);
+	}
+	
+	/**
+	 * Naive meshing, visiting only the occupied bricks of {@code occupancy}. The patch must cover the whole region and be where getShape reads
+	 * its voxels from, at least for the voxels inside it.
+	 */
+	static Model mesh(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			@Nullable VoxelPatch occupancy
+			) {
 		
 		HashMap<Material, Mesh> meshes = new HashMap<>();
+		double[] corners = new double[20];
+		int[] bounds = new int[6];
 		
-		for(int y=0; y<ySize; y++) {
-			for(int z=0; z<zSize; z++) {
-				for(int x=0; x<xSize; x++) {
-					VoxelShape shape = getShape.apply(x, y, z);
-					if (shape==VoxelShape.EMPTY) continue;
+		for(int brick=firstBrick(occupancy); brick!=-1; brick=nextBrick(occupancy, brick)) {
+			if (!clipBrick(occupancy, brick, x1, y1, z1, xSize, ySize, zSize, bounds)) continue;
+			
+			for(int y=bounds[1]; y<bounds[4]; y++) {
+				for(int z=bounds[2]; z<bounds[5]; z++) {
+					for(int x=bounds[0]; x<bounds[3]; x++) {
+						VoxelShape shape = getShape.apply(x, y, z);
+						if (shape==VoxelShape.EMPTY) continue;
 					
-					Material material = getMaterial.apply(x, y, z);
-					Mesh mesh = meshes.get(material);
-					if (mesh==null) {
-						mesh = new Mesh();
-						mesh.setMaterial(material);
-						meshes.put(material, mesh);
-					}
+						Material material = getMaterial.apply(x, y, z);
+						Mesh mesh = meshes.get(material);
+						if (mesh==null) {
+							mesh = new Mesh();
+							mesh.setMaterial(material);
+							meshes.put(material, mesh);
+						}
 					
-					//Z-
-					VoxelShape zMinus = getShape.apply(x,y,z-1);
-					if (shape==VoxelShape.CUBE && zMinus!=VoxelShape.CUBE) {
-						Vertex a = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(voxelSize, 0));
-						a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZMINUS);
+						//Z-
+						VoxelShape zMinus = getShape.apply(x,y,z-1);
+						if (isFaceOpen(shape, NEIGHBOUR_ZMINUS, zMinus)) {
+							Vertex a = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(voxelSize, 0));
+							a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZMINUS);
 						
-						Vertex b = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(voxelSize, voxelSize));
-						b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZMINUS);
+							Vertex b = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(voxelSize, voxelSize));
+							b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZMINUS);
 						
-						Vertex c = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(0, voxelSize));
-						c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZMINUS);
+							Vertex c = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(0, voxelSize));
+							c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZMINUS);
 						
-						Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(0, 0));
-						d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZMINUS);
+							Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(0, 0));
+							d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZMINUS);
 						
-						Face face = new Face(a, b, c, d);
-						mesh.addFace(face);
-					}
+							Face face = new Face(a, b, c, d);
+							mesh.addFace(face);
+						}
 					
-					//Z+
-					VoxelShape zPlus = getShape.apply(x,y,z+1);
-					if (shape==VoxelShape.CUBE && zPlus!=VoxelShape.CUBE) {
-						Vertex a = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, voxelSize));
-						a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZPLUS);
+						//Z+
+						VoxelShape zPlus = getShape.apply(x,y,z+1);
+						if (isFaceOpen(shape, NEIGHBOUR_ZPLUS, zPlus)) {
+							Vertex a = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, voxelSize));
+							a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZPLUS);
 						
-						Vertex b = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(0, voxelSize));
-						b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZPLUS);
+							Vertex b = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(0, voxelSize));
+							b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZPLUS);
 						
-						Vertex c = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(0, 0));
-						c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZPLUS);
+							Vertex c = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(0, 0));
+							c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZPLUS);
 						
-						Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, 0));
-						d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZPLUS);
+							Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, 0));
+							d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_ZPLUS);
 						
-						Face face = new Face(a, b, c, d);
-						mesh.addFace(face);
-					}
+							Face face = new Face(a, b, c, d);
+							mesh.addFace(face);
+						}
 					
-					//Y-
-					VoxelShape yMinus = getShape.apply(x,y-1,z);
-					if (shape==VoxelShape.CUBE && yMinus!=VoxelShape.CUBE) {
-						Vertex a = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(0, 0));
-						a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YMINUS);
+						//Y-
+						VoxelShape yMinus = getShape.apply(x,y-1,z);
+						if (isFaceOpen(shape, NEIGHBOUR_YMINUS, yMinus)) {
+							Vertex a = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(0, 0));
+							a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YMINUS);
 						
-						Vertex b = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, 0));
-						b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YMINUS);
+							Vertex b = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, 0));
+							b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YMINUS);
 						
-						Vertex c = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(voxelSize, voxelSize));
-						c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YMINUS);
+							Vertex c = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(voxelSize, voxelSize));
+							c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YMINUS);
 						
-						Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(0, voxelSize));
-						d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YMINUS);
+							Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(0, voxelSize));
+							d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YMINUS);
 						
 						
-						Face face = new Face(a, b, c, d);
-						mesh.addFace(face);
-					}
+							Face face = new Face(a, b, c, d);
+							mesh.addFace(face);
+						}
 					
-					//Y+
-					VoxelShape yPlus = getShape.apply(x,y+1,z);
-					if (shape==VoxelShape.CUBE && yPlus!=VoxelShape.CUBE) {
-						Vertex a = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(voxelSize, 0));
-						a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YPLUS);
+						//Y+
+						VoxelShape yPlus = getShape.apply(x,y+1,z);
+						if (isFaceOpen(shape, NEIGHBOUR_YPLUS, yPlus)) {
+							Vertex a = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(voxelSize, 0));
+							a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YPLUS);
 						
-						Vertex b = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, voxelSize));
-						b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YPLUS);
+							Vertex b = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, voxelSize));
+							b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YPLUS);
 						
-						Vertex c = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(0, voxelSize));
-						c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YPLUS);
+							Vertex c = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(0, voxelSize));
+							c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YPLUS);
 						
-						Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(0, 0));
-						d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YPLUS);
+							Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(0, 0));
+							d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_YPLUS);
 						
-						Face face = new Face(a, b, c, d);
-						mesh.addFace(face);
-					}
+							Face face = new Face(a, b, c, d);
+							mesh.addFace(face);
+						}
 					
-					//X-
-					VoxelShape xMinus = getShape.apply(x-1,y,z);
-					if (shape==VoxelShape.CUBE && xMinus!=VoxelShape.CUBE) {
-						Vertex a = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, voxelSize));
-						a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XMINUS);
+						//X-
+						VoxelShape xMinus = getShape.apply(x-1,y,z);
+						if (isFaceOpen(shape, NEIGHBOUR_XMINUS, xMinus)) {
+							Vertex a = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, voxelSize));
+							a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XMINUS);
 						
-						Vertex b = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(0, voxelSize));
-						b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XMINUS);
+							Vertex b = new Vertex(new Vector3d(x*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(0, voxelSize));
+							b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XMINUS);
 						
-						Vertex c = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(0, 0));
-						c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XMINUS);
+							Vertex c = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(0, 0));
+							c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XMINUS);
 						
-						Vertex d = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, 0));
-						d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XMINUS);
+							Vertex d = new Vertex(new Vector3d(x*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(voxelSize, 0));
+							d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XMINUS);
 						
 						
 						
-						Face face = new Face(a, b, c, d);
-						mesh.addFace(face);
-					}
+							Face face = new Face(a, b, c, d);
+							mesh.addFace(face);
+						}
 					
-					//X+
-					VoxelShape xPlus = getShape.apply(x+1,y,z);
-					if (shape==VoxelShape.CUBE && xPlus!=VoxelShape.CUBE) {
-						Vertex a = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(voxelSize, 0));
-						a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XPLUS);
+						//X+
+						VoxelShape xPlus = getShape.apply(x+1,y,z);
+						if (isFaceOpen(shape, NEIGHBOUR_XPLUS, xPlus)) {
+							Vertex a = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, z*voxelSize), new Vector2d(voxelSize, 0));
+							a.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XPLUS);
 						
-						Vertex b = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(voxelSize, voxelSize));
-						b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XPLUS);
+							Vertex b = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, z*voxelSize), new Vector2d(voxelSize, voxelSize));
+							b.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XPLUS);
 						
-						Vertex c = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(0, voxelSize));
-						c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XPLUS);
+							Vertex c = new Vertex(new Vector3d((x+1)*voxelSize, (y+1)*voxelSize, (z+1)*voxelSize), new Vector2d(0, voxelSize));
+							c.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XPLUS);
 						
-						Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(0, 0));
-						d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XPLUS);
+							Vertex d = new Vertex(new Vector3d((x+1)*voxelSize, y*voxelSize, (z+1)*voxelSize), new Vector2d(0, 0));
+							d.putMaterialAttribute(MaterialAttribute.NORMAL, VEC_XPLUS);
 						
-						Face face = new Face(a, b, c, d);
-						mesh.addFace(face);
+							Face face = new Face(a, b, c, d);
+							mesh.addFace(face);
+						}
+					
+						if (!shape.isFull() || isPartlyCovered(shape, zMinus, zPlus, yMinus, yPlus, xMinus, xPlus)) {
+							Mesh partialMesh = mesh;
+							FaceConsumer addFace = (axis, direction, faceMaterial, faceCorners)->{
+								Vector3dc normal = normalFor(axis, direction);
+								partialMesh.addFace(new Face(
+										vertex(faceCorners,  0, normal),
+										vertex(faceCorners,  5, normal),
+										vertex(faceCorners, 10, normal),
+										vertex(faceCorners, 15, normal)));
+							};
+							meshCoveredQuarters(x, y, z, shape, NEIGHBOUR_ZMINUS, zMinus, material, voxelSize, corners, addFace);
+							meshCoveredQuarters(x, y, z, shape, NEIGHBOUR_ZPLUS,  zPlus,  material, voxelSize, corners, addFace);
+							meshCoveredQuarters(x, y, z, shape, NEIGHBOUR_YMINUS, yMinus, material, voxelSize, corners, addFace);
+							meshCoveredQuarters(x, y, z, shape, NEIGHBOUR_YPLUS,  yPlus,  material, voxelSize, corners, addFace);
+							meshCoveredQuarters(x, y, z, shape, NEIGHBOUR_XMINUS, xMinus, material, voxelSize, corners, addFace);
+							meshCoveredQuarters(x, y, z, shape, NEIGHBOUR_XPLUS,  xPlus,  material, voxelSize, corners, addFace);
+							if (!shape.isFull()) meshPartial(x, y, z, shape, material, getShape, voxelSize, corners, addFace);
+						}
 					}
 				}
 			}
@@ -189,5 +248,829 @@ public class VoxelMesher {
 		return result;
 	}
 	
+	public static Model meshGreedy(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial) {
+		return meshGreedy(x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, 1.0);
+	}
+	
+	/**
+	 * Meshes the same region as {@link #mesh(int, int, int, int, int, int, VecFunction, VecFunction, double)}, but merges coplanar faces which share a
+	 * Material into the largest rectangles it can find in each slice. UVs are stretched across the merged rectangle, so a face covering 4x2 voxels
+	 * gets the same UV span that four-by-two separate faces would have had.
+	 */
+	public static Model meshGreedy(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize
+			) {
+		return meshGreedy(x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, null);
+	}
+	
+	/** Greedy meshing, visiting only the occupied bricks of {@code occupancy}, which must cover the whole region and be where getShape reads its voxels from */
+	static Model meshGreedy(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			@Nullable VoxelPatch occupancy
+			) {
+		
+		HashMap<Material, Mesh> meshes = new HashMap<>();
+		
+		sweep(x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, true, occupancy, (axis, direction, material, corners)->{
+			Mesh mesh = meshes.get(material);
+			if (mesh==null) {
+				mesh = new Mesh();
+				mesh.setMaterial(material);
+				meshes.put(material, mesh);
+			}
+			
+			Vector3dc normal = normalFor(axis, direction);
+			mesh.addFace(new Face(
+					vertex(corners,  0, normal),
+					vertex(corners,  5, normal),
+					vertex(corners, 10, normal),
+					vertex(corners, 15, normal)));
+		});
+		
+		Model result = new Model();
+		for(Mesh mesh : meshes.values()) {
+			result.addMesh(mesh);
+		}
+		return result;
+	}
+	
+	/**
+	 * Meshes the same faces as {@link #mesh(int, int, int, int, int, int, VecFunction, VecFunction, double) mesh}, and bakes flood-fill lighting
+	 * into every vertex as {@link MaterialAttribute#VOXEL_LIGHT}. Each corner gets the average light of the four voxels which touch it on the side
+	 * the face points towards, skipping solid voxels, which gives smooth lighting and a little ambient occlusion for free. Faces aren't merged,
+	 * since a merged face could only carry the light at its corners.
+	 */
+	public static Model meshLit(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			VoxelLighting lighting) {
+		
+		HashMap<Material, Mesh> meshes = new HashMap<>();
+		
+		sweep(x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, false, null, (axis, direction, material, corners)->{
+			Mesh mesh = meshes.get(material);
+			if (mesh==null) {
+				mesh = new Mesh();
+				mesh.setMaterial(material);
+				meshes.put(material, mesh);
+			}
+			
+			Vector3dc normal = normalFor(axis, direction);
+			Vertex[] vertices = new Vertex[4];
+			for(int i=0; i<4; i++) {
+				vertices[i] = vertex(corners, i*5, normal);
+				vertices[i].putMaterialAttribute(MaterialAttribute.VOXEL_LIGHT, cornerLight(axis, direction, corners, i*5, voxelSize, getShape, lighting));
+			}
+			mesh.addFace(new Face(vertices[0], vertices[1], vertices[2], vertices[3]));
+		});
+		
+		Model result = new Model();
+		for(Mesh mesh : meshes.values()) {
+			result.addMesh(mesh);
+		}
+		return result;
+	}
+	
+	/** Averages the light of the (up to) four open voxels in front of a face which share the corner at corners[ofs] */
+	private static Vector2d cornerLight(int axis, int direction, double[] corners, int ofs, double voxelSize, VecFunction<VoxelShape> getShape, VoxelLighting lighting) {
+		int[] lattice = {
+			(int) Math.round(corners[ofs  ] / voxelSize),
+			(int) Math.round(corners[ofs+1] / voxelSize),
+			(int) Math.round(corners[ofs+2] / voxelSize)
+		};
+		int uAxis = (axis==0) ? 2 : 0;
+		int vAxis = (axis==1) ? 2 : 1;
+		
+		int[] pos = new int[3];
+		pos[axis] = (direction>0) ? lattice[axis] : lattice[axis]-1;
+		int sky = 0;
+		int block = 0;
+		int count = 0;
+		for(int du=-1; du<=0; du++) {
+			for(int dv=-1; dv<=0; dv++) {
+				pos[uAxis] = lattice[uAxis]+du;
+				pos[vAxis] = lattice[vAxis]+dv;
+				if (getShape.apply(pos[0], pos[1], pos[2])==VoxelShape.CUBE) continue;
+				sky += lighting.getSkyLight(pos[0], pos[1], pos[2]);
+				block += lighting.getBlockLight(pos[0], pos[1], pos[2]);
+				count++;
+			}
+		}
+		
+		if (count==0) return new Vector2d(0, 0);
+		double scale = 1.0 / (count*VoxelLighting.MAX_LIGHT);
+		return new Vector2d(sky*scale, block*scale);
+	}
+	
+	/**
+	 * Meshes a region straight into one VertexBufferData per Material, without building any Mesh, Face, or Vertex objects along the way. The
+	 * geometry is identical to {@link #mesh(int, int, int, int, int, int, VecFunction, VecFunction, double) mesh} or, if {@code greedy} is set,
+	 * {@link #meshGreedy(int, int, int, int, int, int, VecFunction, VecFunction, double) meshGreedy}.
+	 *
+	 * <p>It is the caller's responsibility to free the returned buffers.
+	 */
+	public static HashMap<Material, VertexBufferData> meshDirect(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			boolean greedy,
+			VertexBuffer.Layout layout) {
+		
+		HashMap<Material, VertexBufferData> result = new HashMap<>();
+		meshDirect(x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, greedy, layout, result);
+		return result;
+	}
+	
+	/**
+	 * Meshes a region straight into one VertexBufferData per Material. Buffers which are already in {@code buffers} are rewound and reused, so a
+	 * chunk which is remeshed over and over stops allocating once its buffers have grown large enough. Buffers whose Material no longer appears in
+	 * the region are left in the map, empty.
+	 */
+	public static void meshDirect(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			boolean greedy,
+			VertexBuffer.Layout layout,
+			Map<Material, VertexBufferData> buffers) {
+		
+		for(VertexBufferData buf : buffers.values()) {
+			buf.beginWriting();
+		}
+		
+		QuadWriter writer = new QuadWriter(layout);
+		sweep(x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, greedy, null, (axis, direction, material, corners)->{
+			VertexBufferData buf = buffers.get(material);
+			if (buf==null) {
+				buf = new VertexBufferData();
+				buf.beginWriting();
+				buffers.put(material, buf);
+			}
+			
+			writer.write(buf, material, normalFor(axis, direction), corners);
+		});
+		
+		for(VertexBufferData buf : buffers.values()) {
+			buf.endWriting();
+		}
+	}
+	
+	/**
+	 * Meshes a large region on the common ForkJoinPool, in 32x32x32 blocks. See
+	 * {@link #meshParallel(int, int, int, int, int, int, VecFunction, VecFunction, double, boolean, int, ForkJoinPool) the full version} for details.
+	 */
+	public static Model meshParallel(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			boolean greedy) {
+		return meshParallel(x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, greedy, DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Splits a region into blockSize-cubed blocks, meshes the blocks concurrently on the provided pool, and merges the per-Material results into
+	 * one Model. The geometry matches {@link #mesh(int, int, int, int, int, int, VecFunction, VecFunction, double) mesh} exactly; for greedy
+	 * meshing, faces are only merged within a block, so expect a few more quads than a single-threaded
+	 * {@link #meshGreedy(int, int, int, int, int, int, VecFunction, VecFunction, double) meshGreedy}.
+	 * 
+	 * <p>getShape and getMaterial will be called from several threads at once, so they must be safe for concurrent reads. VoxelPatch is, as
+	 * long as nobody is editing it during the mesh.
+	 * @param blockSize The edge length of each block. Blocks on the far edges of the region may be smaller.
+	 * @param pool The pool to run the meshing tasks on. The calling thread waits for them to finish.
+	 */
+	public static Model meshParallel(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			boolean greedy,
+			int blockSize,
+			ForkJoinPool pool) {
+		if (blockSize<=0) throw new IllegalArgumentException("Block size must be at least 1");
+		
+		int xBlocks = (xSize+blockSize-1) / blockSize;
+		int yBlocks = (ySize+blockSize-1) / blockSize;
+		int zBlocks = (zSize+blockSize-1) / blockSize;
+		Model[] blocks = new Model[xBlocks*yBlocks*zBlocks];
+		if (blocks.length==0) return new Model();
+		
+		pool.invoke(new MeshBlocksTask(0, blocks.length, blocks, xBlocks, yBlocks, blockSize,
+				x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, greedy));
+		
+		//Merge in block order so the output is the same every time. The block Models are thrown away, so their Faces can be moved rather than copied.
+		HashMap<Material, Mesh> meshes = new HashMap<>();
+		Model result = new Model();
+		for(Model block : blocks) {
+			for(Mesh blockMesh : block) {
+				Mesh mesh = meshes.get(blockMesh.getMaterial());
+				if (mesh==null) {
+					mesh = new Mesh();
+					mesh.setMaterial(blockMesh.getMaterial());
+					meshes.put(blockMesh.getMaterial(), mesh);
+					result.addMesh(mesh);
+				}
+				
+				for(Face face : blockMesh.faces()) {
+					mesh.addFace(face);
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Meshes one chunk of a larger world. Faces on the chunk's border are tested against the neighbouring chunks instead of being assumed to face
+	 * open air, so the walls of hidden faces along chunk seams are culled. Neighbours must have their offsets set to their world positions, as
+	 * VoxelWorld does. A null neighbour, or a null array, counts as empty space.
+	 * @param chunk the chunk to mesh
+	 * @param neighbours the six face-adjacent chunks, indexed by the NEIGHBOUR_ constants
+	 */
+	public static Model meshChunk(VoxelPatch chunk, @Nullable VoxelPatch[] neighbours, double voxelSize, boolean greedy) {
+		if (neighbours!=null && neighbours.length!=6) throw new IllegalArgumentException("Expected 6 neighbours, got "+neighbours.length);
+		
+		int x1 = chunk.xOffset();
+		int y1 = chunk.yOffset();
+		int z1 = chunk.zOffset();
+		int x2 = x1 + chunk.xSize();
+		int y2 = y1 + chunk.ySize();
+		int z2 = z1 + chunk.zSize();
+		
+		return meshChunk(chunk, (x, y, z)->{
+			if (neighbours==null) return VoxelShape.EMPTY;
+			VoxelPatch neighbour;
+			if      (x< x1) neighbour = neighbours[NEIGHBOUR_XMINUS];
+			else if (x>=x2) neighbour = neighbours[NEIGHBOUR_XPLUS];
+			else if (y< y1) neighbour = neighbours[NEIGHBOUR_YMINUS];
+			else if (y>=y2) neighbour = neighbours[NEIGHBOUR_YPLUS];
+			else if (z< z1) neighbour = neighbours[NEIGHBOUR_ZMINUS];
+			else if (z>=z2) neighbour = neighbours[NEIGHBOUR_ZPLUS];
+			else return VoxelShape.EMPTY;
+			
+			return (neighbour==null) ? VoxelShape.EMPTY : neighbour.getShape(x, y, z);
+		}, voxelSize, greedy);
+	}
+	
+	/**
+	 * Meshes one chunk of a larger world, asking {@code outside} about every voxel beyond the chunk's bounds so that faces buried against the
+	 * neighbouring chunks are culled. Passing something like {@code world::getShape} works; only voxels one step outside the chunk are ever
+	 * queried.
+	 */
+	public static Model meshChunk(VoxelPatch chunk, VecFunction<VoxelShape> outside, double voxelSize, boolean greedy) {
+		int x1 = chunk.xOffset();
+		int y1 = chunk.yOffset();
+		int z1 = chunk.zOffset();
+		int x2 = x1 + chunk.xSize();
+		int y2 = y1 + chunk.ySize();
+		int z2 = z1 + chunk.zSize();
+		
+		//Only solid voxels inside the chunk make faces, so an all-air chunk has nothing to mesh
+		if (chunk.isEmpty()) return new Model();
+		
+		VecFunction<VoxelShape> getShape = (x, y, z)->{
+			if (x<x1 || y<y1 || z<z1 || x>=x2 || y>=y2 || z>=z2) return outside.apply(x, y, z);
+			return chunk.getShape(x, y, z);
+		};
+		
+		if (greedy) {
+			return meshGreedy(x1, y1, z1, chunk.xSize(), chunk.ySize(), chunk.zSize(), getShape, chunk::getMaterial, voxelSize, chunk);
+		} else {
+			return mesh(x1, y1, z1, chunk.xSize(), chunk.ySize(), chunk.zSize(), getShape, chunk::getMaterial, voxelSize, chunk);
+		}
+	}
+	
+	/** Meshes the blocks in [start, end), splitting the range in half until each task holds a single block */
+	private static class MeshBlocksTask extends RecursiveAction {
+		private static final long serialVersionUID = -3785465049254338815L;
+		
+		private final int start;
+		private final int end;
+		private final Model[] results;
+		private final int xBlocks;
+		private final int yBlocks;
+		private final int blockSize;
+		private final int x1, y1, z1, xSize, ySize, zSize;
+		private final VecFunction<VoxelShape> getShape;
+		private final VecFunction<Material> getMaterial;
+		private final double voxelSize;
+		private final boolean greedy;
+		
+		public MeshBlocksTask(int start, int end, Model[] results, int xBlocks, int yBlocks, int blockSize,
+				int x1, int y1, int z1, int xSize, int ySize, int zSize,
+				VecFunction<VoxelShape> getShape, VecFunction<Material> getMaterial, double voxelSize, boolean greedy) {
+			this.start = start;
+			this.end = end;
+			this.results = results;
+			this.xBlocks = xBlocks;
+			this.yBlocks = yBlocks;
+			this.blockSize = blockSize;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.z1 = z1;
+			this.xSize = xSize;
+			this.ySize = ySize;
+			this.zSize = zSize;
+			this.getShape = getShape;
+			this.getMaterial = getMaterial;
+			this.voxelSize = voxelSize;
+			this.greedy = greedy;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end-start>1) {
+				int mid = (start+end) >>> 1;
+				invokeAll(
+						new MeshBlocksTask(start, mid, results, xBlocks, yBlocks, blockSize, x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, greedy),
+						new MeshBlocksTask(mid,   end, results, xBlocks, yBlocks, blockSize, x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, greedy));
+				return;
+			}
+			
+			int bx = (start % xBlocks) * blockSize;
+			int by = ((start / xBlocks) % yBlocks) * blockSize;
+			int bz = (start / (xBlocks*yBlocks)) * blockSize;
+			int bxSize = Math.min(blockSize, xSize-bx);
+			int bySize = Math.min(blockSize, ySize-by);
+			int bzSize = Math.min(blockSize, zSize-bz);
+			
+			if (greedy) {
+				results[start] = meshGreedy(x1+bx, y1+by, z1+bz, bxSize, bySize, bzSize, getShape, getMaterial, voxelSize);
+			} else {
+				results[start] = mesh(x1+bx, y1+by, z1+bz, bxSize, bySize, bzSize, getShape, getMaterial, voxelSize);
+			}
+		}
+	}
+	
+	/** Receives each face the slice sweep produces, as four corners of {x, y, z, u, v} in counter-clockwise order. The corners array is reused between calls. */
+	@FunctionalInterface
+	private interface FaceConsumer {
+		public void accept(int axis, int direction, Material material, double[] corners);
+	}
+	
+	private static void sweep(
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			boolean merge,
+			@Nullable VoxelPatch occupancy,
+			FaceConsumer consumer) {
+		
+		Material[] mask = new Material[Math.max(xSize*ySize, Math.max(ySize*zSize, xSize*zSize))];
+		double[] corners = new double[20];
+		
+		for(int axis=0; axis<3; axis++) {
+			sweepSlices(axis, -1, x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, merge, occupancy, mask, corners, consumer);
+			sweepSlices(axis,  1, x1, y1, z1, xSize, ySize, zSize, getShape, getMaterial, voxelSize, merge, occupancy, mask, corners, consumer);
+		}
+		
+		//The slices only cover whole voxel faces, so pick up whatever partial shapes have left over
+		int[] bounds = new int[6];
+		for(int brick=firstBrick(occupancy); brick!=-1; brick=nextBrick(occupancy, brick)) {
+			if (!clipBrick(occupancy, brick, x1, y1, z1, xSize, ySize, zSize, bounds)) continue;
+			
+			for(int z=bounds[2]; z<bounds[5]; z++) {
+				for(int y=bounds[1]; y<bounds[4]; y++) {
+					for(int x=bounds[0]; x<bounds[3]; x++) {
+						VoxelShape shape = getShape.apply(x, y, z);
+						if (shape==VoxelShape.EMPTY || shape.isFull()) continue;
+						meshPartial(x, y, z, shape, getMaterial.apply(x, y, z), getShape, voxelSize, corners, consumer);
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Occupancy-aware loops walk a region one occupied brick at a time, straight off the patch's occupied-brick bitset, so empty bricks and
+	 * empty patches cost next to nothing. Without a patch, the whole region counts as a single brick.
+	 */
+	
+	private static int firstBrick(@Nullable VoxelPatch occupancy) {
+		return (occupancy==null) ? 0 : occupancy.nextOccupiedBrick(0);
+	}
+	
+	private static int nextBrick(@Nullable VoxelPatch occupancy, int brick) {
+		return (occupancy==null) ? -1 : occupancy.nextOccupiedBrick(brick+1);
+	}
+	
+	/** The most bricks one layer across the axis can hold */
+	private static int maxLayerBricks(@Nullable VoxelPatch occupancy, int axis) {
+		if (occupancy==null) return 1;
+		int xBricks = occupancy.xBricks();
+		int yBricks = occupancy.yBricks();
+		int zBricks = occupancy.zBricks();
+		if (axis==0) return yBricks*zBricks;
+		if (axis==1) return xBricks*zBricks;
+		return xBricks*yBricks;
+	}
+	
+	/** Which layer of bricks across the axis holds the given world coordinate along it. Without a patch, everything is in layer 0. */
+	private static int brickLayer(@Nullable VoxelPatch occupancy, int axis, int coordinate) {
+		if (occupancy==null) return 0;
+		int offset = (axis==0) ? occupancy.xOffset() : (axis==1) ? occupancy.yOffset() : occupancy.zOffset();
+		return Math.floorDiv(coordinate-offset, VoxelPatch.BRICK_SIZE);
+	}
+	
+	/**
+	 * Writes the occupied bricks of one layer across the axis to result, returning how many there are. A layer is made of runs of consecutive
+	 * brick indices: one run for Z, one run of a column of bricks per brickZ for X, and single bricks for Y.
+	 */
+	private static int gatherLayer(@Nullable VoxelPatch occupancy, int axis, int layer, int[] result) {
+		if (occupancy==null) {
+			result[0] = 0;
+			return 1;
+		}
+		int xBricks = occupancy.xBricks();
+		int yBricks = occupancy.yBricks();
+		int zBricks = occupancy.zBricks();
+		int layers;
+		int layerStride;
+		int runStride;
+		int runLength;
+		int runCount;
+		if (axis==0) {
+			layers = xBricks;
+			layerStride = yBricks;
+			runStride = yBricks*xBricks;
+			runLength = yBricks;
+			runCount = zBricks;
+		} else if (axis==1) {
+			layers = yBricks;
+			layerStride = 1;
+			runStride = yBricks;
+			runLength = 1;
+			runCount = xBricks*zBricks;
+		} else {
+			layers = zBricks;
+			layerStride = yBricks*xBricks;
+			runStride = 0;
+			runLength = yBricks*xBricks;
+			runCount = 1;
+		}
+		if (layer<0 || layer>=layers) return 0;
+		
+		int count = 0;
+		for(int run=0; run<runCount; run++) {
+			int start = layer*layerStride + run*runStride;
+			int end = start+runLength;
+			for(int brick=occupancy.nextOccupiedBrick(start, end); brick!=-1; brick=occupancy.nextOccupiedBrick(brick+1, end)) {
+				result[count++] = brick;
+			}
+		}
+		return count;
+	}
+	
+	/** Writes the part of the region inside the brick to bounds, as {x1, y1, z1, x2, y2, z2} with exclusive upper bounds. Returns false if there isn't any. */
+	private static boolean clipBrick(@Nullable VoxelPatch occupancy, int brick, int x1, int y1, int z1, int xSize, int ySize, int zSize, int[] bounds) {
+		bounds[0] = x1;
+		bounds[1] = y1;
+		bounds[2] = z1;
+		bounds[3] = x1+xSize;
+		bounds[4] = y1+ySize;
+		bounds[5] = z1+zSize;
+		if (occupancy!=null) {
+			int xBricks = occupancy.xBricks();
+			int yBricks = occupancy.yBricks();
+			int bx = occupancy.xOffset() + ((brick / yBricks) % xBricks) * VoxelPatch.BRICK_SIZE;
+			int by = occupancy.yOffset() + (brick % yBricks) * VoxelPatch.BRICK_SIZE;
+			int bz = occupancy.zOffset() + (brick / (yBricks*xBricks)) * VoxelPatch.BRICK_SIZE;
+			bounds[0] = Math.max(bounds[0], bx);
+			bounds[1] = Math.max(bounds[1], by);
+			bounds[2] = Math.max(bounds[2], bz);
+			bounds[3] = Math.min(bounds[3], bx+VoxelPatch.BRICK_SIZE);
+			bounds[4] = Math.min(bounds[4], by+VoxelPatch.BRICK_SIZE);
+			bounds[5] = Math.min(bounds[5], bz+VoxelPatch.BRICK_SIZE);
+		}
+		return bounds[0]<bounds[3] && bounds[1]<bounds[4] && bounds[2]<bounds[5];
+	}
+	
+	/** Returns true if a whole face of the shape is solid and nothing at all covers it, so it can be meshed as one quad */
+	private static boolean isFaceOpen(VoxelShape shape, int face, VoxelShape neighbour) {
+		return shape.isFaceFull(face) && neighbour.getFaceMask(face^1)==0;
+	}
+	
+	private static boolean isPartlyCovered(VoxelShape shape, VoxelShape zMinus, VoxelShape zPlus, VoxelShape yMinus, VoxelShape yPlus, VoxelShape xMinus, VoxelShape xPlus) {
+		return isPartlyCovered(zMinus, NEIGHBOUR_ZPLUS)
+				|| isPartlyCovered(zPlus,  NEIGHBOUR_ZMINUS)
+				|| isPartlyCovered(yMinus, NEIGHBOUR_YPLUS)
+				|| isPartlyCovered(yPlus,  NEIGHBOUR_YMINUS)
+				|| isPartlyCovered(xMinus, NEIGHBOUR_XPLUS)
+				|| isPartlyCovered(xPlus,  NEIGHBOUR_XMINUS);
+	}
+	
+	private static boolean isPartlyCovered(VoxelShape neighbour, int neighbourFace) {
+		int mask = neighbour.getFaceMask(neighbourFace);
+		return mask!=0 && mask!=VoxelShape.FULL_FACE;
+	}
+	
+	/** Emits a quad for each quarter of a whole face of the shape which the neighbour only partly covers. Does nothing for any other face. */
+	private static void meshCoveredQuarters(int x, int y, int z, VoxelShape shape, int face, VoxelShape neighbour, Material material, double voxelSize, double[] corners, FaceConsumer consumer) {
+		if (!shape.isFaceFull(face) || shape.isFaceHidden(face, neighbour)) return;
+		int open = VoxelShape.FULL_FACE & ~neighbour.getFaceMask(face^1);
+		if (open==VoxelShape.FULL_FACE) return;
+		
+		int axis = face >> 1;
+		int side = face & 1;
+		int direction = (side==0) ? -1 : 1;
+		int uAxis = (axis==0) ? 2 : 0;
+		int vAxis = (axis==1) ? 2 : 1;
+		int[] voxel = { x, y, z };
+		double plane = voxel[axis] + side;
+		for(int quarter=0; quarter<4; quarter++) {
+			if ((open & (1 << quarter))==0) continue;
+			double u1 = voxel[uAxis] + (quarter & 1) * 0.5;
+			double v1 = voxel[vAxis] + (quarter >> 1) * 0.5;
+			corners(axis, direction,
+					plane*voxelSize,
+					u1*voxelSize, v1*voxelSize,
+					(u1+0.5)*voxelSize, (v1+0.5)*voxelSize,
+					(u1-voxel[uAxis])*voxelSize, (v1-voxel[vAxis])*voxelSize,
+					0.5*voxelSize, 0.5*voxelSize,
+					voxelSize, voxelSize,
+					corners);
+			consumer.accept(axis, direction, material, corners);
+		}
+	}
+	
+	/**
+	 * Emits the faces of a partial shape which the whole-face passes can't: every face of a solid octant which doesn't rest against another solid
+	 * octant, in this voxel or the next, apart from faces lying on a side of the voxel the shape covers completely. Those were already meshed
+	 * (or culled) as whole faces.
+	 */
+	private static void meshPartial(int x, int y, int z, VoxelShape shape, Material material, VecFunction<VoxelShape> getShape, double voxelSize, double[] corners, FaceConsumer consumer) {
+		VoxelShape[] neighbours = new VoxelShape[6];
+		int[] octant = new int[3];
+		int[] voxel = { x, y, z };
+		
+		for(int i=0; i<8; i++) {
+			octant[0] = (i >> 1) & 1;
+			octant[1] = i & 1;
+			octant[2] = (i >> 2) & 1;
+			if (!shape.hasOctant(octant[0], octant[1], octant[2])) continue;
+			
+			for(int face=0; face<6; face++) {
+				int axis = face >> 1;
+				int side = face & 1;
+				int direction = (side==0) ? -1 : 1;
+				
+				//Find the octant on the other side of this face, which is either in this voxel or mirrored into the neighbouring one
+				int[] across = { octant[0], octant[1], octant[2] };
+				across[axis] = 1-octant[axis];
+				if (octant[axis]!=side) {
+					if (shape.hasOctant(across[0], across[1], across[2])) continue;
+				} else {
+					if (shape.isFaceFull(face)) continue;
+					if (neighbours[face]==null) {
+						neighbours[face] = getShape.apply(
+								x + ((axis==0) ? direction : 0),
+								y + ((axis==1) ? direction : 0),
+								z + ((axis==2) ? direction : 0));
+					}
+					if (neighbours[face].hasOctant(across[0], across[1], across[2])) continue;
+				}
+				
+				int uAxis = (axis==0) ? 2 : 0;
+				int vAxis = (axis==1) ? 2 : 1;
+				double plane = voxel[axis] + (octant[axis] + side) * 0.5;
+				double u1 = voxel[uAxis] + octant[uAxis] * 0.5;
+				double v1 = voxel[vAxis] + octant[vAxis] * 0.5;
+				corners(axis, direction,
+						plane*voxelSize,
+						u1*voxelSize, v1*voxelSize,
+						(u1+0.5)*voxelSize, (v1+0.5)*voxelSize,
+						(u1-voxel[uAxis])*voxelSize, (v1-voxel[vAxis])*voxelSize,
+						0.5*voxelSize, 0.5*voxelSize,
+						voxelSize, voxelSize,
+						corners);
+				consumer.accept(axis, direction, material, corners);
+			}
+		}
+	}
 	
+	/**
+	 * Sweeps every slice along one axis, collecting the faces which point in one direction into a 2D mask and then carving that mask into rectangles.
+	 * X faces are laid out with u along Z and v along Y; Y faces with u along X and v along Z; Z faces with u along X and v along Y. This matches the
+	 * UV directions the naive mesher uses for single faces. If {@code merge} is false, every rectangle is a single voxel face.
+	 */
+	private static void sweepSlices(
+			int axis, int direction,
+			int x1, int y1, int z1, int xSize, int ySize, int zSize,
+			VecFunction<VoxelShape> getShape,
+			VecFunction<Material> getMaterial,
+			double voxelSize,
+			boolean merge,
+			@Nullable VoxelPatch occupancy,
+			Material[] mask,
+			double[] corners,
+			FaceConsumer consumer) {
+		
+		int[] size = { xSize, ySize, zSize };
+		int[] origin = { x1, y1, z1 };
+		int uAxis = (axis==0) ? 2 : 0;
+		int vAxis = (axis==1) ? 2 : 1;
+		int uSize = size[uAxis];
+		int vSize = size[vAxis];
+		
+		int dx = (axis==0) ? direction : 0;
+		int dy = (axis==1) ? direction : 0;
+		int dz = (axis==2) ? direction : 0;
+		int face = axis*2 + ((direction>0) ? 1 : 0);
+		
+		int[] pos = new int[3];
+		int[] bounds = new int[6];
+		int[] layerBricks = new int[maxLayerBricks(occupancy, axis)];
+		int layerCount = 0;
+		int layer = Integer.MIN_VALUE;
+		for(int slice=0; slice<size[axis]; slice++) {
+			pos[axis] = slice;
+			
+			//Only the layer of bricks this slice passes through can have faces in it. Its occupied bricks are gathered once, on its first slice.
+			int sliceLayer = brickLayer(occupancy, axis, origin[axis]+slice);
+			if (sliceLayer!=layer) {
+				layer = sliceLayer;
+				layerCount = gatherLayer(occupancy, axis, layer, layerBricks);
+			}
+			
+			//Collect the exposed faces in this slice
+			Arrays.fill(mask, 0, uSize*vSize, null);
+			for(int i=0; i<layerCount; i++) {
+				if (!clipBrick(occupancy, layerBricks[i], x1, y1, z1, xSize, ySize, zSize, bounds)) continue;
+				
+				for(int v=bounds[vAxis]-origin[vAxis]; v<bounds[vAxis+3]-origin[vAxis]; v++) {
+					pos[vAxis] = v;
+					for(int u=bounds[uAxis]-origin[uAxis]; u<bounds[uAxis+3]-origin[uAxis]; u++) {
+						pos[uAxis] = u;
+						int x = x1+pos[0];
+						int y = y1+pos[1];
+						int z = z1+pos[2];
+						
+						Material material = null;
+						VoxelShape shape = getShape.apply(x, y, z);
+						if (shape.isFaceFull(face)) {
+							VoxelShape neighbour = getShape.apply(x+dx, y+dy, z+dz);
+							if (isFaceOpen(shape, face, neighbour)) {
+								material = getMaterial.apply(x, y, z);
+							} else if (!shape.isFaceHidden(face, neighbour)) {
+								//Partly covered faces can't join a merged rectangle, so their open quarters go out on their own
+								meshCoveredQuarters(x, y, z, shape, face, neighbour, getMaterial.apply(x, y, z), voxelSize, corners, consumer);
+							}
+						}
+						mask[u + v*uSize] = material;
+					}
+				}
+			}
+			
+			//Carve the mask into rectangles: grow each one as wide as it will go, then as tall as the whole width allows
+			double plane = origin[axis] + slice + ((direction>0) ? 1 : 0);
+			for(int v=0; v<vSize; v++) {
+				int u = 0;
+				while(u<uSize) {
+					Material material = mask[u + v*uSize];
+					if (material==null) {
+						u++;
+						continue;
+					}
+					
+					int width = 1;
+					int height = 1;
+					if (merge) {
+						while(u+width<uSize && material.equals(mask[u+width + v*uSize])) width++;
+						
+						grow:
+						while(v+height<vSize) {
+							for(int i=0; i<width; i++) {
+								if (!material.equals(mask[u+i + (v+height)*uSize])) break grow;
+							}
+							height++;
+						}
+						
+						for(int j=0; j<height; j++) {
+							for(int i=0; i<width; i++) {
+								mask[u+i + (v+j)*uSize] = null;
+							}
+						}
+					}
+					
+					double uStart = origin[uAxis] + u;
+					double vStart = origin[vAxis] + v;
+					corners(axis, direction,
+							plane*voxelSize,
+							uStart*voxelSize, vStart*voxelSize,
+							(uStart+width)*voxelSize, (vStart+height)*voxelSize,
+							width*voxelSize, height*voxelSize,
+							corners);
+					consumer.accept(axis, direction, material, corners);
+					
+					u += width;
+				}
+			}
+		}
+	}
+	
+	/** Lays out the four corners of one face. Corner order and UV orientation for each direction mirror the single-voxel faces in the naive mesher. */
+	private static void corners(int axis, int direction, double p, double u1, double v1, double u2, double v2, double uvWidth, double uvHeight, double[] out) {
+		corners(axis, direction, p, u1, v1, u2, v2, 0, 0, uvWidth, uvHeight, uvWidth, uvHeight, out);
+	}
+	
+	/**
+	 * Lays out the four corners of a piece of a larger face, giving the piece the part of the larger face's UVs that it covers, so that pieces
+	 * of one face tile the same texture the whole face would have.
+	 * @param uOffset how far the piece's u1 edge is from the larger face's u1 edge, in world units
+	 * @param vOffset how far the piece's v1 edge is from the larger face's v1 edge, in world units
+	 * @param uvWidth the piece's UV width
+	 * @param uvHeight the piece's UV height
+	 * @param faceWidth the larger face's UV width
+	 * @param faceHeight the larger face's UV height
+	 */
+	private static void corners(int axis, int direction, double p, double u1, double v1, double u2, double v2,
+			double uOffset, double vOffset, double uvWidth, double uvHeight, double faceWidth, double faceHeight, double[] out) {
+		//Most faces count UVs up along u and v, but some run backwards, and those measure the piece's offset from the other edge
+		boolean uForwards = (axis==0) ? direction<0 : (axis==2 && direction>0);
+		boolean vForwards = !(axis==1 && direction<0);
+		double uLo = uForwards ? uOffset : faceWidth - uOffset - uvWidth;
+		double vLo = vForwards ? vOffset : faceHeight - vOffset - uvHeight;
+		double uHi = uLo + uvWidth;
+		double vHi = vLo + uvHeight;
+		
+		if (axis==0) {
+			if (direction<0) {
+				//X-
+				corner(out,  0, p, v2, u2, uHi, vHi);
+				corner(out,  5, p, v2, u1, uLo, vHi);
+				corner(out, 10, p, v1, u1, uLo, vLo);
+				corner(out, 15, p, v1, u2, uHi, vLo);
+			} else {
+				//X+
+				corner(out,  0, p, v1, u1, uHi, vLo);
+				corner(out,  5, p, v2, u1, uHi, vHi);
+				corner(out, 10, p, v2, u2, uLo, vHi);
+				corner(out, 15, p, v1, u2, uLo, vLo);
+			}
+		} else if (axis==1) {
+			if (direction<0) {
+				//Y-
+				corner(out,  0, u2, p, v2, uLo, vLo);
+				corner(out,  5, u1, p, v2, uHi, vLo);
+				corner(out, 10, u1, p, v1, uHi, vHi);
+				corner(out, 15, u2, p, v1, uLo, vHi);
+			} else {
+				//Y+
+				corner(out,  0, u1, p, v1, uHi, vLo);
+				corner(out,  5, u1, p, v2, uHi, vHi);
+				corner(out, 10, u2, p, v2, uLo, vHi);
+				corner(out, 15, u2, p, v1, uLo, vLo);
+			}
+		} else {
+			if (direction<0) {
+				//Z-
+				corner(out,  0, u1, v1, p, uHi, vLo);
+				corner(out,  5, u1, v2, p, uHi, vHi);
+				corner(out, 10, u2, v2, p, uLo, vHi);
+				corner(out, 15, u2, v1, p, uLo, vLo);
+			} else {
+				//Z+
+				corner(out,  0, u2, v2, p, uHi, vHi);
+				corner(out,  5, u1, v2, p, uLo, vHi);
+				corner(out, 10, u1, v1, p, uLo, vLo);
+				corner(out, 15, u2, v1, p, uHi, vLo);
+			}
+		}
+	}
+	
+	private static void corner(double[] out, int ofs, double x, double y, double z, double u, double v) {
+		out[ofs  ] = x;
+		out[ofs+1] = y;
+		out[ofs+2] = z;
+		out[ofs+3] = u;
+		out[ofs+4] = v;
+	}
+	
+	private static Vector3dc normalFor(int axis, int direction) {
+		switch(axis) {
+			case 0: return (direction<0) ? VEC_XMINUS : VEC_XPLUS;
+			case 1: return (direction<0) ? VEC_YMINUS : VEC_YPLUS;
+			default: return (direction<0) ? VEC_ZMINUS : VEC_ZPLUS;
+		}
+	}
+	
+	private static Vertex vertex(double[] corners, int ofs, Vector3dc normal) {
+		Vertex result = new Vertex(new Vector3d(corners[ofs], corners[ofs+1], corners[ofs+2]), new Vector2d(corners[ofs+3], corners[ofs+4]));
+		result.putMaterialAttribute(MaterialAttribute.NORMAL, normal);
+		return result;
+	}
 }
@@ -0,0 +1,117 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A triangle mesh where each distinct Vertex is stored once and triangles refer to vertices by index. Unlike {@link Mesh}, whose faces each own
+ * their vertices, shared corners here are only stored (and later uploaded) once.
+ */
+public class IndexedMesh {
+	private Material material = Material.BLANK;
+	private ArrayList<Vertex> vertices = new ArrayList<>();
+	private int[] indices = new int[96];
+	private int indexCount = 0;
+	
+	public Material getMaterial() { return material; }
+	
+	public void setMaterial(Material material) {
+		this.material = material;
+	}
+	
+	public int getVertexCount() {
+		return vertices.size();
+	}
+	
+	public Vertex getVertex(int index) {
+		return vertices.get(index);
+	}
+	
+	/** Adds a vertex without checking for duplicates, and returns its index */
+	public int addVertex(Vertex vertex) {
+		vertices.add(vertex);
+		return vertices.size()-1;
+	}
+	
+	public int getIndexCount() {
+		return indexCount;
+	}
+	
+	public int getTriangleCount() {
+		return indexCount/3;
+	}
+	
+	public int getIndex(int i) {
+		if (i<0 || i>=indexCount) throw new IndexOutOfBoundsException("Index "+i+" is out of bounds for "+indexCount+" indices");
+		return indices[i];
+	}
+	
+	/** Gets the raw index array, three entries per triangle. Only the first {@link #getIndexCount()} entries are meaningful. */
+	public int[] getIndices() {
+		return indices;
+	}
+	
+	/** Adds a counter-clockwise triangle between three vertices which have already been added */
+	public void addTriangle(int a, int b, int c) {
+		int vertexCount = vertices.size();
+		if (a<0 || b<0 || c<0 || a>=vertexCount || b>=vertexCount || c>=vertexCount) throw new IndexOutOfBoundsException("Triangle refers to a vertex which doesn't exist");
+		if (indexCount+3>indices.length) indices = Arrays.copyOf(indices, indices.length*2);
+		indices[indexCount++] = a;
+		indices[indexCount++] = b;
+		indices[indexCount++] = c;
+	}
+	
+	public boolean isEmpty() {
+		return indexCount==0;
+	}
+	
+	/** Moves vertex {@code i} to slot {@code remap[i]}. The indices must already refer to the new slots. */
+	void remapVertices(int[] remap) {
+		Vertex[] reordered = new Vertex[vertices.size()];
+		for(int i=0; i<reordered.length; i++) reordered[remap[i]] = vertices.get(i);
+		for(int i=0; i<reordered.length; i++) vertices.set(i, reordered[i]);
+	}
+	
+	/**
+	 * Builds an IndexedMesh from a Mesh, welding together every vertex which is {@link Vertex#equals(Object) equal} to another. Faces with more
+	 * than three vertices are split into a triangle fan, the same way {@code MeshFlattener} splits them.
+	 */
+	public static IndexedMesh of(Mesh mesh) {
+		IndexedMesh result = new IndexedMesh();
+		result.setMaterial(mesh.getMaterial());
+		
+		HashMap<Vertex, Integer> welded = new HashMap<>(mesh.getFaceCount()*2);
+		for(Face face : mesh.faces()) {
+			if (face.vertexCount()<3) continue;
+			Iterator<Vertex> iterator = face.iterator();
+			int first = result.weld(iterator.next(), welded);
+			int prev = result.weld(iterator.next(), welded);
+			while(iterator.hasNext()) {
+				int cur = result.weld(iterator.next(), welded);
+				result.addTriangle(first, prev, cur);
+				prev = cur;
+			}
+		}
+		
+		return result;
+	}
+	
+	private int weld(Vertex vertex, HashMap<Vertex, Integer> welded) {
+		Integer existing = welded.get(vertex);
+		if (existing!=null) return existing;
+		int index = addVertex(vertex);
+		welded.put(vertex, index);
+		return index;
+	}
+}
@@ -122,6 +122,15 @@ public class MaterialAttribute<T> {
 	public static MaterialAttribute<String> SMOOTHNESS_TEXTURE_ID = new MaterialAttribute<>("smoothnessTextureId", String.class, "untitled");
 	
 	
+	/*
+	 * Voxel attributes
+	 * These attributes are baked into voxel meshes, and usually only make sense per-vertex.
+	 */
+	
+	/** Flood-filled voxel light at this vertex, with sky light in x and block light in y, each scaled from 0 to 1. */
+	public static MaterialAttribute<Vector2dc> VOXEL_LIGHT = new MaterialAttribute<>("voxelLight", Vector2dc.class, new Vector2d(1, 0));
+	
+	
 	/*
 	 * Environment attributes
 	 * These attributes tend to get used to describe general scene-wide or BoundingVolume-wide lighting and fog conditions rather than specific materials or vertices.
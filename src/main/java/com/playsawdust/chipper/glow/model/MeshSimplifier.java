@@ -0,0 +1,685 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Reduces triangle counts with Garland and Heckbert's quadric error metrics. Each vertex accumulates the planes of the triangles around it,
+ * and edges are collapsed cheapest-first, where the cost is the sum of squared distances from the collapsed vertex to those planes.
+ *
+ * <p>Collapses always move one position onto the position at the other end of an edge, so every surviving vertex lands on a position the
+ * original mesh had. Vertices which share a position but not their other attributes (a UV or normal seam, or the hard edges of a flat-shaded
+ * or voxel mesh) always move together: each one that has an edge to the destination merges into the vertex there, and the rest move onto the
+ * destination keeping their own normal, UV and other attributes. Borders, the link condition and flipped triangles are all checked by position,
+ * counting every side of a seam, so seams never tear open and faces which share no vertices still simplify. Vertices on an open border only
+ * slide along that border.
+ */
+public class MeshSimplifier {
+	/** How much more a border's constraint planes weigh than an ordinary triangle's plane */
+	private static final double BORDER_WEIGHT = 10.0;
+	/** The same for a seam's, which only stretches attributes when it moves rather than changing the mesh's outline */
+	private static final double SEAM_WEIGHT = 1.0;
+	/** Collapses which would turn a triangle's normal by more than this (as a cosine) are rejected */
+	private static final double MIN_NORMAL_DOT = 0.2;
+	/** Returned by seamTarget when a vertex has edges to more than one vertex at the destination */
+	private static final int AMBIGUOUS = -2;
+	
+	/**
+	 * Simplifies a PackedMesh, returning a new one. The original is left alone.
+	 * @param targetTriangles the triangle count to stop at. The result may have more if no further collapses are allowed.
+	 * @param maxError the largest quadric error, in squared world units, any single collapse may have. Use Double.POSITIVE_INFINITY for no limit.
+	 */
+	public static PackedMesh simplify(PackedMesh mesh, int targetTriangles, double maxError) {
+		return new Simplification(mesh).run(targetTriangles, maxError);
+	}
+	
+	/** Simplifies a PackedMesh down to roughly {@code ratio} of its triangles, returning a new one */
+	public static PackedMesh simplify(PackedMesh mesh, double ratio) {
+		return simplify(mesh, (int) (mesh.getTriangleCount()*ratio), Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Simplifies a Mesh down to roughly {@code ratio} of its triangles, returning a new Mesh of triangles.
+	 * @param extraAttributes per-vertex attributes to carry over besides position, normal, and UV. Others are dropped from the result.
+	 */
+	public static Mesh simplify(Mesh mesh, double ratio, MaterialAttribute<?>... extraAttributes) {
+		return simplify(PackedMesh.of(mesh, extraAttributes), ratio).toMesh();
+	}
+	
+	/**
+	 * Builds a chain of successively simpler versions of a Model. Level 0 is the original Model itself; each level after it has roughly
+	 * {@code ratio} of the triangles of the level before.
+	 * @param levels the total number of levels, including the original
+	 * @param extraAttributes per-vertex attributes to carry over besides position, normal, and UV
+	 */
+	public static List<Model> buildLODChain(Model model, int levels, double ratio, MaterialAttribute<?>... extraAttributes) {
+		if (levels<1) throw new IllegalArgumentException("An LOD chain needs at least one level");
+		ArrayList<Model> result = new ArrayList<>(levels);
+		result.add(model);
+		if (levels==1) return result;
+		
+		ArrayList<PackedMesh> current = new ArrayList<>();
+		for(Mesh mesh : model) current.add(PackedMesh.of(mesh, extraAttributes));
+		
+		for(int level=1; level<levels; level++) {
+			Model lod = new Model();
+			for(int i=0; i<current.size(); i++) {
+				PackedMesh simpler = simplify(current.get(i), ratio);
+				current.set(i, simpler);
+				if (!simpler.isEmpty()) lod.addMesh(simpler.toMesh());
+			}
+			result.add(lod);
+		}
+		return result;
+	}
+	
+	private static class Simplification {
+		private final PackedMesh mesh;
+		private final float[] positions;
+		private final int vertexCount;
+		private final int[] triangles;
+		private final int triangleCount;
+		private final boolean[] deadTriangle;
+		private int liveTriangles;
+		
+		/** Ten unique entries of each vertex's symmetric 4x4 quadric */
+		private final double[] quadrics;
+		private final IntList[] vertexTriangles;
+		/** Each vertex's next vertex at the same position, in a ring. Vertices alone at their position point at themselves. */
+		private final int[] seamNext;
+		/** The lowest vertex index at each vertex's position, so vertices on either side of a seam can be told apart from vertices elsewhere */
+		private final int[] positionId;
+		/** Whether each position lies on an open edge of the whole surface, indexed by positionId */
+		private final boolean[] border;
+		private final boolean[] removed;
+		private final int[] version;
+		
+		private final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+		private final IntList scratchA = new IntList();
+		private final IntList scratchB = new IntList();
+		private final IntList scratchC = new IntList();
+		private final IntList pairs = new IntList();
+		private final double[] scratchQuadric = new double[10];
+		
+		public Simplification(PackedMesh mesh) {
+			//Vertices move during simplification, so work on a copy and leave the caller's mesh alone
+			this.mesh = mesh.copy();
+			this.positions = this.mesh.getPositions();
+			this.vertexCount = mesh.getVertexCount();
+			this.triangleCount = mesh.getTriangleCount();
+			this.triangles = Arrays.copyOf(mesh.getIndices(), triangleCount*3);
+			this.deadTriangle = new boolean[triangleCount];
+			this.liveTriangles = triangleCount;
+			
+			quadrics = new double[vertexCount*10];
+			vertexTriangles = new IntList[vertexCount];
+			for(int v=0; v<vertexCount; v++) vertexTriangles[v] = new IntList();
+			seamNext = new int[vertexCount];
+			positionId = new int[vertexCount];
+			border = new boolean[vertexCount];
+			removed = new boolean[vertexCount];
+			version = new int[vertexCount];
+			
+			for(int t=0; t<triangleCount; t++) {
+				for(int k=0; k<3; k++) vertexTriangles[triangles[t*3+k]].add(t);
+				addTriangleQuadric(t);
+			}
+			findSeams();
+			findBorders();
+			shareSeamQuadrics();
+		}
+		
+		public PackedMesh run(int targetTriangles, double maxError) {
+			for(int t=0; t<triangleCount; t++) {
+				for(int k=0; k<3; k++) {
+					int a = triangles[t*3+k];
+					int b = triangles[t*3+(k+1)%3];
+					if (a<b) {
+						//Each interior edge is seen from both of its triangles; only push it from one of them
+						offer(a, b);
+						offer(b, a);
+					} else if (countShared(a, b)==1) {
+						offer(a, b);
+						offer(b, a);
+					}
+				}
+			}
+			
+			while(liveTriangles>targetTriangles && !queue.isEmpty()) {
+				Candidate candidate = queue.poll();
+				if (candidate.cost>maxError) break;
+				int from = candidate.from;
+				int to = candidate.to;
+				if (removed[from] || removed[to] || version[from]!=candidate.fromVersion || version[to]!=candidate.toVersion) continue;
+				tryCollapse(from, to);
+			}
+			
+			int[] remaining = new int[liveTriangles*3];
+			int count = 0;
+			for(int t=0; t<triangleCount; t++) {
+				if (deadTriangle[t]) continue;
+				remaining[count++] = triangles[t*3];
+				remaining[count++] = triangles[t*3+1];
+				remaining[count++] = triangles[t*3+2];
+			}
+			return mesh.subset(remaining, count);
+		}
+		
+		private void offer(int from, int to) {
+			double cost = error(from, to);
+			queue.add(new Candidate(from, to, version[from], version[to], cost));
+		}
+		
+		/** The quadric error of moving {@code from} onto {@code to}, using both vertices' combined quadrics */
+		private double error(int from, int to) {
+			double x = positions[to*3];
+			double y = positions[to*3+1];
+			double z = positions[to*3+2];
+			int a = from*10;
+			int b = to*10;
+			double q0 = quadrics[a  ]+quadrics[b  ];
+			double q1 = quadrics[a+1]+quadrics[b+1];
+			double q2 = quadrics[a+2]+quadrics[b+2];
+			double q3 = quadrics[a+3]+quadrics[b+3];
+			double q4 = quadrics[a+4]+quadrics[b+4];
+			double q5 = quadrics[a+5]+quadrics[b+5];
+			double q6 = quadrics[a+6]+quadrics[b+6];
+			double q7 = quadrics[a+7]+quadrics[b+7];
+			double q8 = quadrics[a+8]+quadrics[b+8];
+			double q9 = quadrics[a+9]+quadrics[b+9];
+			return q0*x*x + 2*q1*x*y + 2*q2*x*z + 2*q3*x
+					+ q4*y*y + 2*q5*y*z + 2*q6*y
+					+ q7*z*z + 2*q8*z
+					+ q9;
+		}
+		
+		private boolean canCollapse(int from, int to) {
+			if (samePosition(from, to)) return countShared(from, to)>0;
+			
+			//Everything below is checked by position, counting every side of a seam, or the sides could tear apart or fold over each other
+			int between = countSharedPositions(from, to);
+			if (between==0) return false;
+			
+			//Border vertices may only slide along the border, or the outline of the mesh would shrink
+			if (border[positionId[from]] && between!=1) return false;
+			
+			//Link condition: the only neighbours the two may share are the far corners of the triangles between them
+			gatherNeighbourPositions(from, scratchA);
+			gatherNeighbourPositions(to, scratchB);
+			int common = 0;
+			for(int i=0; i<scratchA.size; i++) {
+				if (scratchB.contains(scratchA.data[i])) common++;
+			}
+			if (common!=countApexPositions(from, to)) return false;
+			//Two positions with nothing around them but each other and two apexes are an edge of a tetrahedron, which would fold into a doubled triangle
+			if (scratchA.size==3 && scratchB.size==3) return false;
+			
+			int u = from;
+			do {
+				IntList around = vertexTriangles[u];
+				for(int i=0; i<around.size; i++) {
+					int t = around.data[i];
+					if (deadTriangle[t]) continue;
+					int other = apexOf(t, from, to);
+					if (other!=-1) {
+						//Triangles between the two positions vanish. If one of them holds up a border, that would open a crack.
+						if (countSharedPositions(from, other)==1 || countSharedPositions(to, other)==1) return false;
+					} else if (!keepsOrientation(t, u, to)) {
+						//Don't flip or crush any triangle which survives the collapse
+						return false;
+					}
+				}
+				u = seamNext[u];
+			} while(u!=from);
+			return true;
+		}
+		
+		/**
+		 * Collapses from onto to. Every other vertex at from's position goes along with it, so the seam moves as one: those with an edge to a vertex
+		 * at to's position collapse onto it, and the rest move to to's position. Returns false, changing nothing, if the collapse isn't allowed.
+		 */
+		private boolean tryCollapse(int from, int to) {
+			if (!canCollapse(from, to)) return false;
+			if (samePosition(from, to)) {
+				//Nothing moves, so nothing at this position can tear
+				collapse(from, to);
+				touch(to);
+				return true;
+			}
+			
+			pairs.clear();
+			int partner = from;
+			do {
+				int target = seamTarget(partner, to);
+				if (target==AMBIGUOUS) return false;
+				pairs.add(partner);
+				pairs.add(target);
+				partner = seamNext[partner];
+			} while(partner!=from);
+			
+			//Everything at each position carries the same quadric, and everything at to's position ends up with the sum of both
+			for(int i=0; i<10; i++) scratchQuadric[i] = quadrics[from*10+i] + quadrics[to*10+i];
+			for(int i=0; i<pairs.size; i+=2) {
+				if (pairs.data[i+1]==-1) {
+					move(pairs.data[i], to);
+				} else {
+					collapse(pairs.data[i], pairs.data[i+1]);
+				}
+			}
+			int v = to;
+			do {
+				System.arraycopy(scratchQuadric, 0, quadrics, v*10, 10);
+				touch(v);
+				v = seamNext[v];
+			} while(v!=to);
+			return true;
+		}
+		
+		/**
+		 * Finds the vertex at to's position which partner shares an edge with. Returns -1 if there isn't one, or AMBIGUOUS if there's more than
+		 * one, since whichever it didn't collapse onto would be left with crushed triangles.
+		 */
+		private int seamTarget(int partner, int to) {
+			int result = -1;
+			int target = to;
+			do {
+				if (countShared(partner, target)>0) {
+					if (result!=-1) return AMBIGUOUS;
+					result = target;
+				}
+				target = seamNext[target];
+			} while(target!=to);
+			return result;
+		}
+		
+		/** Moves from's triangles onto to and drops from. Quadrics and the queue are left for the caller. */
+		private void collapse(int from, int to) {
+			IntList around = vertexTriangles[from];
+			for(int i=0; i<around.size; i++) {
+				int t = around.data[i];
+				if (deadTriangle[t]) continue;
+				if (containsVertex(t, to)) {
+					deadTriangle[t] = true;
+					liveTriangles--;
+				} else {
+					for(int k=0; k<3; k++) {
+						if (triangles[t*3+k]==from) triangles[t*3+k] = to;
+					}
+					vertexTriangles[to].add(t);
+				}
+			}
+			around.clear();
+			removed[from] = true;
+			unlink(from);
+		}
+		
+		/** Moves v, which has no edge to anything at to's position, onto to's position and into its seam ring. Its triangles come along. */
+		private void move(int v, int to) {
+			unlink(v);
+			positions[v*3  ] = positions[to*3  ];
+			positions[v*3+1] = positions[to*3+1];
+			positions[v*3+2] = positions[to*3+2];
+			positionId[v] = positionId[to];
+			seamNext[v] = seamNext[to];
+			seamNext[to] = v;
+		}
+		
+		/** Takes v out of its seam ring */
+		private void unlink(int v) {
+			int previous = v;
+			while(seamNext[previous]!=v) previous = seamNext[previous];
+			seamNext[previous] = seamNext[v];
+			seamNext[v] = v;
+		}
+		
+		/** Invalidates every queued collapse touching v, and queues fresh ones */
+		private void touch(int v) {
+			version[v]++;
+			gatherNeighbours(v, scratchA);
+			for(int i=0; i<scratchA.size; i++) {
+				int neighbour = scratchA.data[i];
+				offer(v, neighbour);
+				offer(neighbour, v);
+			}
+		}
+		
+		private boolean samePosition(int a, int b) {
+			return positions[a*3]==positions[b*3] && positions[a*3+1]==positions[b*3+1] && positions[a*3+2]==positions[b*3+2];
+		}
+		
+		private boolean keepsOrientation(int t, int from, int to) {
+			float[] p = positions;
+			int a = triangles[t*3];
+			int b = triangles[t*3+1];
+			int c = triangles[t*3+2];
+			double oldX = normalX(p, a, b, c);
+			double oldY = normalY(p, a, b, c);
+			double oldZ = normalZ(p, a, b, c);
+			if (a==from) a = to;
+			if (b==from) b = to;
+			if (c==from) c = to;
+			double newX = normalX(p, a, b, c);
+			double newY = normalY(p, a, b, c);
+			double newZ = normalZ(p, a, b, c);
+			
+			double oldLength = Math.sqrt(oldX*oldX + oldY*oldY + oldZ*oldZ);
+			double newLength = Math.sqrt(newX*newX + newY*newY + newZ*newZ);
+			if (newLength<=1e-12) return false;
+			if (oldLength<=1e-12) return true; //Already degenerate; collapsing can only help
+			return (oldX*newX + oldY*newY + oldZ*newZ) >= MIN_NORMAL_DOT*oldLength*newLength;
+		}
+		
+		private void addTriangleQuadric(int t) {
+			int a = triangles[t*3];
+			int b = triangles[t*3+1];
+			int c = triangles[t*3+2];
+			double nx = normalX(positions, a, b, c);
+			double ny = normalY(positions, a, b, c);
+			double nz = normalZ(positions, a, b, c);
+			double length = Math.sqrt(nx*nx + ny*ny + nz*nz);
+			if (length<=1e-12) return;
+			
+			//Weight each plane by the triangle's area, so big flat triangles count for more than slivers
+			double area = length*0.5;
+			nx /= length;
+			ny /= length;
+			nz /= length;
+			double d = -(nx*positions[a*3] + ny*positions[a*3+1] + nz*positions[a*3+2]);
+			for(int k=0; k<3; k++) addPlane(triangles[t*3+k], nx, ny, nz, d, area);
+		}
+		
+		private void addPlane(int v, double a, double b, double c, double d, double weight) {
+			int i = v*10;
+			quadrics[i  ] += weight*a*a;
+			quadrics[i+1] += weight*a*b;
+			quadrics[i+2] += weight*a*c;
+			quadrics[i+3] += weight*a*d;
+			quadrics[i+4] += weight*b*b;
+			quadrics[i+5] += weight*b*c;
+			quadrics[i+6] += weight*b*d;
+			quadrics[i+7] += weight*c*c;
+			quadrics[i+8] += weight*c*d;
+			quadrics[i+9] += weight*d*d;
+		}
+		
+		/** Links every vertex which shares its exact position with others into a ring, since that's a seam in some attribute */
+		private void findSeams() {
+			HashMap<PositionKey, Integer> last = new HashMap<>(vertexCount*2);
+			for(int v=0; v<vertexCount; v++) {
+				PositionKey key = new PositionKey(positions[v*3], positions[v*3+1], positions[v*3+2]);
+				Integer other = last.put(key, v);
+				if (other==null) {
+					seamNext[v] = v;
+					positionId[v] = v;
+				} else {
+					seamNext[v] = seamNext[other];
+					seamNext[other] = v;
+					positionId[v] = positionId[other];
+				}
+			}
+		}
+		
+		/** Gives every vertex in a seam ring the sum of the ring's quadrics, so a seam is priced by the planes on all of its sides */
+		private void shareSeamQuadrics() {
+			boolean[] done = new boolean[vertexCount];
+			for(int v=0; v<vertexCount; v++) {
+				if (done[v] || seamNext[v]==v) continue;
+				Arrays.fill(scratchQuadric, 0);
+				int u = v;
+				do {
+					for(int i=0; i<10; i++) scratchQuadric[i] += quadrics[u*10+i];
+					u = seamNext[u];
+				} while(u!=v);
+				do {
+					System.arraycopy(scratchQuadric, 0, quadrics, u*10, 10);
+					done[u] = true;
+					u = seamNext[u];
+				} while(u!=v);
+			}
+		}
+		
+		/**
+		 * Marks the positions on open edges of the whole surface, and adds planes which hold the edges of each seam-separated piece where they
+		 * are, so seams (and the outline) are expensive to move across
+		 */
+		private void findBorders() {
+			for(int t=0; t<triangleCount; t++) {
+				for(int k=0; k<3; k++) {
+					int a = triangles[t*3+k];
+					int b = triangles[t*3+(k+1)%3];
+					if (countShared(a, b)!=1) continue;
+					boolean outline = countSharedPositions(a, b)==1;
+					if (outline) {
+						border[positionId[a]] = true;
+						border[positionId[b]] = true;
+					}
+					
+					//A plane through the edge, perpendicular to the triangle
+					int c = triangles[t*3+(k+2)%3];
+					double nx = normalX(positions, a, b, c);
+					double ny = normalY(positions, a, b, c);
+					double nz = normalZ(positions, a, b, c);
+					double ex = positions[b*3  ]-positions[a*3  ];
+					double ey = positions[b*3+1]-positions[a*3+1];
+					double ez = positions[b*3+2]-positions[a*3+2];
+					double px = ey*nz - ez*ny;
+					double py = ez*nx - ex*nz;
+					double pz = ex*ny - ey*nx;
+					double length = Math.sqrt(px*px + py*py + pz*pz);
+					if (length<=1e-12) continue;
+					px /= length;
+					py /= length;
+					pz /= length;
+					double d = -(px*positions[a*3] + py*positions[a*3+1] + pz*positions[a*3+2]);
+					double weight = ((outline) ? BORDER_WEIGHT : SEAM_WEIGHT) * (ex*ex + ey*ey + ez*ez);
+					addPlane(a, px, py, pz, d, weight);
+					addPlane(b, px, py, pz, d, weight);
+				}
+			}
+		}
+		
+		/** Counts the live triangles which use both vertices */
+		private int countShared(int a, int b) {
+			int count = 0;
+			IntList around = vertexTriangles[a];
+			for(int i=0; i<around.size; i++) {
+				int t = around.data[i];
+				if (!deadTriangle[t] && containsVertex(t, b)) count++;
+			}
+			return count;
+		}
+		
+		/** Counts the live triangles with one corner at a's position and another at b's */
+		private int countSharedPositions(int a, int b) {
+			int count = 0;
+			int u = a;
+			do {
+				IntList around = vertexTriangles[u];
+				for(int i=0; i<around.size; i++) {
+					int t = around.data[i];
+					if (!deadTriangle[t] && apexOf(t, a, b)!=-1) count++;
+				}
+				u = seamNext[u];
+			} while(u!=a);
+			return count;
+		}
+		
+		/** If t has corners at both a's and b's positions, returns its third corner; otherwise -1 */
+		private int apexOf(int t, int a, int b) {
+			int apex = -1;
+			boolean touchesA = false;
+			boolean touchesB = false;
+			for(int k=0; k<3; k++) {
+				int corner = triangles[t*3+k];
+				if (positionId[corner]==positionId[a]) {
+					touchesA = true;
+				} else if (positionId[corner]==positionId[b]) {
+					touchesB = true;
+				} else {
+					apex = corner;
+				}
+			}
+			return (touchesA && touchesB) ? apex : -1;
+		}
+		
+		private void gatherNeighbours(int v, IntList result) {
+			result.clear();
+			IntList around = vertexTriangles[v];
+			for(int i=0; i<around.size; i++) {
+				int t = around.data[i];
+				if (deadTriangle[t]) continue;
+				for(int k=0; k<3; k++) {
+					int other = triangles[t*3+k];
+					if (other!=v && !result.contains(other)) result.add(other);
+				}
+			}
+		}
+		
+		/** Gathers the positions next to any vertex at v's position, as positionIds */
+		private void gatherNeighbourPositions(int v, IntList result) {
+			result.clear();
+			int u = v;
+			do {
+				IntList around = vertexTriangles[u];
+				for(int i=0; i<around.size; i++) {
+					int t = around.data[i];
+					if (deadTriangle[t]) continue;
+					for(int k=0; k<3; k++) {
+						int other = positionId[triangles[t*3+k]];
+						if (other!=positionId[v] && !result.contains(other)) result.add(other);
+					}
+				}
+				u = seamNext[u];
+			} while(u!=v);
+		}
+		
+		/** Counts the distinct positions at the far corners of live triangles with one corner at a's position and another at b's */
+		private int countApexPositions(int a, int b) {
+			scratchC.clear();
+			int u = a;
+			do {
+				IntList around = vertexTriangles[u];
+				for(int i=0; i<around.size; i++) {
+					int t = around.data[i];
+					if (deadTriangle[t]) continue;
+					int apex = -1;
+					boolean touchesB = false;
+					for(int k=0; k<3; k++) {
+						int corner = positionId[triangles[t*3+k]];
+						if (corner==positionId[b]) {
+							touchesB = true;
+						} else if (corner!=positionId[a]) {
+							apex = corner;
+						}
+					}
+					if (touchesB && apex!=-1 && !scratchC.contains(apex)) scratchC.add(apex);
+				}
+				u = seamNext[u];
+			} while(u!=a);
+			return scratchC.size;
+		}
+		
+		private boolean containsVertex(int t, int v) {
+			return triangles[t*3]==v || triangles[t*3+1]==v || triangles[t*3+2]==v;
+		}
+		
+		/*
+		 * Unnormalized triangle normals: (b-a) x (c-a)
+		 */
+		
+		private static double normalX(float[] p, int a, int b, int c) {
+			return (p[b*3+1]-p[a*3+1])*(double)(p[c*3+2]-p[a*3+2]) - (p[b*3+2]-p[a*3+2])*(double)(p[c*3+1]-p[a*3+1]);
+		}
+		
+		private static double normalY(float[] p, int a, int b, int c) {
+			return (p[b*3+2]-p[a*3+2])*(double)(p[c*3  ]-p[a*3  ]) - (p[b*3  ]-p[a*3  ])*(double)(p[c*3+2]-p[a*3+2]);
+		}
+		
+		private static double normalZ(float[] p, int a, int b, int c) {
+			return (p[b*3  ]-p[a*3  ])*(double)(p[c*3+1]-p[a*3+1]) - (p[b*3+1]-p[a*3+1])*(double)(p[c*3  ]-p[a*3  ]);
+		}
+	}
+	
+	private static class Candidate implements Comparable<Candidate> {
+		private final int from;
+		private final int to;
+		private final int fromVersion;
+		private final int toVersion;
+		private final double cost;
+		
+		public Candidate(int from, int to, int fromVersion, int toVersion, double cost) {
+			this.from = from;
+			this.to = to;
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+			this.cost = cost;
+		}
+		
+		@Override
+		public int compareTo(Candidate other) {
+			return Double.compare(cost, other.cost);
+		}
+	}
+	
+	private static class PositionKey {
+		private final float x;
+		private final float y;
+		private final float z;
+		
+		public PositionKey(float x, float y, float z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof PositionKey)) return false;
+			PositionKey that = (PositionKey) o;
+			return Float.floatToIntBits(x)==Float.floatToIntBits(that.x)
+					&& Float.floatToIntBits(y)==Float.floatToIntBits(that.y)
+					&& Float.floatToIntBits(z)==Float.floatToIntBits(that.z);
+		}
+		
+		@Override
+		public int hashCode() {
+			int result = Float.floatToIntBits(x);
+			result = result*31 + Float.floatToIntBits(y);
+			result = result*31 + Float.floatToIntBits(z);
+			return result;
+		}
+	}
+	
+	private static class IntList {
+		private int[] data = new int[8];
+		private int size = 0;
+		
+		public void add(int i) {
+			if (size==data.length) data = Arrays.copyOf(data, size*2);
+			data[size++] = i;
+		}
+		
+		public boolean contains(int i) {
+			for(int j=0; j<size; j++) {
+				if (data[j]==i) return true;
+			}
+			return false;
+		}
+		
+		public void clear() {
+			size = 0;
+		}
+	}
+}
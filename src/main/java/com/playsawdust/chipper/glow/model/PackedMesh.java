@@ -0,0 +1,467 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.model;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.joml.AABBd;
+import org.joml.Matrix3d;
+import org.joml.Matrix4dc;
+import org.joml.Vector2d;
+import org.joml.Vector2dc;
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+
+/**
+ * An indexed triangle mesh stored as primitive columns instead of Face and Vertex objects. Positions, normals, and UVs are always present;
+ * other per-vertex attributes can be added as columns of their own. Vertex {@code i}'s components live at {@code i*n} through
+ * {@code i*n + n-1} of a column with {@code n} components.
+ *
+ * <p>Values are stored as floats, the same precision they'll have on the GPU. Vector3dc, Vector2dc and Double attributes get float columns
+ * of 3, 2 and 1 components, and Integer attributes get an int column. Other attribute types can't be packed.
+ */
+public class PackedMesh {
+	private Material material = Material.BLANK;
+	
+	private int vertexCount = 0;
+	private float[] positions;
+	private float[] normals;
+	private float[] uvs;
+	private final LinkedHashMap<MaterialAttribute<?>, Column> columns = new LinkedHashMap<>();
+	
+	private int[] indices;
+	private int indexCount = 0;
+	
+	public PackedMesh() {
+		this(64, 96);
+	}
+	
+	public PackedMesh(int vertexCapacity, int indexCapacity) {
+		vertexCapacity = Math.max(1, vertexCapacity);
+		positions = new float[vertexCapacity*3];
+		normals = new float[vertexCapacity*3];
+		uvs = new float[vertexCapacity*2];
+		indices = new int[Math.max(3, indexCapacity)];
+	}
+	
+	public Material getMaterial() { return material; }
+	
+	public void setMaterial(Material material) {
+		this.material = material;
+	}
+	
+	public int getVertexCount() { return vertexCount; }
+	public int getIndexCount() { return indexCount; }
+	public int getTriangleCount() { return indexCount/3; }
+	
+	public boolean isEmpty() {
+		return indexCount==0;
+	}
+	
+	/*
+	 * The raw columns are handed out directly so they can be read and written in bulk. They're replaced as the mesh grows, so grab them again
+	 * after adding vertices, and only the first getVertexCount() vertices (or getIndexCount() indices) are meaningful.
+	 */
+	
+	public float[] getPositions() { return positions; }
+	public float[] getNormals() { return normals; }
+	public float[] getUVs() { return uvs; }
+	public int[] getIndices() { return indices; }
+	
+	/** Adds a vertex with every extra attribute column zeroed, and returns its index */
+	public int addVertex(double x, double y, double z, double normalX, double normalY, double normalZ, double u, double v) {
+		ensureVertexCapacity(vertexCount+1);
+		int i = vertexCount;
+		positions[i*3  ] = (float) x;
+		positions[i*3+1] = (float) y;
+		positions[i*3+2] = (float) z;
+		normals[i*3  ] = (float) normalX;
+		normals[i*3+1] = (float) normalY;
+		normals[i*3+2] = (float) normalZ;
+		uvs[i*2  ] = (float) u;
+		uvs[i*2+1] = (float) v;
+		vertexCount++;
+		return i;
+	}
+	
+	/** Adds a counter-clockwise triangle between three vertices which have already been added */
+	public void addTriangle(int a, int b, int c) {
+		if (a<0 || b<0 || c<0 || a>=vertexCount || b>=vertexCount || c>=vertexCount) throw new IndexOutOfBoundsException("Triangle refers to a vertex which doesn't exist");
+		ensureIndexCapacity(indexCount+3);
+		indices[indexCount++] = a;
+		indices[indexCount++] = b;
+		indices[indexCount++] = c;
+	}
+	
+	/** Adds a column for an extra attribute, if there isn't one already. Existing vertices get zeroes. */
+	public void addAttribute(MaterialAttribute<?> attribute) {
+		if (isBuiltin(attribute) || columns.containsKey(attribute)) return;
+		Column column = new Column(attribute, positions.length/3);
+		columns.put(attribute, column);
+	}
+	
+	public boolean hasAttribute(MaterialAttribute<?> attribute) {
+		return isBuiltin(attribute) || columns.containsKey(attribute);
+	}
+	
+	/** Gets the number of components each vertex has in an attribute's column, or 0 if there's no such column */
+	public int getComponentCount(MaterialAttribute<?> attribute) {
+		if (attribute==MaterialAttribute.POSITION || attribute==MaterialAttribute.NORMAL) return 3;
+		if (attribute==MaterialAttribute.UV) return 2;
+		Column column = columns.get(attribute);
+		return (column==null) ? 0 : column.components;
+	}
+	
+	/** Gets the float column for an attribute, or null if it doesn't have one */
+	public float @Nullable [] getFloatColumn(MaterialAttribute<?> attribute) {
+		if (attribute==MaterialAttribute.POSITION) return positions;
+		if (attribute==MaterialAttribute.NORMAL) return normals;
+		if (attribute==MaterialAttribute.UV) return uvs;
+		Column column = columns.get(attribute);
+		return (column==null) ? null : column.floats;
+	}
+	
+	/** Gets the int column for an attribute, or null if it doesn't have one */
+	public int @Nullable [] getIntColumn(MaterialAttribute<?> attribute) {
+		Column column = columns.get(attribute);
+		return (column==null) ? null : column.ints;
+	}
+	
+	/** Reads one vertex's value for an attribute into a new object, or returns null if there's no column for it */
+	@SuppressWarnings("unchecked")
+	public <T> @Nullable T getAttribute(int vertex, MaterialAttribute<T> attribute) {
+		float[] floats = getFloatColumn(attribute);
+		if (floats==null) {
+			int[] ints = getIntColumn(attribute);
+			return (ints==null) ? null : (T) Integer.valueOf(ints[vertex]);
+		}
+		switch(getComponentCount(attribute)) {
+			case 3: return (T) new Vector3d(floats[vertex*3], floats[vertex*3+1], floats[vertex*3+2]);
+			case 2: return (T) new Vector2d(floats[vertex*2], floats[vertex*2+1]);
+			default: return (T) Double.valueOf(floats[vertex]);
+		}
+	}
+	
+	/** Sets one vertex's value for an attribute, adding a column for it if needed */
+	public <T> void setAttribute(int vertex, MaterialAttribute<T> attribute, T value) {
+		if (vertex<0 || vertex>=vertexCount) throw new IndexOutOfBoundsException("Vertex "+vertex+" doesn't exist");
+		addAttribute(attribute);
+		float[] floats = getFloatColumn(attribute);
+		if (floats==null) {
+			getIntColumn(attribute)[vertex] = (Integer) value;
+			return;
+		}
+		switch(getComponentCount(attribute)) {
+			case 3: {
+				Vector3dc vec = (Vector3dc) value;
+				floats[vertex*3  ] = (float) vec.x();
+				floats[vertex*3+1] = (float) vec.y();
+				floats[vertex*3+2] = (float) vec.z();
+				break;
+			}
+			case 2: {
+				Vector2dc vec = (Vector2dc) value;
+				floats[vertex*2  ] = (float) vec.x();
+				floats[vertex*2+1] = (float) vec.y();
+				break;
+			}
+			default:
+				floats[vertex] = (float) ((Double) value).doubleValue();
+		}
+	}
+	
+	/** Transforms every position by the matrix, and every normal by its normal matrix */
+	public void transform(Matrix4dc matrix) {
+		Matrix3d normalMatrix = matrix.normal(new Matrix3d());
+		for(int i=0; i<vertexCount*3; i+=3) {
+			double x = positions[i];
+			double y = positions[i+1];
+			double z = positions[i+2];
+			positions[i  ] = (float) (matrix.m00()*x + matrix.m10()*y + matrix.m20()*z + matrix.m30());
+			positions[i+1] = (float) (matrix.m01()*x + matrix.m11()*y + matrix.m21()*z + matrix.m31());
+			positions[i+2] = (float) (matrix.m02()*x + matrix.m12()*y + matrix.m22()*z + matrix.m32());
+			
+			double nx = normals[i];
+			double ny = normals[i+1];
+			double nz = normals[i+2];
+			double tx = normalMatrix.m00*nx + normalMatrix.m10*ny + normalMatrix.m20*nz;
+			double ty = normalMatrix.m01*nx + normalMatrix.m11*ny + normalMatrix.m21*nz;
+			double tz = normalMatrix.m02*nx + normalMatrix.m12*ny + normalMatrix.m22*nz;
+			double length = Math.sqrt(tx*tx + ty*ty + tz*tz);
+			if (length>0) {
+				normals[i  ] = (float) (tx/length);
+				normals[i+1] = (float) (ty/length);
+				normals[i+2] = (float) (tz/length);
+			}
+		}
+	}
+	
+	public AABBd getBounds() {
+		if (vertexCount==0) return new AABBd(0, 0, 0, 0, 0, 0);
+		float minX = Float.POSITIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY;
+		float minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY;
+		float maxY = Float.NEGATIVE_INFINITY;
+		float maxZ = Float.NEGATIVE_INFINITY;
+		for(int i=0; i<vertexCount*3; i+=3) {
+			minX = Math.min(minX, positions[i]);
+			minY = Math.min(minY, positions[i+1]);
+			minZ = Math.min(minZ, positions[i+2]);
+			maxX = Math.max(maxX, positions[i]);
+			maxY = Math.max(maxY, positions[i+1]);
+			maxZ = Math.max(maxZ, positions[i+2]);
+		}
+		return new AABBd(minX, minY, minZ, maxX, maxY, maxZ);
+	}
+	
+	/** Gets the distance from the origin to the furthest vertex */
+	public double getSphereRadius() {
+		double d2 = 0.0;
+		for(int i=0; i<vertexCount*3; i+=3) {
+			double x = positions[i];
+			double y = positions[i+1];
+			double z = positions[i+2];
+			d2 = Math.max(d2, x*x + y*y + z*z);
+		}
+		return Math.sqrt(d2);
+	}
+	
+	/**
+	 * Appends all of the {@code other} mesh's vertices and triangles to this one. Extra attribute columns are merged; vertices which didn't
+	 * have a column before get zeroes in it.
+	 *
+	 * <p>The Material for the {@code other} PackedMesh is unused; all triangles copied in will use this PackedMesh's Material.
+	 */
+	public void combineFrom(PackedMesh other) {
+		int base = vertexCount;
+		for(MaterialAttribute<?> attribute : other.columns.keySet()) addAttribute(attribute);
+		ensureVertexCapacity(base+other.vertexCount);
+		ensureIndexCapacity(indexCount+other.indexCount);
+		
+		System.arraycopy(other.positions, 0, positions, base*3, other.vertexCount*3);
+		System.arraycopy(other.normals,   0, normals,   base*3, other.vertexCount*3);
+		System.arraycopy(other.uvs,       0, uvs,       base*2, other.vertexCount*2);
+		for(Column column : columns.values()) {
+			Column source = other.columns.get(column.attribute);
+			int n = column.components;
+			if (source==null) {
+				if (column.floats!=null) Arrays.fill(column.floats, base*n, (base+other.vertexCount)*n, 0f);
+				if (column.ints!=null) Arrays.fill(column.ints, base*n, (base+other.vertexCount)*n, 0);
+			} else {
+				if (column.floats!=null) System.arraycopy(source.floats, 0, column.floats, base*n, other.vertexCount*n);
+				if (column.ints!=null) System.arraycopy(source.ints, 0, column.ints, base*n, other.vertexCount*n);
+			}
+		}
+		vertexCount += other.vertexCount;
+		
+		for(int i=0; i<other.indexCount; i++) {
+			indices[indexCount+i] = other.indices[i] + base;
+		}
+		indexCount += other.indexCount;
+	}
+	
+	public PackedMesh copy() {
+		PackedMesh result = new PackedMesh(vertexCount, indexCount);
+		result.setMaterial(material);
+		result.combineFrom(this);
+		return result;
+	}
+	
+	/** Rough heap cost of this mesh's columns, in bytes */
+	public long estimateMemoryUsage() {
+		long result = 4L * (positions.length + normals.length + uvs.length + indices.length);
+		for(Column column : columns.values()) {
+			if (column.floats!=null) result += 4L * column.floats.length;
+			if (column.ints!=null) result += 4L * column.ints.length;
+		}
+		return result;
+	}
+	
+	/** Unpacks this mesh back into Face and Vertex objects, one triangle Face per triangle. Shared vertices stay shared. */
+	public Mesh toMesh() {
+		Mesh result = new Mesh();
+		result.setMaterial(material);
+		
+		Vertex[] vertices = new Vertex[vertexCount];
+		for(int i=0; i<vertexCount; i++) {
+			Vertex vertex = new Vertex(
+					new Vector3d(positions[i*3], positions[i*3+1], positions[i*3+2]),
+					new Vector2d(uvs[i*2], uvs[i*2+1]));
+			vertex.putMaterialAttribute(MaterialAttribute.NORMAL, new Vector3d(normals[i*3], normals[i*3+1], normals[i*3+2]));
+			for(MaterialAttribute<?> attribute : columns.keySet()) {
+				copyAttribute(i, attribute, vertex);
+			}
+			vertices[i] = vertex;
+		}
+		
+		for(int i=0; i<indexCount; i+=3) {
+			result.addFace(new Face(vertices[indices[i]], vertices[indices[i+1]], vertices[indices[i+2]]));
+		}
+		return result;
+	}
+	
+	private <T> void copyAttribute(int i, MaterialAttribute<T> attribute, Vertex vertex) {
+		vertex.putMaterialAttribute(attribute, getAttribute(i, attribute));
+	}
+	
+	/**
+	 * Packs a Mesh, welding together vertices which are {@link Vertex#equals(Object) equal}. Faces with more than three vertices are split into
+	 * triangle fans. Vertices without a normal get (0, 0, 0).
+	 * @param extraAttributes per-vertex attributes to pack in addition to position, normal, and UV. Vertices which don't have one get the
+	 *        Material's value, or the attribute's default, the same as when flattening.
+	 */
+	public static PackedMesh of(Mesh mesh, MaterialAttribute<?>... extraAttributes) {
+		IndexedMesh indexed = IndexedMesh.of(mesh);
+		PackedMesh result = new PackedMesh(indexed.getVertexCount(), indexed.getIndexCount());
+		result.setMaterial(mesh.getMaterial());
+		for(MaterialAttribute<?> attribute : extraAttributes) result.addAttribute(attribute);
+		
+		for(int i=0; i<indexed.getVertexCount(); i++) {
+			Vertex vertex = indexed.getVertex(i);
+			Vector3dc pos = vertex.getMaterialAttribute(MaterialAttribute.POSITION);
+			Vector2dc uv = vertex.getMaterialAttribute(MaterialAttribute.UV);
+			Vector3dc normal = vertex.getMaterialAttribute(MaterialAttribute.NORMAL);
+			if (uv==null) uv = MaterialAttribute.UV.getDefaultValue();
+			if (normal==null) normal = MaterialAttribute.NORMAL.getDefaultValue();
+			int index = result.addVertex(pos.x(), pos.y(), pos.z(), normal.x(), normal.y(), normal.z(), uv.x(), uv.y());
+			
+			for(MaterialAttribute<?> attribute : extraAttributes) {
+				copyAttribute(vertex, mesh.getMaterial(), attribute, result, index);
+			}
+		}
+		
+		int[] indexedIndices = indexed.getIndices();
+		System.arraycopy(indexedIndices, 0, result.indices, 0, indexed.getIndexCount());
+		result.indexCount = indexed.getIndexCount();
+		return result;
+	}
+	
+	private static <T> void copyAttribute(Vertex vertex, Material material, MaterialAttribute<T> attribute, PackedMesh mesh, int index) {
+		T value = vertex.getMaterialAttribute(attribute);
+		if (value==null) value = material.getMaterialAttribute(attribute);
+		if (value==null) value = attribute.getDefaultValue();
+		mesh.setAttribute(index, attribute, value);
+	}
+	
+	/**
+	 * Makes a new PackedMesh with the same Material and columns as this one, holding only the given triangles and the vertices they use.
+	 * @param triangles three vertex indices per triangle, referring to this mesh's vertices
+	 */
+	PackedMesh subset(int[] triangles, int indexCount) {
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int used = 0;
+		for(int i=0; i<indexCount; i++) {
+			if (remap[triangles[i]]==-1) remap[triangles[i]] = used++;
+		}
+		
+		PackedMesh result = new PackedMesh(used, indexCount);
+		result.setMaterial(material);
+		for(MaterialAttribute<?> attribute : columns.keySet()) result.addAttribute(attribute);
+		for(int v=0; v<vertexCount; v++) {
+			int to = remap[v];
+			if (to==-1) continue;
+			System.arraycopy(positions, v*3, result.positions, to*3, 3);
+			System.arraycopy(normals,   v*3, result.normals,   to*3, 3);
+			System.arraycopy(uvs,       v*2, result.uvs,       to*2, 2);
+			for(Column column : columns.values()) {
+				Column dest = result.columns.get(column.attribute);
+				int n = column.components;
+				if (column.floats!=null) System.arraycopy(column.floats, v*n, dest.floats, to*n, n);
+				if (column.ints!=null) System.arraycopy(column.ints, v*n, dest.ints, to*n, n);
+			}
+		}
+		result.vertexCount = used;
+		
+		for(int i=0; i<indexCount; i++) result.indices[i] = remap[triangles[i]];
+		result.indexCount = indexCount;
+		return result;
+	}
+	
+	/** Moves vertex {@code i} to slot {@code remap[i]} in every column. The indices must already refer to the new slots. */
+	void remapVertices(int[] remap) {
+		positions = remap(positions, 3, remap);
+		normals = remap(normals, 3, remap);
+		uvs = remap(uvs, 2, remap);
+		for(Column column : columns.values()) {
+			if (column.floats!=null) column.floats = remap(column.floats, column.components, remap);
+			if (column.ints!=null) column.ints = remap(column.ints, column.components, remap);
+		}
+	}
+	
+	private float[] remap(float[] column, int n, int[] remap) {
+		float[] result = new float[column.length];
+		for(int i=0; i<vertexCount; i++) System.arraycopy(column, i*n, result, remap[i]*n, n);
+		return result;
+	}
+	
+	private int[] remap(int[] column, int n, int[] remap) {
+		int[] result = new int[column.length];
+		for(int i=0; i<vertexCount; i++) System.arraycopy(column, i*n, result, remap[i]*n, n);
+		return result;
+	}
+	
+	private static boolean isBuiltin(MaterialAttribute<?> attribute) {
+		return attribute==MaterialAttribute.POSITION || attribute==MaterialAttribute.NORMAL || attribute==MaterialAttribute.UV;
+	}
+	
+	private void ensureVertexCapacity(int count) {
+		int capacity = positions.length/3;
+		if (count<=capacity) return;
+		capacity = Math.max(count, capacity*2);
+		positions = Arrays.copyOf(positions, capacity*3);
+		normals = Arrays.copyOf(normals, capacity*3);
+		uvs = Arrays.copyOf(uvs, capacity*2);
+		for(Map.Entry<MaterialAttribute<?>, Column> entry : columns.entrySet()) {
+			entry.getValue().grow(capacity);
+		}
+	}
+	
+	private void ensureIndexCapacity(int count) {
+		if (count<=indices.length) return;
+		indices = Arrays.copyOf(indices, Math.max(count, indices.length*2));
+	}
+	
+	private static class Column {
+		private final MaterialAttribute<?> attribute;
+		private final int components;
+		private float[] floats;
+		private int[] ints;
+		
+		public Column(MaterialAttribute<?> attribute, int capacity) {
+			this.attribute = attribute;
+			Class<?> clazz = attribute.getDataClass();
+			if (clazz==Vector3dc.class || clazz==Vector3d.class) {
+				components = 3;
+			} else if (clazz==Vector2dc.class || clazz==Vector2d.class) {
+				components = 2;
+			} else if (clazz==Double.class || clazz==Integer.class) {
+				components = 1;
+			} else {
+				throw new IllegalArgumentException("Can't pack attribute "+attribute.getName()+" of type "+clazz.getSimpleName());
+			}
+			
+			if (clazz==Integer.class) {
+				ints = new int[capacity];
+			} else {
+				floats = new float[capacity*components];
+			}
+		}
+		
+		public void grow(int capacity) {
+			if (floats!=null) floats = Arrays.copyOf(floats, capacity*components);
+			if (ints!=null) ints = Arrays.copyOf(ints, capacity*components);
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Reorders triangles so that consecutive triangles share vertices, letting the GPU's post-transform vertex cache skip re-running the vertex
+ * shader, and then renumbers vertices in the order they're first used so vertex fetches walk memory forwards.
+ *
+ * <p>Triangles are ordered with Tom Forsyth's linear-speed greedy algorithm, which repeatedly emits the triangle whose vertices score best
+ * against a simulated 32-entry LRU cache. Results are measured as ACMR, the average number of vertex shader runs per triangle, against a FIFO
+ * cache of {@link #DEFAULT_CACHE_SIZE} entries: 3.0 is the worst possible, and well-ordered meshes get close to 0.5.
+ */
+public class VertexCacheOptimizer {
+	/** The FIFO cache size ACMR is measured against. Real hardware is usually at least this big. */
+	public static final int DEFAULT_CACHE_SIZE = 16;
+	
+	private static final int SCORING_CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+	
+	/** Optimizes an IndexedMesh in place, reordering both its triangles and its vertices */
+	public static Report optimize(IndexedMesh mesh) {
+		int[] indices = mesh.getIndices();
+		int indexCount = mesh.getIndexCount();
+		int vertexCount = mesh.getVertexCount();
+		
+		long before = countCacheMisses(indices, indexCount, vertexCount, DEFAULT_CACHE_SIZE);
+		optimizeTriangles(indices, indexCount, vertexCount);
+		mesh.remapVertices(optimizeVertexFetch(indices, indexCount, vertexCount));
+		long after = countCacheMisses(indices, indexCount, vertexCount, DEFAULT_CACHE_SIZE);
+		return new Report(indexCount/3, before, after);
+	}
+	
+	/** Optimizes a PackedMesh in place, reordering both its triangles and its vertex columns */
+	public static Report optimize(PackedMesh mesh) {
+		int[] indices = mesh.getIndices();
+		int indexCount = mesh.getIndexCount();
+		int vertexCount = mesh.getVertexCount();
+		
+		long before = countCacheMisses(indices, indexCount, vertexCount, DEFAULT_CACHE_SIZE);
+		optimizeTriangles(indices, indexCount, vertexCount);
+		mesh.remapVertices(optimizeVertexFetch(indices, indexCount, vertexCount));
+		long after = countCacheMisses(indices, indexCount, vertexCount, DEFAULT_CACHE_SIZE);
+		return new Report(indexCount/3, before, after);
+	}
+	
+	/**
+	 * Reorders a Mesh's faces in place. Faces are kept whole, so each face goes wherever its first triangle landed. Mesh vertices have no order
+	 * of their own, but {@code MeshFlattener}'s indexed paths number vertices by first use, so flattening the result gets the fetch order too.
+	 */
+	public static Report optimize(Mesh mesh) {
+		ArrayList<Face> faces = new ArrayList<>(mesh.getFaceCount());
+		for(Face face : mesh.faces()) faces.add(face);
+		
+		//Weld and triangulate the same way IndexedMesh.of does, remembering which face each triangle came from
+		HashMap<Vertex, Integer> welded = new HashMap<>(faces.size()*2);
+		int[] indices = new int[faces.size()*6];
+		int[] faceStart = new int[faces.size()+1];
+		int indexCount = 0;
+		for(int f=0; f<faces.size(); f++) {
+			faceStart[f] = indexCount/3;
+			Face face = faces.get(f);
+			if (face.vertexCount()<3) continue;
+			Iterator<Vertex> iterator = face.iterator();
+			int first = weld(iterator.next(), welded);
+			int prev = weld(iterator.next(), welded);
+			while(iterator.hasNext()) {
+				int cur = weld(iterator.next(), welded);
+				if (indexCount+3>indices.length) indices = Arrays.copyOf(indices, indices.length*2);
+				indices[indexCount++] = first;
+				indices[indexCount++] = prev;
+				indices[indexCount++] = cur;
+				prev = cur;
+			}
+		}
+		faceStart[faces.size()] = indexCount/3;
+		int triangleCount = indexCount/3;
+		int vertexCount = welded.size();
+		
+		int[] triangleFace = new int[triangleCount];
+		for(int f=0; f<faces.size(); f++) {
+			for(int t=faceStart[f]; t<faceStart[f+1]; t++) triangleFace[t] = f;
+		}
+		
+		long before = countCacheMisses(indices, indexCount, vertexCount, DEFAULT_CACHE_SIZE);
+		
+		//Keep the original triangles so each face's run can be copied out whole once we know the face order
+		int[] original = Arrays.copyOf(indices, indexCount);
+		int[] order = optimizeTriangleOrder(indices, indexCount, vertexCount);
+		
+		boolean[] placed = new boolean[faces.size()];
+		ArrayList<Face> reordered = new ArrayList<>(faces.size());
+		int[] result = new int[indexCount];
+		int resultCount = 0;
+		for(int t : order) {
+			int f = triangleFace[t];
+			if (placed[f]) continue;
+			placed[f] = true;
+			reordered.add(faces.get(f));
+			int length = (faceStart[f+1]-faceStart[f])*3;
+			System.arraycopy(original, faceStart[f]*3, result, resultCount, length);
+			resultCount += length;
+		}
+		for(int f=0; f<faces.size(); f++) {
+			//Faces with fewer than three vertices have no triangles, but they still belong to the mesh
+			if (!placed[f]) reordered.add(faces.get(f));
+		}
+		
+		for(int i=mesh.getFaceCount()-1; i>=0; i--) mesh.removeFace(i);
+		for(Face face : reordered) mesh.addFace(face);
+		
+		long after = countCacheMisses(result, resultCount, vertexCount, DEFAULT_CACHE_SIZE);
+		return new Report(triangleCount, before, after);
+	}
+	
+	/** Optimizes every Mesh in a Model in place, and reports the totals across all of them */
+	public static Report optimize(Model model) {
+		Report total = new Report(0, 0, 0);
+		for(Mesh mesh : model) {
+			total = total.plus(optimize(mesh));
+		}
+		return total;
+	}
+	
+	/**
+	 * Reorders the triangles in an index array in place for vertex cache locality
+	 * @param indices three vertex indices per triangle
+	 * @param indexCount the number of meaningful entries in {@code indices}
+	 * @param vertexCount one more than the highest vertex index
+	 */
+	public static void optimizeTriangles(int[] indices, int indexCount, int vertexCount) {
+		optimizeTriangleOrder(indices, indexCount, vertexCount);
+	}
+	
+	/**
+	 * Renumbers vertices in the order the triangles first use them, rewriting the indices in place. Vertices which no triangle uses are moved to
+	 * the end, keeping their relative order.
+	 * @return the remap table: vertex {@code i} should move to slot {@code remap[i]}
+	 */
+	public static int[] optimizeVertexFetch(int[] indices, int indexCount, int vertexCount) {
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int next = 0;
+		for(int i=0; i<indexCount; i++) {
+			int v = indices[i];
+			if (remap[v]==-1) remap[v] = next++;
+			indices[i] = remap[v];
+		}
+		for(int v=0; v<vertexCount; v++) {
+			if (remap[v]==-1) remap[v] = next++;
+		}
+		return remap;
+	}
+	
+	/** Measures ACMR: the average number of vertices per triangle which miss a FIFO vertex cache of the given size */
+	public static double getACMR(int[] indices, int indexCount, int vertexCount, int cacheSize) {
+		if (indexCount<3) return 0;
+		return countCacheMisses(indices, indexCount, vertexCount, cacheSize) / (double) (indexCount/3);
+	}
+	
+	private static long countCacheMisses(int[] indices, int indexCount, int vertexCount, int cacheSize) {
+		//A vertex is still cached if fewer than cacheSize misses have happened since it was loaded
+		int[] loadedAt = new int[vertexCount];
+		Arrays.fill(loadedAt, Integer.MIN_VALUE);
+		int misses = 0;
+		for(int i=0; i<indexCount; i++) {
+			int v = indices[i];
+			if (loadedAt[v]!=Integer.MIN_VALUE && misses-loadedAt[v]<cacheSize) continue;
+			loadedAt[v] = misses;
+			misses++;
+		}
+		return misses;
+	}
+	
+	/** Runs the Forsyth ordering in place, and returns the original number of each triangle in its new order */
+	private static int[] optimizeTriangleOrder(int[] indices, int indexCount, int vertexCount) {
+		int triangleCount = indexCount/3;
+		int[] order = new int[triangleCount];
+		if (triangleCount<2) {
+			for(int t=0; t<triangleCount; t++) order[t] = t;
+			return order;
+		}
+		
+		//Each vertex's live triangles sit at adjacency[offsets[v] .. offsets[v]+remaining[v]), and are swapped out as they're emitted
+		int[] remaining = new int[vertexCount];
+		for(int i=0; i<triangleCount*3; i++) remaining[indices[i]]++;
+		int[] offsets = new int[vertexCount+1];
+		for(int v=0; v<vertexCount; v++) offsets[v+1] = offsets[v] + remaining[v];
+		int[] adjacency = new int[triangleCount*3];
+		int[] fill = Arrays.copyOf(offsets, vertexCount);
+		for(int i=0; i<triangleCount*3; i++) adjacency[fill[indices[i]]++] = i/3;
+		
+		int[] cachePosition = new int[vertexCount];
+		Arrays.fill(cachePosition, -1);
+		float[] vertexScore = new float[vertexCount];
+		for(int v=0; v<vertexCount; v++) vertexScore[v] = score(-1, remaining[v]);
+		
+		float[] triangleScore = new float[triangleCount];
+		int best = 0;
+		for(int t=0; t<triangleCount; t++) {
+			triangleScore[t] = vertexScore[indices[t*3]] + vertexScore[indices[t*3+1]] + vertexScore[indices[t*3+2]];
+			if (triangleScore[t]>triangleScore[best]) best = t;
+		}
+		
+		boolean[] emitted = new boolean[triangleCount];
+		int[] cache = new int[SCORING_CACHE_SIZE+3];
+		int[] nextCache = new int[SCORING_CACHE_SIZE+3];
+		int cacheCount = 0;
+		int cursor = 0;
+		int[] result = new int[triangleCount*3];
+		
+		for(int n=0; n<triangleCount; n++) {
+			if (best==-1) {
+				//Nothing in the cache has triangles left, so start over from the first triangle we haven't emitted
+				while(emitted[cursor]) cursor++;
+				best = cursor;
+			}
+			int t = best;
+			emitted[t] = true;
+			order[n] = t;
+			int a = indices[t*3];
+			int b = indices[t*3+1];
+			int c = indices[t*3+2];
+			result[n*3  ] = a;
+			result[n*3+1] = b;
+			result[n*3+2] = c;
+			
+			//Retire the triangle from its vertices and push them to the front of the cache
+			int nextCount = 0;
+			for(int k=0; k<3; k++) {
+				int v = indices[t*3+k];
+				int start = offsets[v];
+				int end = start + remaining[v];
+				for(int i=start; i<end; i++) {
+					if (adjacency[i]==t) {
+						adjacency[i] = adjacency[end-1];
+						adjacency[end-1] = t;
+						remaining[v]--;
+						break;
+					}
+				}
+				if (k==0 || (k==1 && v!=a) || (k==2 && v!=a && v!=b)) nextCache[nextCount++] = v;
+			}
+			for(int i=0; i<cacheCount; i++) {
+				int v = cache[i];
+				if (v!=a && v!=b && v!=c) nextCache[nextCount++] = v;
+			}
+			int[] swap = cache;
+			cache = nextCache;
+			nextCache = swap;
+			
+			//Anything which fell off the end of the cache gets rescored once without a cache position, then forgotten
+			for(int i=0; i<nextCount; i++) {
+				int v = cache[i];
+				cachePosition[v] = (i<SCORING_CACHE_SIZE) ? i : -1;
+				vertexScore[v] = score(cachePosition[v], remaining[v]);
+			}
+			
+			best = -1;
+			float bestScore = -1f;
+			for(int i=0; i<nextCount; i++) {
+				int v = cache[i];
+				int start = offsets[v];
+				int end = start + remaining[v];
+				for(int j=start; j<end; j++) {
+					int candidate = adjacency[j];
+					float score = vertexScore[indices[candidate*3]] + vertexScore[indices[candidate*3+1]] + vertexScore[indices[candidate*3+2]];
+					triangleScore[candidate] = score;
+					if (score>bestScore) {
+						bestScore = score;
+						best = candidate;
+					}
+				}
+			}
+			cacheCount = Math.min(nextCount, SCORING_CACHE_SIZE);
+		}
+		
+		System.arraycopy(result, 0, indices, 0, triangleCount*3);
+		return order;
+	}
+	
+	private static float score(int cachePosition, int remaining) {
+		if (remaining==0) return -1f; //Nothing left to draw with this vertex
+		
+		float score = 0f;
+		if (cachePosition>=0) {
+			if (cachePosition<3) {
+				//Used by the triangle we just emitted. Penalize it slightly so we don't keep fanning around one vertex forever.
+				score = LAST_TRIANGLE_SCORE;
+			} else {
+				float scaler = 1f / (SCORING_CACHE_SIZE-3);
+				score = (float) Math.pow(1f - (cachePosition-3)*scaler, CACHE_DECAY_POWER);
+			}
+		}
+		
+		//Vertices with few triangles left get a boost, so we finish them off instead of leaving lone triangles behind
+		score += VALENCE_BOOST_SCALE * (float) Math.pow(remaining, -VALENCE_BOOST_POWER);
+		return score;
+	}
+	
+	private static int weld(Vertex vertex, HashMap<Vertex, Integer> welded) {
+		Integer existing = welded.get(vertex);
+		if (existing!=null) return existing;
+		int index = welded.size();
+		welded.put(vertex, index);
+		return index;
+	}
+	
+	/** Vertex cache misses before and after an optimization */
+	public static class Report {
+		private final int triangles;
+		private final long missesBefore;
+		private final long missesAfter;
+		
+		public Report(int triangles, long missesBefore, long missesAfter) {
+			this.triangles = triangles;
+			this.missesBefore = missesBefore;
+			this.missesAfter = missesAfter;
+		}
+		
+		public int getTriangleCount() { return triangles; }
+		
+		/** Gets the ACMR of the triangles as they were, against a cache of {@link VertexCacheOptimizer#DEFAULT_CACHE_SIZE} */
+		public double getACMRBefore() {
+			return (triangles==0) ? 0 : missesBefore / (double) triangles;
+		}
+		
+		/** Gets the ACMR of the optimized triangles, against a cache of {@link VertexCacheOptimizer#DEFAULT_CACHE_SIZE} */
+		public double getACMRAfter() {
+			return (triangles==0) ? 0 : missesAfter / (double) triangles;
+		}
+		
+		/** Combines two reports, as if the triangles of both had been drawn together */
+		public Report plus(Report other) {
+			return new Report(triangles+other.triangles, missesBefore+other.missesBefore, missesAfter+other.missesAfter);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("ACMR %.3f -> %.3f over %d triangles", getACMRBefore(), getACMRAfter(), triangles);
+		}
+	}
+}
@@ -2,18 +2,25 @@ package com.playsawdust.chipper.glow.model.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
-import org.joml.AABBd;
 import org.joml.Matrix4d;
 import org.joml.Vector3d;
 
 import com.playsawdust.chipper.glow.mesher.VoxelMesher;
-import com.playsawdust.chipper.glow.model.Material;
-import com.playsawdust.chipper.glow.model.MaterialAttribute;
 import com.playsawdust.chipper.glow.model.Model;
 import com.playsawdust.chipper.glow.voxel.MeshableVoxel;
 import com.playsawdust.chipper.glow.voxel.VoxelPatch;
@@ -28,6 +35,11 @@ public class QBLoader implements ModelLoader, VoxelLoader {
 	
 	private static final int VERSION_MAJOR_MASK = 0xFF;
 	
+	/** In compressed matrices, introduces a {count, color} run */
+	private static final int CODEFLAG = 2;
+	/** In compressed matrices, ends each Z slice */
+	private static final int NEXTSLICEFLAG = 6;
+	
 	private static final MeshableVoxel VOXEL_EMPTY = new MeshableVoxel.SimpleMeshableVoxel().setShape(VoxelShape.EMPTY);
 	
 	@Override
@@ -44,101 +56,288 @@ public class QBLoader implements ModelLoader, VoxelLoader {
 		return result;
 	}
 	
-	private static int readInt32(InputStream in) throws IOException {
-		return
-			 (in.read() & 0xFF)         |
-			((in.read() & 0xFF) <<  8 ) |
-			((in.read() & 0xFF) << 16 ) |
-			((in.read() & 0xFF) << 24 );
+	@Override
+	public VoxelPatch tryVoxelLoad(InputStream in, Function<Integer, MeshableVoxel> colorToVoxel, Consumer<Integer> progressConsumer) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(in.readAllBytes());
+		return tryVoxelLoad(buf, colorToVoxel, progressConsumer);
+	}
+	
+	/** Loads a QB file by mapping it into memory rather than streaming it */
+	public VoxelPatch tryVoxelLoad(Path path, Function<Integer, MeshableVoxel> colorToVoxel, Consumer<Integer> progressConsumer) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return tryVoxelLoad(buf, colorToVoxel, progressConsumer);
+		}
 	}
 	
-	private static Vector3d colorVector(int col) {
-		int r = (col >> 16) & 0xFF;
-		int g = (col >>  8) & 0xFF;
-		int b = (col      ) & 0xFF;
+	/**
+	 * Loads a QB file from a buffer holding the entire file. Matrix headers are read in order, then the matrices are decoded in parallel on the
+	 * common ForkJoinPool, and finally laid into a single patch at their stored positions, with later matrices drawn over earlier ones. Every
+	 * distinct color becomes one palette entry, and colorToVoxel is called once per color, always with full alpha.
+	 */
+	public VoxelPatch tryVoxelLoad(ByteBuffer buf, Function<Integer, MeshableVoxel> colorToVoxel, Consumer<Integer> progressConsumer) throws IOException {
+		progressConsumer.accept(0);
+		buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		buf.position(0);
+		
+		List<Matrix> matrices = new ArrayList<>();
+		try {
+			// Header
+			int version = buf.getInt();
+			if ((version & VERSION_MAJOR_MASK) != (VERSION_CURRENT & VERSION_MAJOR_MASK)) throw new IOException("Version mismatch");
+			
+			/*int colorFormat =*/ buf.getInt(); //0 for RGBA, 1 for BGRA
+			/*int orientation =*/ buf.getInt(); //0 for left-handed, 1 for right-handed
+			boolean compression = buf.getInt()==1;
+			/*boolean visibilityMask =*/ buf.getInt(); //Either way, any nonzero alpha is a visible voxel
+			
+			int matrixCount = buf.getInt();
+			if (matrixCount<0) throw new IOException("Negative matrix count");
+			
+			for(int i=0; i<matrixCount; i++) {
+				Matrix matrix = new Matrix();
+				int len = buf.get() & 0xFF;
+				byte[] stringBytes = new byte[len];
+				buf.get(stringBytes);
+				matrix.name = new String(stringBytes, StandardCharsets.US_ASCII);
+				matrix.xSize = buf.getInt();
+				matrix.ySize = buf.getInt();
+				matrix.zSize = buf.getInt();
+				matrix.xPos = buf.getInt();
+				matrix.yPos = buf.getInt();
+				matrix.zPos = buf.getInt();
+				matrix.compressed = compression;
+				matrix.dataStart = buf.position();
+				
+				if (matrix.xSize<=0 || matrix.ySize<=0 || matrix.zSize<=0) throw new IOException("Matrix '"+matrix.name+"' has bad dimensions");
+				if ((long) matrix.xSize*matrix.ySize*matrix.zSize > Integer.MAX_VALUE) throw new IOException("Matrix '"+matrix.name+"' is too large");
+				
+				if (compression) {
+					skipCompressed(buf, matrix.zSize);
+				} else {
+					long dataLength = (long) matrix.xSize*matrix.ySize*matrix.zSize*4L;
+					if (dataLength>buf.remaining()) throw new IOException("Matrix '"+matrix.name+"' is truncated");
+					buf.position(buf.position() + (int) dataLength);
+				}
+				matrices.add(matrix);
+			}
+		} catch (BufferUnderflowException ex) {
+			throw new IOException("Unexpected end of file", ex);
+		}
+		if (matrices.isEmpty()) return null;
+		
+		DecodeTask[] tasks = new DecodeTask[matrices.size()];
+		for(int i=0; i<tasks.length; i++) tasks[i] = new DecodeTask(buf, matrices.get(i));
+		ForkJoinPool.commonPool().invoke(new DecodeAllTask(tasks));
+		for(DecodeTask task : tasks) {
+			if (task.failure!=null) throw task.failure;
+		}
 		
-		return new Vector3d(r / 255.0, g / 255.0, b / 255.0);
+		VoxelPatch patch = composite(matrices, colorToVoxel);
+		progressConsumer.accept(100);
+		return patch;
 	}
-
-	@Override
-	public VoxelPatch tryVoxelLoad(InputStream in, Function<Integer, MeshableVoxel> colorToVoxel, Consumer<Integer> progressConsumer) throws IOException {
-		// Header
-		int version = readInt32(in);
-		//System.out.println("Version: "+version+((version==VERSION_CURRENT)?" (current)":""));
-		if ((version & VERSION_MAJOR_MASK) != (VERSION_CURRENT & VERSION_MAJOR_MASK)) throw new IOException("Version mismatch");
-		
-		int colorFormat = readInt32(in);
-		if (colorFormat==0) {
-			//System.out.println("Color Format: RGBA");
-		} else if (colorFormat==1) {
-			//System.out.println("ColorFormat: BGRA");
-		} else {
-			//System.out.println("Color Format: Unknown");
+	
+	/** Steps over a compressed matrix, which has to be walked to find its end */
+	private static void skipCompressed(ByteBuffer buf, int zSize) throws IOException {
+		for(int z=0; z<zSize; z++) {
+			while(true) {
+				int data = buf.getInt();
+				if (data==NEXTSLICEFLAG) break;
+				if (data==CODEFLAG) {
+					if (buf.remaining()<8) throw new BufferUnderflowException();
+					buf.position(buf.position()+8); //count, color
+				}
+			}
+		}
+	}
+	
+	/** Lays every decoded matrix into one patch, converting colors to palette ids as it goes */
+	private static VoxelPatch composite(List<Matrix> matrices, Function<Integer, MeshableVoxel> colorToVoxel) {
+		int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE, zMin = Integer.MAX_VALUE;
+		int xMax = Integer.MIN_VALUE, yMax = Integer.MIN_VALUE, zMax = Integer.MIN_VALUE;
+		for(Matrix matrix : matrices) {
+			xMin = Math.min(xMin, matrix.xPos);
+			yMin = Math.min(yMin, matrix.yPos);
+			zMin = Math.min(zMin, matrix.zPos);
+			xMax = Math.max(xMax, matrix.xPos+matrix.xSize);
+			yMax = Math.max(yMax, matrix.yPos+matrix.ySize);
+			zMax = Math.max(zMax, matrix.zPos+matrix.zSize);
+		}
+		int xSize = xMax-xMin;
+		int ySize = yMax-yMin;
+		int zSize = zMax-zMin;
+		
+		List<MeshableVoxel> palette = new ArrayList<>();
+		palette.add(VOXEL_EMPTY);
+		ColorMap paletteIds = new ColorMap();
+		int[] ids = new int[xSize*ySize*zSize];
+		
+		int lastKey = -1;
+		int lastId = 0;
+		for(Matrix matrix : matrices) {
+			int[] colors = matrix.colors;
+			int mx = matrix.xSize;
+			int my = matrix.ySize;
+			int i = 0;
+			for(int z=0; z<matrix.zSize; z++) {
+				for(int y=0; y<my; y++) {
+					int rowStart = (y + matrix.yPos-yMin) + (matrix.xPos-xMin)*ySize + (z + matrix.zPos-zMin)*ySize*xSize;
+					for(int x=0; x<mx; x++) {
+						int col = colors[i++];
+						if ((col & 0xFF000000) == 0) continue;
+						
+						//Runs of the same color are common, so skip the map for them
+						int key = col & 0xFFFFFF;
+						if (key!=lastKey) {
+							int id = paletteIds.get(key);
+							if (id==-1) {
+								id = palette.size();
+								palette.add(colorToVoxel.apply(key | 0xFF000000));
+								paletteIds.put(key, id);
+							}
+							lastKey = key;
+							lastId = id;
+						}
+						ids[rowStart + x*ySize] = lastId;
+					}
+				}
+			}
+			matrix.colors = null;
 		}
 		
-		int orientation = readInt32(in);
-		//System.out.println("Z-Axis Orientation: "+((orientation==0) ? "Left-handed" : "Right-handed"));
+		VoxelPatch patch = new VoxelPatch(xSize, ySize, zSize);
+		patch.setPalette(palette);
+		patch.setData(ids);
+		return patch;
+	}
+	
+	private static class Matrix {
+		private String name;
+		private int xSize, ySize, zSize;
+		private int xPos, yPos, zPos;
+		private boolean compressed;
+		private int dataStart;
+		/** Raw colors in file order: x fastest, then y, then z */
+		private int[] colors;
+	}
+	
+	private static class DecodeAllTask extends RecursiveAction {
+		private static final long serialVersionUID = 6022480519311795117L;
 		
-		boolean compression = readInt32(in)==1;
-		//System.out.println("Compressed: "+compression);
+		private final DecodeTask[] tasks;
 		
-		boolean visibilityMask = readInt32(in)==1;
-		//System.out.println("Visibility Mask Encoded: "+visibilityMask);
+		public DecodeAllTask(DecodeTask[] tasks) {
+			this.tasks = tasks;
+		}
 		
-		int matrixCount = readInt32(in);
-		//System.out.println("Matrix Count: "+matrixCount);
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+	
+	/** Decodes one matrix's colors. Only absolute reads are used on the shared buffer, so any number of these can run at once. */
+	private static class DecodeTask extends RecursiveAction {
+		private static final long serialVersionUID = -2262929163420436011L;
 		
-		Model result = new Model();
+		private final ByteBuffer buf;
+		private final Matrix matrix;
+		private IOException failure = null;
 		
-		for(int i=0; i<matrixCount; i++) {
-			int len = in.read() & 0xFF;
-			byte[] stringBytes = new byte[len];
-			for(int j=0; j<len; j++) stringBytes[j] = (byte)(in.read() & 0xFF);
-			String matrixName = new String(stringBytes, StandardCharsets.US_ASCII);
-			//System.out.println("Matrix Name: "+matrixName);
-			int xsize = readInt32(in);
-			int ysize = readInt32(in);
-			int zsize = readInt32(in);
-			
-			int xpos = readInt32(in);
-			int ypos = readInt32(in);
-			int zpos = readInt32(in);
-			
-			VoxelPatch patch = new VoxelPatch(xsize, ysize, zsize);
-			HashMap<Integer, MeshableVoxel> colorMaterials = new HashMap<>();
-			patch.setVoxel(0, 0, 0, VOXEL_EMPTY, true);
+		public DecodeTask(ByteBuffer buf, Matrix matrix) {
+			this.buf = buf;
+			this.matrix = matrix;
+		}
+		
+		@Override
+		protected void compute() {
+			int sliceSize = matrix.xSize*matrix.ySize;
+			int[] colors = new int[sliceSize*matrix.zSize];
+			int pos = matrix.dataStart;
 			
-			for(int z=0; z<zsize; z++) {
-				for(int y=0; y<ysize; y++) {
-					for(int x=0; x<xsize; x++) {
-						int col = readInt32(in);
-						if ((col & 0xFF000000) != 0) {
-							int key = col & 0xFFFFFF;
-							MeshableVoxel voxel = colorMaterials.get(key);
-							if (voxel==null) {
-								Material colorMaterial = new Material.Generic()
-									.with(MaterialAttribute.DIFFUSE_COLOR, colorVector(col))
-									.with(MaterialAttribute.DIFFUSE_TEXTURE_ID, "none")
-									.with(MaterialAttribute.SPECULARITY, 0.4)
-									.with(MaterialAttribute.EMISSIVITY, 0.0);
-								voxel = new MeshableVoxel.SimpleMeshableVoxel()
-										.setShape(VoxelShape.CUBE)
-										.setMaterial(colorMaterial);
-								colorMaterials.put(key, voxel);
-								patch.setVoxel(x,y,z, voxel, true);
-							} else {
-								patch.setVoxel(x,y,z, voxel, false);
+			if (!matrix.compressed) {
+				for(int i=0; i<colors.length; i++) {
+					colors[i] = buf.getInt(pos);
+					pos += 4;
+				}
+			} else {
+				for(int z=0; z<matrix.zSize; z++) {
+					int i = z*sliceSize;
+					int sliceEnd = i+sliceSize;
+					while(true) {
+						int data = buf.getInt(pos);
+						pos += 4;
+						if (data==NEXTSLICEFLAG) break;
+						
+						if (data==CODEFLAG) {
+							int count = buf.getInt(pos);
+							int color = buf.getInt(pos+4);
+							pos += 8;
+							if (count<0 || count>sliceEnd-i) {
+								failure = new IOException("Matrix '"+matrix.name+"' has a run which overflows its slice");
+								return;
 							}
-							
+							Arrays.fill(colors, i, i+count, color);
+							i += count;
 						} else {
-							patch.setVoxel(x, y, z, VOXEL_EMPTY, false); //Should be a NO-OP but let's make sure
+							if (i>=sliceEnd) {
+								failure = new IOException("Matrix '"+matrix.name+"' has a slice which overflows");
+								return;
+							}
+							colors[i++] = data;
 						}
 					}
 				}
 			}
 			
-			return patch;
+			matrix.colors = colors;
+		}
+	}
+	
+	/** An open-addressed map from 24-bit colors to palette ids, so that lookups don't box. Returns -1 for missing keys. */
+	private static class ColorMap {
+		private int[] keys = new int[64];
+		private int[] values = new int[64];
+		private int size = 0;
+		
+		public ColorMap() {
+			Arrays.fill(keys, -1);
+		}
+		
+		public int get(int key) {
+			int mask = keys.length-1;
+			for(int slot = hash(key) & mask; ; slot = (slot+1) & mask) {
+				if (keys[slot]==key) return values[slot];
+				if (keys[slot]==-1) return -1;
+			}
+		}
+		
+		public void put(int key, int value) {
+			if ((size+1)*2 > keys.length) grow();
+			int mask = keys.length-1;
+			int slot = hash(key) & mask;
+			while(keys[slot]!=-1 && keys[slot]!=key) slot = (slot+1) & mask;
+			if (keys[slot]==-1) size++;
+			keys[slot] = key;
+			values[slot] = value;
+		}
+		
+		private void grow() {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new int[oldKeys.length*2];
+			values = new int[oldValues.length*2];
+			Arrays.fill(keys, -1);
+			size = 0;
+			for(int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i]!=-1) put(oldKeys[i], oldValues[i]);
+			}
+		}
+		
+		private static int hash(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
 		}
-		return null; //TODO: If there are multiple models, adjust offsets and combine the patches.
 	}
 }
@@ -0,0 +1,116 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.model.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.playsawdust.chipper.glow.voxel.MeshableVoxel;
+import com.playsawdust.chipper.glow.voxel.VoxelPatch;
+import com.playsawdust.chipper.glow.voxel.VoxelWorld;
+
+/**
+ * Loads and saves VoxelWorld chunks from a directory of {@link VoxelRegionFile}s, one file per regionSize^3 cube of chunks. Region files are
+ * opened the first time one of their chunks is needed and kept open until {@link #close()}. Chunks which weren't edited while they were loaded
+ * aren't written back when they're evicted.
+ *
+ * <p>IOExceptions are rethrown as UncheckedIOException, since VoxelWorld lookups can't throw.
+ */
+public class RegionChunkLoader implements VoxelWorld.ChunkLoader, Closeable {
+	private final Path directory;
+	private final int regionSize;
+	private final Function<Integer, MeshableVoxel> idToVoxel;
+	private final ToIntFunction<MeshableVoxel> voxelToId;
+	
+	private final HashMap<String, VoxelRegionFile> regions = new HashMap<>();
+	/** The edit count of each chunk we handed out, as of when it was loaded */
+	private final IdentityHashMap<VoxelPatch, Integer> loadedEdits = new IdentityHashMap<>();
+	
+	/**
+	 * @param directory the directory to keep region files in. It will be created if needed.
+	 * @param regionSize the number of chunks along each side of a region file
+	 * @param idToVoxel a map function turning a stored palette id into a MeshableVoxel
+	 * @param voxelToId the inverse of idToVoxel
+	 */
+	public RegionChunkLoader(Path directory, int regionSize, Function<Integer, MeshableVoxel> idToVoxel, ToIntFunction<MeshableVoxel> voxelToId) {
+		this.directory = directory;
+		this.regionSize = regionSize;
+		this.idToVoxel = idToVoxel;
+		this.voxelToId = voxelToId;
+	}
+	
+	@Override
+	public synchronized @Nullable VoxelPatch load(int chunkX, int chunkY, int chunkZ, int chunkSize) {
+		try {
+			VoxelRegionFile region = getRegion(chunkX, chunkY, chunkZ, chunkSize, false);
+			if (region==null) return null;
+			VoxelPatch chunk = region.readChunk(Math.floorMod(chunkX, regionSize), Math.floorMod(chunkY, regionSize), Math.floorMod(chunkZ, regionSize), idToVoxel);
+			if (chunk!=null) loadedEdits.put(chunk, chunk.getEditCount());
+			return chunk;
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+	
+	@Override
+	public synchronized void unload(int chunkX, int chunkY, int chunkZ, VoxelPatch chunk) {
+		Integer editsWhenLoaded = loadedEdits.remove(chunk);
+		if (editsWhenLoaded!=null && editsWhenLoaded==chunk.getEditCount()) return;
+		
+		try {
+			VoxelRegionFile region = getRegion(chunkX, chunkY, chunkZ, chunk.xSize(), true);
+			region.writeChunk(Math.floorMod(chunkX, regionSize), Math.floorMod(chunkY, regionSize), Math.floorMod(chunkZ, regionSize), chunk, voxelToId);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+	
+	/** Closes every open region file. Call {@link VoxelWorld#unloadAll()} first so that edited chunks get saved. */
+	@Override
+	public synchronized void close() throws IOException {
+		IOException failure = null;
+		for(VoxelRegionFile region : regions.values()) {
+			try {
+				region.close();
+			} catch (IOException ex) {
+				if (failure==null) failure = ex;
+			}
+		}
+		regions.clear();
+		loadedEdits.clear();
+		if (failure!=null) throw failure;
+	}
+	
+	private @Nullable VoxelRegionFile getRegion(int chunkX, int chunkY, int chunkZ, int chunkSize, boolean create) throws IOException {
+		int regionX = Math.floorDiv(chunkX, regionSize);
+		int regionY = Math.floorDiv(chunkY, regionSize);
+		int regionZ = Math.floorDiv(chunkZ, regionSize);
+		String name = "r."+regionX+"."+regionY+"."+regionZ+".glr";
+		
+		VoxelRegionFile region = regions.get(name);
+		if (region!=null) return region;
+		
+		Path path = directory.resolve(name);
+		if (!create && !Files.exists(path)) return null;
+		Files.createDirectories(directory);
+		region = VoxelRegionFile.open(path, chunkSize, regionSize);
+		regions.put(name, region);
+		return region;
+	}
+}
@@ -0,0 +1,432 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.model.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.playsawdust.chipper.glow.voxel.MeshableVoxel;
+import com.playsawdust.chipper.glow.voxel.VoxelPatch;
+
+/**
+ * A file holding a cube of regionSize chunks on a side, each chunkSize voxels on a side. The file starts with a fixed-size index, so finding a
+ * chunk is a single lookup, and loading it is one positional read of just that chunk's bytes plus a decompress, no matter how large the file
+ * grows. Offsets are longs throughout, so files past 2GB are fine.
+ *
+ * <p>Layout, all big-endian:
+ * <ul>
+ *   <li>Header: int magic "GLRF", int version, int chunkSize, int regionSize
+ *   <li>Index: regionSize^3 entries of {long offset, int length, int compression}, ordered x, then y, then z. An offset of 0 means the chunk is
+ *       absent.
+ *   <li>Chunk payloads: int paletteSize, then one int id per palette entry, then (varint runLength, varint paletteIndex) pairs covering every
+ *       voxel in VoxelPatch data order. Only palette entries the chunk uses are stored, after the empty entry at index 0, so a payload is never
+ *       longer than its chunk size allows. Deflated payloads are prefixed with their inflated length.
+ * </ul>
+ *
+ * <p>Palette entries are stored as ints, translated through caller-supplied functions in the same way {@link VoxelLoader} translates colors.
+ * A rewritten chunk goes back into its old slot if it fits, and is appended to the end of the file if it doesn't.
+ */
+public class VoxelRegionFile implements Closeable {
+	private static final int MAGIC = ('G' << 24) | ('L' << 16) | ('R' << 8) | 'F';
+	private static final int VERSION_CURRENT = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 16;
+	
+	public static final int COMPRESSION_RLE = 0;
+	public static final int COMPRESSION_DEFLATE = 1;
+	
+	/** Payloads smaller than this are never worth running through Deflater */
+	private static final int DEFLATE_THRESHOLD = 256;
+	
+	private final FileChannel channel;
+	private final int chunkSize;
+	private final int regionSize;
+	private final long[] offsets;
+	private final int[] lengths;
+	private final int[] compression;
+	
+	private VoxelRegionFile(FileChannel channel, int chunkSize, int regionSize) {
+		this.channel = channel;
+		this.chunkSize = chunkSize;
+		this.regionSize = regionSize;
+		int entries = regionSize*regionSize*regionSize;
+		this.offsets = new long[entries];
+		this.lengths = new int[entries];
+		this.compression = new int[entries];
+	}
+	
+	/**
+	 * Opens a region file for reading and writing, creating it if it doesn't exist.
+	 * @throws IOException if the file exists but isn't a region file, or was written with a different chunk or region size
+	 */
+	public static VoxelRegionFile open(Path path, int chunkSize, int regionSize) throws IOException {
+		if (chunkSize<=0 || regionSize<=0) throw new IllegalArgumentException("Chunk and region sizes must be at least 1");
+		
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		VoxelRegionFile result = new VoxelRegionFile(channel, chunkSize, regionSize);
+		try {
+			if (channel.size()==0) {
+				result.writeHeader();
+			} else {
+				result.readHeader();
+			}
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+		return result;
+	}
+	
+	public int getChunkSize() { return chunkSize; }
+	public int getRegionSize() { return regionSize; }
+	
+	/** Returns true if a chunk has been written at the given chunk coordinates, which are relative to this region */
+	public synchronized boolean hasChunk(int x, int y, int z) {
+		return offsets[slot(x, y, z)]!=0;
+	}
+	
+	/**
+	 * Reads a chunk. The returned patch has its offset at the origin, and every sub-block is marked dirty.
+	 * @param x the chunk's x coordinate, relative to this region
+	 * @param y the chunk's y coordinate, relative to this region
+	 * @param z the chunk's z coordinate, relative to this region
+	 * @param idToVoxel a map function turning a stored palette id into a MeshableVoxel
+	 * @return the chunk, or null if it was never written
+	 */
+	public synchronized @Nullable VoxelPatch readChunk(int x, int y, int z, Function<Integer, MeshableVoxel> idToVoxel) throws IOException {
+		int slot = slot(x, y, z);
+		if (offsets[slot]==0) return null;
+		
+		//Both lengths come straight from the file, so check them against the largest chunk this region could have written before allocating
+		int maxLength = maxEncodedLength();
+		if (lengths[slot]<0 || lengths[slot]>maxLength+4) {
+			throw new IOException("Chunk at "+x+", "+y+", "+z+" claims to be "+lengths[slot]+" bytes, outside 0 to "+(maxLength+4)+" for "+chunkSize+"^3-voxel chunks");
+		}
+		ByteBuffer payload = ByteBuffer.allocate(lengths[slot]);
+		readFully(payload, offsets[slot]);
+		payload.flip();
+		
+		if (compression[slot]==COMPRESSION_DEFLATE) {
+			if (payload.remaining()<4) throw new IOException("Chunk at "+x+", "+y+", "+z+" is truncated");
+			int inflatedLength = payload.getInt();
+			if (inflatedLength<0 || inflatedLength>maxLength) {
+				throw new IOException("Chunk at "+x+", "+y+", "+z+" claims to inflate to "+inflatedLength+" bytes, outside 0 to "+maxLength+" for "+chunkSize+"^3-voxel chunks");
+			}
+			ByteBuffer inflated = ByteBuffer.allocate(inflatedLength);
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(payload);
+				while(inflated.hasRemaining() && !inflater.finished()) {
+					if (inflater.inflate(inflated)==0 && inflater.needsInput()) break;
+				}
+			} catch (DataFormatException ex) {
+				throw new IOException("Chunk at "+x+", "+y+", "+z+" is corrupt", ex);
+			} finally {
+				inflater.end();
+			}
+			if (inflated.hasRemaining()) throw new IOException("Chunk at "+x+", "+y+", "+z+" is truncated");
+			inflated.flip();
+			payload = inflated;
+		} else if (compression[slot]!=COMPRESSION_RLE) {
+			throw new IOException("Unknown compression type "+compression[slot]);
+		}
+		
+		return decode(payload, idToVoxel);
+	}
+	
+	/**
+	 * Writes a chunk, replacing any chunk already at these coordinates.
+	 * @param x the chunk's x coordinate, relative to this region
+	 * @param y the chunk's y coordinate, relative to this region
+	 * @param z the chunk's z coordinate, relative to this region
+	 * @param patch the chunk to write. It must be exactly chunkSize on every side; its offset is not stored.
+	 * @param voxelToId a map function turning a palette entry into an int which idToVoxel will turn back into an equivalent MeshableVoxel
+	 */
+	public synchronized void writeChunk(int x, int y, int z, VoxelPatch patch, ToIntFunction<MeshableVoxel> voxelToId) throws IOException {
+		int slot = slot(x, y, z);
+		if (patch.xSize()!=chunkSize || patch.ySize()!=chunkSize || patch.zSize()!=chunkSize) {
+			throw new IllegalArgumentException("Chunk is "+patch.xSize()+"x"+patch.ySize()+"x"+patch.zSize()+", but this region holds "+chunkSize+"-voxel chunks");
+		}
+		
+		byte[] encoded = encode(patch, voxelToId);
+		int encodedLength = encoded.length;
+		int type = COMPRESSION_RLE;
+		if (encodedLength>=DEFLATE_THRESHOLD) {
+			byte[] deflated = deflate(encoded);
+			if (deflated!=null) {
+				encoded = deflated;
+				encodedLength = deflated.length;
+				type = COMPRESSION_DEFLATE;
+			}
+		}
+		
+		long offset = (offsets[slot]!=0 && encodedLength<=lengths[slot]) ? offsets[slot] : Math.max(channel.size(), indexEnd());
+		writeFully(ByteBuffer.wrap(encoded, 0, encodedLength), offset);
+		
+		offsets[slot] = offset;
+		lengths[slot] = encodedLength;
+		compression[slot] = type;
+		writeEntry(slot);
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+	
+	private int slot(int x, int y, int z) {
+		if (x<0 || y<0 || z<0 || x>=regionSize || y>=regionSize || z>=regionSize) {
+			throw new IllegalArgumentException("Chunk "+x+", "+y+", "+z+" is outside this region");
+		}
+		return x + y*regionSize + z*regionSize*regionSize;
+	}
+	
+	private long indexEnd() {
+		return HEADER_SIZE + (long) offsets.length*ENTRY_SIZE;
+	}
+	
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate((int) indexEnd());
+		header.putInt(MAGIC);
+		header.putInt(VERSION_CURRENT);
+		header.putInt(chunkSize);
+		header.putInt(regionSize);
+		//Every entry starts out zeroed
+		header.rewind();
+		writeFully(header, 0);
+	}
+	
+	private void readHeader() throws IOException {
+		if (channel.size()<indexEnd()) throw new IOException("Region file is truncated");
+		ByteBuffer header = ByteBuffer.allocate((int) indexEnd());
+		readFully(header, 0);
+		header.flip();
+		if (header.getInt()!=MAGIC) throw new IOException("Not a region file");
+		int version = header.getInt();
+		if (version!=VERSION_CURRENT) throw new IOException("Version mismatch");
+		int fileChunkSize = header.getInt();
+		int fileRegionSize = header.getInt();
+		if (fileChunkSize!=chunkSize || fileRegionSize!=regionSize) {
+			throw new IOException("Region file holds "+fileRegionSize+"^3 chunks of "+fileChunkSize+"^3 voxels, expected "+regionSize+"^3 chunks of "+chunkSize+"^3 voxels");
+		}
+		
+		for(int i=0; i<offsets.length; i++) {
+			offsets[i] = header.getLong();
+			lengths[i] = header.getInt();
+			compression[i] = header.getInt();
+		}
+	}
+	
+	private void writeEntry(int slot) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+		entry.putLong(offsets[slot]);
+		entry.putInt(lengths[slot]);
+		entry.putInt(compression[slot]);
+		entry.flip();
+		writeFully(entry, HEADER_SIZE + (long) slot*ENTRY_SIZE);
+	}
+	
+	private void readFully(ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if (read<0) throw new IOException("Region file is truncated");
+			position += read;
+		}
+	}
+	
+	private void writeFully(ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+	
+	/*
+	 * Payload encoding
+	 */
+	
+	/**
+	 * The longest a chunk's encoded payload can be: a palette entry for every voxel plus the empty one at id 0, and a run of one for every
+	 * voxel, each written as two varints of up to five bytes
+	 */
+	private int maxEncodedLength() {
+		long voxels = (long) chunkSize*chunkSize*chunkSize;
+		long result = 4 + 4*(voxels+1) + 10*voxels;
+		return (int) Math.min(result, Integer.MAX_VALUE-8);
+	}
+	
+	private static byte[] encode(VoxelPatch patch, ToIntFunction<MeshableVoxel> voxelToId) {
+		List<MeshableVoxel> patchPalette = patch.getPalette();
+		int[] data = patch.getData();
+		
+		//Only write the palette entries the data uses, so the payload's size is bounded by the chunk's. Id 0 always stays, since it means empty;
+		//so do ids outside the palette, which read back as empty too.
+		int[] remap = new int[patchPalette.size()];
+		Arrays.fill(remap, -1);
+		ArrayList<MeshableVoxel> palette = new ArrayList<>();
+		if (remap.length>0) {
+			remap[0] = 0;
+			palette.add(patchPalette.get(0));
+		}
+		for(int i=0; i<data.length; i++) {
+			int id = data[i];
+			if (id<=0 || id>=remap.length) {
+				data[i] = 0;
+				continue;
+			}
+			if (remap[id]==-1) {
+				remap[id] = palette.size();
+				palette.add(patchPalette.get(id));
+			}
+			data[i] = remap[id];
+		}
+		
+		ByteArrayBuilder out = new ByteArrayBuilder(16 + palette.size()*4 + 64);
+		out.writeInt(palette.size());
+		for(MeshableVoxel voxel : palette) {
+			out.writeInt(voxelToId.applyAsInt(voxel));
+		}
+		
+		int i = 0;
+		while(i<data.length) {
+			int id = data[i];
+			int run = 1;
+			while(i+run<data.length && data[i+run]==id) run++;
+			out.writeVarInt(run);
+			out.writeVarInt(id);
+			i += run;
+		}
+		
+		return out.toByteArray();
+	}
+	
+	private VoxelPatch decode(ByteBuffer payload, Function<Integer, MeshableVoxel> idToVoxel) throws IOException {
+		try {
+			int paletteSize = payload.getInt();
+			if (paletteSize<0) throw new IOException("Negative palette size");
+			ArrayList<MeshableVoxel> palette = new ArrayList<>(paletteSize);
+			for(int i=0; i<paletteSize; i++) {
+				palette.add(idToVoxel.apply(payload.getInt()));
+			}
+			
+			int[] data = new int[chunkSize*chunkSize*chunkSize];
+			int i = 0;
+			while(i<data.length) {
+				int run = readVarInt(payload);
+				int id = readVarInt(payload);
+				if (run<=0 || run>data.length-i) throw new IOException("Run length "+run+" is out of range");
+				Arrays.fill(data, i, i+run, id);
+				i += run;
+			}
+			
+			VoxelPatch result = new VoxelPatch(chunkSize, chunkSize, chunkSize);
+			result.setPalette(palette);
+			result.setData(data);
+			return result;
+		} catch (BufferUnderflowException ex) {
+			throw new IOException("Chunk data is truncated", ex);
+		}
+	}
+	
+	/** Deflates an encoded payload, returning null if doing so doesn't save any space */
+	private static byte[] deflate(byte[] encoded) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(encoded);
+			deflater.finish();
+			ByteArrayBuilder out = new ByteArrayBuilder(encoded.length/2 + 16);
+			out.writeInt(encoded.length);
+			byte[] buf = new byte[4096];
+			while(!deflater.finished()) {
+				int count = deflater.deflate(buf);
+				out.write(buf, count);
+				if (out.size()>=encoded.length) return null;
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	private static int readVarInt(ByteBuffer buf) throws IOException {
+		int result = 0;
+		for(int shift=0; shift<35; shift+=7) {
+			int b = buf.get() & 0xFF;
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80)==0) return result;
+		}
+		throw new IOException("VarInt is too long");
+	}
+	
+	/** A ByteArrayOutputStream without the synchronization or the checked exceptions */
+	private static class ByteArrayBuilder {
+		private byte[] data;
+		private int size = 0;
+		
+		public ByteArrayBuilder(int capacity) {
+			data = new byte[Math.max(16, capacity)];
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public void writeByte(int b) {
+			ensureCapacity(1);
+			data[size++] = (byte) b;
+		}
+		
+		public void writeInt(int i) {
+			ensureCapacity(4);
+			data[size++] = (byte) (i >>> 24);
+			data[size++] = (byte) (i >>> 16);
+			data[size++] = (byte) (i >>>  8);
+			data[size++] = (byte) (i       );
+		}
+		
+		public void writeVarInt(int i) {
+			while((i & ~0x7F)!=0) {
+				writeByte((i & 0x7F) | 0x80);
+				i >>>= 7;
+			}
+			writeByte(i);
+		}
+		
+		public void write(byte[] b, int length) {
+			ensureCapacity(length);
+			System.arraycopy(b, 0, data, size, length);
+			size += length;
+		}
+		
+		public byte[] toByteArray() {
+			return Arrays.copyOf(data, size);
+		}
+		
+		private void ensureCapacity(int extra) {
+			if (size+extra>data.length) {
+				data = Arrays.copyOf(data, Math.max(size+extra, (data.length*3)/2));
+			}
+		}
+	}
+}
@@ -214,7 +214,7 @@ public class MeshPass extends AbstractCombinedResource implements RenderPass {
 
 	@Override
 	public BakedMesh bake(Mesh mesh) {
-		BakedMesh result = MeshFlattener.bake(mesh, layout);
+		BakedMesh result = MeshFlattener.bakeIndexed(mesh, layout);
 		result.setRenderPass(this);
 		return result;
 	}
@@ -100,6 +100,7 @@ public abstract class Actor {
 		return result.set(velocity);
 	}
 	
+	/** Sets the velocity, in world units per second, which the Scene moves this Actor by if physics is enabled */
 	public void setVelocity(Vector3dc velocity) {
 		this.velocity.set(velocity);
 	}
@@ -108,6 +109,28 @@ public abstract class Actor {
 		return collisionVolume;
 	}
 	
+	public void setCollision(@Nullable CollisionVolume collisionVolume) {
+		this.collisionVolume = collisionVolume;
+	}
+	
+	/** Returns true if the Scene should move this Actor by its velocity every tick */
+	public boolean isPhysicsEnabled() {
+		return doPhysics;
+	}
+	
+	public void setPhysicsEnabled(boolean doPhysics) {
+		this.doPhysics = doPhysics;
+	}
+	
+	/** Returns true if physics movement should be stopped by the Scene's voxels. Needs a collision volume to have any effect. */
+	public boolean isCollisionEnabled() {
+		return doCollision;
+	}
+	
+	public void setCollisionEnabled(boolean doCollision) {
+		this.doCollision = doCollision;
+	}
+	
 	public void lookAlong(double x, double y, double z) {
 		//TODO: Can I turn this into axisAngles? I can!
 		//double yRot = 0;
@@ -9,6 +9,30 @@
 
 package com.playsawdust.chipper.glow.scene;
 
+import org.joml.Matrix4d;
+import org.joml.Matrix4dc;
+
 public class Camera extends Actor {
-	//TODO: Put the projection here instead of Scene
+	private Matrix4d projectionMatrix = new Matrix4d();
+	
+	public Matrix4dc getProjectionMatrix() {
+		return projectionMatrix;
+	}
+	
+	public void setProjectionMatrix(Matrix4dc projection) {
+		projectionMatrix.set(projection);
+	}
+	
+	/**
+	 * Estimates how much of the screen's height a sphere covers from this Camera, where 1.0 is the full height of the viewport. Spheres which
+	 * surround the camera are reported as 1.0 or more.
+	 */
+	public double getScreenSize(double x, double y, double z, double radius) {
+		double scale = projectionMatrix.m11(); //1/tan(fovY/2) for a perspective projection
+		if (projectionMatrix.m23()==0) return radius*scale; //Orthographic; distance doesn't matter
+		
+		double distance = position.distance(x, y, z);
+		if (distance<=radius) return Math.max(1.0, radius*scale/Math.max(distance, 1e-9));
+		return radius*scale/distance;
+	}
 }
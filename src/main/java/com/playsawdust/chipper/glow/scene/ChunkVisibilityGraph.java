@@ -0,0 +1,312 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.scene;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.joml.FrustumIntersection;
+import org.joml.Vector3dc;
+
+import com.playsawdust.chipper.glow.voxel.MeshableVoxel;
+import com.playsawdust.chipper.glow.voxel.VoxelPatch;
+import com.playsawdust.chipper.glow.voxel.VoxelShape;
+import com.playsawdust.chipper.glow.voxel.VoxelWorld;
+
+/**
+ * Culls voxel chunks which can't be seen through open space from the camera's chunk. Each chunk carries a connectivity mask saying which of
+ * its six faces can see each other through the chunk's open voxels; each frame, a breadth-first search walks outwards from the camera, only
+ * passing through a chunk between faces which are connected, and never turning back towards the camera. Chunks the search never reaches are
+ * hidden behind solid ground, so their actors don't need to be drawn.
+ *
+ * <p>Faces are numbered X-, X+, Y-, Y+, Z-, Z+, the same as VoxelMesher's NEIGHBOUR_ constants. Chunks which aren't in the graph, such as
+ * chunks with nothing in them, count as fully open.
+ *
+ * <p>The mesher doesn't know about this graph. Whatever meshes a chunk should hand the chunk and its new Actor to
+ * {@link #setChunk(VoxelPatch, Actor)}, which works out the connectivity mask as well.
+ */
+public class ChunkVisibilityGraph {
+	/** A connectivity mask where every face can see every other face */
+	public static final long ALL_CONNECTED = (1L << 36) - 1L;
+	
+	/** The search box is (2*MAX_DISTANCE+1)^3 cells at about 20 bytes each, so this cap keeps it to roughly 45MB */
+	public static final int MAX_DISTANCE = 64;
+	
+	private static final int[] FACE_X = { -1, 1,  0, 0,  0, 0 };
+	private static final int[] FACE_Y = {  0, 0, -1, 1,  0, 0 };
+	private static final int[] FACE_Z = {  0, 0,  0, 0, -1, 1 };
+	
+	private final int chunkSize;
+	private final double voxelSize;
+	private int maxDistance = 16;
+	
+	private final HashMap<Long, Node> nodes = new HashMap<>();
+	private final IdentityHashMap<Actor, Node> actors = new IdentityHashMap<>();
+	private int frame = 0;
+	
+	/*
+	 * The search runs inside a box of chunks reaching maxDistance out from the camera's chunk. Cells are indexed x + y*side + z*side*side from
+	 * the box's minimum corner, and a cell's state only counts if its stamp matches the current frame, so nothing is cleared or allocated
+	 * between frames.
+	 */
+	private int side = 0;
+	private int boxX;
+	private int boxY;
+	private int boxZ;
+	/** The frame each cell was last reached by the search */
+	private int[] cellFrame = new int[0];
+	/** The graph node in each cell, valid where cellNodeFrame matches the frame */
+	private Node[] cellNode = new Node[0];
+	private int[] cellNodeFrame = new int[0];
+	/** The face the search entered each cell through, or -1 for the camera's cell */
+	private byte[] cellEntry = new byte[0];
+	/** Bitmask of every face direction the search stepped in to reach each cell */
+	private byte[] cellDirections = new byte[0];
+	private int[] queue = new int[0];
+	
+	/**
+	 * @param chunkSize the edge length of each chunk, in voxels
+	 * @param voxelSize the edge length of each voxel, in world units, as passed to the mesher
+	 */
+	public ChunkVisibilityGraph(int chunkSize, double voxelSize) {
+		this.chunkSize = chunkSize;
+		this.voxelSize = voxelSize;
+	}
+	
+	public int getMaxDistance() { return maxDistance; }
+	
+	/**
+	 * Sets how many chunks away from the camera, along any one axis, the search will reach. Chunks further away are never visible. The search
+	 * keeps about 20 bytes of state for every cell of a box reaching this far in every direction, so this can't go above {@link #MAX_DISTANCE}.
+	 */
+	public void setMaxDistance(int maxDistance) {
+		if (maxDistance<0 || maxDistance>MAX_DISTANCE) throw new IllegalArgumentException("Max distance must be between 0 and "+MAX_DISTANCE);
+		this.maxDistance = maxDistance;
+	}
+	
+	/**
+	 * Adds or updates a chunk.
+	 * @param connectivity the chunk's mask, usually from {@link #computeConnectivity(VoxelPatch)}
+	 * @param actor the Actor which draws this chunk, or null if nothing does
+	 */
+	public void setChunk(int chunkX, int chunkY, int chunkZ, long connectivity, @Nullable Actor actor) {
+		long key = VoxelWorld.chunkKey(chunkX, chunkY, chunkZ);
+		Node node = nodes.get(key);
+		if (node==null) {
+			node = new Node(chunkX, chunkY, chunkZ);
+			nodes.put(key, node);
+		}
+		if (node.actor!=null) actors.remove(node.actor);
+		node.connectivity = connectivity;
+		node.actor = actor;
+		if (actor!=null) actors.put(actor, node);
+	}
+	
+	/**
+	 * Adds or updates a chunk which has just been meshed, working out its chunk coordinates from its offset and its mask from
+	 * {@link #computeConnectivity(VoxelPatch)}.
+	 * @param chunk the chunk, with its offset set to its world position as VoxelWorld does
+	 * @param actor the Actor which draws this chunk, or null if nothing does
+	 */
+	public void setChunk(VoxelPatch chunk, @Nullable Actor actor) {
+		setChunk(
+				Math.floorDiv(chunk.xOffset(), chunkSize), Math.floorDiv(chunk.yOffset(), chunkSize), Math.floorDiv(chunk.zOffset(), chunkSize),
+				computeConnectivity(chunk), actor);
+	}
+	
+	public void removeChunk(int chunkX, int chunkY, int chunkZ) {
+		Node node = nodes.remove(VoxelWorld.chunkKey(chunkX, chunkY, chunkZ));
+		if (node!=null && node.actor!=null) actors.remove(node.actor);
+	}
+	
+	/**
+	 * Finds every chunk which can be seen from the camera's position.
+	 * @param camera the camera position, in world units
+	 * @param frustum if not null, chunks entirely outside this frustum are neither visible nor searched through
+	 */
+	public void update(Vector3dc camera, @Nullable FrustumIntersection frustum) {
+		frame++;
+		
+		double chunkWorldSize = chunkSize*voxelSize;
+		int cameraX = (int) Math.floor(camera.x() / chunkWorldSize);
+		int cameraY = (int) Math.floor(camera.y() / chunkWorldSize);
+		int cameraZ = (int) Math.floor(camera.z() / chunkWorldSize);
+		
+		int newSide = maxDistance*2 + 1;
+		if (newSide!=side) {
+			side = newSide;
+			int volume = side*side*side;
+			cellFrame = new int[volume];
+			cellNode = new Node[volume];
+			cellNodeFrame = new int[volume];
+			cellEntry = new byte[volume];
+			cellDirections = new byte[volume];
+			queue = new int[volume];
+		}
+		boxX = cameraX - maxDistance;
+		boxY = cameraY - maxDistance;
+		boxZ = cameraZ - maxDistance;
+		
+		//Drop the graph's chunks into the box up front, so the search never has to look anything up by key
+		for(Node node : nodes.values()) {
+			int cell = cellAt(node.x, node.y, node.z);
+			if (cell==-1) continue;
+			cellNode[cell] = node;
+			cellNodeFrame[cell] = frame;
+		}
+		
+		int start = cellAt(cameraX, cameraY, cameraZ);
+		cellFrame[start] = frame;
+		cellEntry[start] = -1;
+		cellDirections[start] = 0;
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = start;
+		
+		while(head<tail) {
+			int cell = queue[head++];
+			int x = boxX + cell % side;
+			int y = boxY + (cell / side) % side;
+			int z = boxZ + cell / (side*side);
+			
+			long connectivity = ALL_CONNECTED;
+			if (cellNodeFrame[cell]==frame) {
+				Node node = cellNode[cell];
+				node.visibleFrame = frame;
+				connectivity = node.connectivity;
+			}
+			int entryFace = cellEntry[cell];
+			int directions = cellDirections[cell];
+			
+			for(int face=0; face<6; face++) {
+				//Never step back towards the camera, so the search can't wrap around behind a wall it couldn't see through
+				if ((directions & (1 << (face^1)))!=0) continue;
+				if (entryFace!=-1 && !isConnected(connectivity, entryFace, face)) continue;
+				
+				int nextX = x + FACE_X[face];
+				int nextY = y + FACE_Y[face];
+				int nextZ = z + FACE_Z[face];
+				int next = cellAt(nextX, nextY, nextZ);
+				if (next==-1 || cellFrame[next]==frame) continue;
+				if (frustum!=null && !frustum.testAab(
+						(float) (nextX*chunkWorldSize), (float) (nextY*chunkWorldSize), (float) (nextZ*chunkWorldSize),
+						(float) ((nextX+1)*chunkWorldSize), (float) ((nextY+1)*chunkWorldSize), (float) ((nextZ+1)*chunkWorldSize))) continue;
+				
+				cellFrame[next] = frame;
+				cellEntry[next] = (byte) (face^1);
+				cellDirections[next] = (byte) (directions | (1 << face));
+				queue[tail++] = next;
+			}
+		}
+	}
+	
+	/** Returns true if the chunk was reached by the last {@link #update(Vector3dc, FrustumIntersection) update} */
+	public boolean isVisible(int chunkX, int chunkY, int chunkZ) {
+		int cell = cellAt(chunkX, chunkY, chunkZ);
+		return cell!=-1 && cellFrame[cell]==frame;
+	}
+	
+	/** Returns false if the Actor draws a chunk which the last update couldn't reach. Actors which aren't in the graph are always visible. */
+	public boolean isVisible(Actor actor) {
+		Node node = actors.get(actor);
+		return node==null || node.visibleFrame==frame;
+	}
+	
+	/** Returns the search box cell holding the given chunk, or -1 if it's out of range */
+	private int cellAt(int x, int y, int z) {
+		x -= boxX;
+		y -= boxY;
+		z -= boxZ;
+		if (x<0 || y<0 || z<0 || x>=side || y>=side || z>=side) return -1;
+		return x + y*side + z*side*side;
+	}
+	
+	/** Returns true if faces {@code a} and {@code b} can see each other according to the connectivity mask */
+	public static boolean isConnected(long connectivity, int a, int b) {
+		return (connectivity & (1L << (a*6 + b)))!=0;
+	}
+	
+	/**
+	 * Flood-fills the open (non-CUBE) voxels of a chunk to find which of its faces can see each other. Two faces are connected if any one pocket
+	 * of open space touches both of them.
+	 */
+	public static long computeConnectivity(VoxelPatch chunk) {
+		int xSize = chunk.xSize();
+		int ySize = chunk.ySize();
+		int zSize = chunk.zSize();
+		int volume = xSize*ySize*zSize;
+		
+		List<MeshableVoxel> palette = chunk.getPalette();
+		boolean[] paletteOpaque = new boolean[palette.size()];
+		for(int i=1; i<palette.size(); i++) { //id 0 is always empty
+			MeshableVoxel voxel = palette.get(i);
+			paletteOpaque[i] = voxel!=null && voxel.getShape()==VoxelShape.CUBE;
+		}
+		
+		int[] data = chunk.getData();
+		BitSet visited = new BitSet(volume);
+		for(int i=0; i<volume; i++) {
+			int id = data[i];
+			if (id<paletteOpaque.length && paletteOpaque[id]) visited.set(i);
+		}
+		
+		long result = 0L;
+		int[] stack = new int[Math.max(16, volume)];
+		for(int seed=visited.nextClearBit(0); seed<volume; seed=visited.nextClearBit(seed+1)) {
+			int faces = 0;
+			int stackSize = 0;
+			stack[stackSize++] = seed;
+			visited.set(seed);
+			
+			while(stackSize>0) {
+				int i = stack[--stackSize];
+				int y = i % ySize;
+				int x = (i / ySize) % xSize;
+				int z = i / (ySize*xSize);
+				
+				if (x==0)       faces |= 1 << 0; else if (!visited.get(i-ySize))       { visited.set(i-ySize);       stack[stackSize++] = i-ySize; }
+				if (x==xSize-1) faces |= 1 << 1; else if (!visited.get(i+ySize))       { visited.set(i+ySize);       stack[stackSize++] = i+ySize; }
+				if (y==0)       faces |= 1 << 2; else if (!visited.get(i-1))           { visited.set(i-1);           stack[stackSize++] = i-1; }
+				if (y==ySize-1) faces |= 1 << 3; else if (!visited.get(i+1))           { visited.set(i+1);           stack[stackSize++] = i+1; }
+				if (z==0)       faces |= 1 << 4; else if (!visited.get(i-ySize*xSize)) { visited.set(i-ySize*xSize); stack[stackSize++] = i-ySize*xSize; }
+				if (z==zSize-1) faces |= 1 << 5; else if (!visited.get(i+ySize*xSize)) { visited.set(i+ySize*xSize); stack[stackSize++] = i+ySize*xSize; }
+			}
+			
+			for(int a=0; a<6; a++) {
+				if ((faces & (1 << a))==0) continue;
+				for(int b=0; b<6; b++) {
+					if ((faces & (1 << b))!=0) result |= 1L << (a*6 + b);
+				}
+			}
+			if (result==ALL_CONNECTED) break;
+		}
+		
+		return result;
+	}
+	
+	private static class Node {
+		private final int x;
+		private final int y;
+		private final int z;
+		private long connectivity;
+		private Actor actor;
+		
+		private int visibleFrame = -1;
+		
+		public Node(int x, int y, int z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+	}
+}
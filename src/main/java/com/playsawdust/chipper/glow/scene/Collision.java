@@ -9,14 +9,15 @@
 
 package com.playsawdust.chipper.glow.scene;
 
-import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.joml.Vector3d;
 import org.joml.Vector3dc;
 
-import com.playsawdust.chipper.glow.mesher.VoxelMesher;
 import com.playsawdust.chipper.glow.voxel.VecFunction;
+import com.playsawdust.chipper.glow.voxel.VoxelPatch;
 import com.playsawdust.chipper.glow.voxel.VoxelShape;
 
 public class Collision {
@@ -182,214 +183,281 @@ public class Collision {
 		return null;
 	}
 	
-	/** Verbose collisions include stepping information across the ray */
-	public static @Nullable Vector3d raycastVoxel(Vector3dc start, Vector3dc ray, double limit, VecFunction<VoxelShape> getVoxelShape, @Nullable CollisionResult result, boolean verbose) {
-		if (result!=null) result.clearSteps();
-		double len = 0;
-		Vector3d cur = new Vector3d(start);
-		
-		ArrayList<Vector3dc> planes = new ArrayList<>();
+	/**
+	 * Samples along a ray like {@link #raycastVoxelCoarse(Vector3dc, Vector3dc, double, VecFunction)}, but looks the samples up in a VoxelPatch,
+	 * and jumps straight past any empty 4x4x4 brick of the patch instead of sampling its air. The samples which are taken land in the same places.
+	 * Coordinates are floored, so this also works for patches at negative offsets.
+	 */
+	public static @Nullable Vector3d raycastVoxelCoarse(Vector3dc start, Vector3dc ray, double limit, VoxelPatch patch) {
+		double stepMagnitude = 0.25;
+		double sx = start.x();
+		double sy = start.y();
+		double sz = start.z();
 		double dx = ray.x();
 		double dy = ray.y();
 		double dz = ray.z();
-		double mdx = Math.abs(dx);
-		double mdy = Math.abs(dy);
-		double mdz = Math.abs(dz);
-		
-		//Add vectors representing the complement of the normals for the three planes we might collide with, favoring the axis the ray is traveling in
-		if (mdz>=mdx && mdz>=mdy) {
-			planes.add(dz<0 ? VoxelMesher.VEC_ZMINUS : VoxelMesher.VEC_ZPLUS);
-			planes.add(dx<0 ? VoxelMesher.VEC_XMINUS : VoxelMesher.VEC_XPLUS);
-			planes.add(dy<0 ? VoxelMesher.VEC_YMINUS : VoxelMesher.VEC_YPLUS);
-		}  else if (mdy>=mdx && mdy>=mdz) {
-			planes.add(dy<0 ? VoxelMesher.VEC_YMINUS : VoxelMesher.VEC_YPLUS);
-			planes.add(dx<0 ? VoxelMesher.VEC_XMINUS : VoxelMesher.VEC_XPLUS);
-			planes.add(dz<0 ? VoxelMesher.VEC_ZMINUS : VoxelMesher.VEC_ZPLUS);
-		} else {
-			planes.add(dx<0 ? VoxelMesher.VEC_XMINUS : VoxelMesher.VEC_XPLUS);
-			planes.add(dy<0 ? VoxelMesher.VEC_YMINUS : VoxelMesher.VEC_YPLUS);
-			planes.add(dz<0 ? VoxelMesher.VEC_ZMINUS : VoxelMesher.VEC_ZPLUS);
-		}
-		
-		int cubeX = (int)cur.x;
-		int cubeY = (int)cur.y;
-		int cubeZ = (int)cur.z;
 		
-		if ( (dx<0) && (Math.floor(cur.x)==cur.x) ) cubeX--;
-		if ( (dy<0) && (Math.floor(cur.y)==cur.y) ) cubeY--;
-		if ( (dz<0) && (Math.floor(cur.z)==cur.z) ) cubeZ--;
-		
-		Vector3d proj = new Vector3d();
+		double len = 0;
 		while(len<limit) {
-			boolean failure = true;
-			for(Vector3dc vec : planes) {
-				if (vec==VoxelMesher.VEC_YPLUS) {
-					Vector3d projB = rayPlane(cur, ray, new Vector3d(0, cubeY+1, 0), new Vector3d(vec).mul(-1), proj);
-					//Vector3d projB = rayPlaneY(cur, ray, cubeY+1, proj);
-					if (projB!=null) {
-						
-						if ((projB.x>=cubeX && projB.x<=cubeX+1) && (projB.z>=cubeZ && projB.z<=cubeZ+1)) {
-							double crossing = new Vector3d(projB).sub(cur).length(); //How far did we go during this projection?
-							len += crossing;
-							if (result!=null && verbose) result.addStep(new Vector3d(projB));
-							//grab the target cube to see if we collided
-							VoxelShape shape = getVoxelShape.apply(cubeX, cubeY+1, cubeZ);
-							if (shape!=VoxelShape.EMPTY) {
-								if (result!=null) {
-									result.setVoxelPos(cubeX, cubeY+1, cubeZ);
-									result.setHitLocation(projB);
-									result.setHitNormal(new Vector3d(0, -1, 0));
-								}
-								
-								return projB;
-							}
-							failure = false;
-							cur.set(projB);
-							cubeY += 1;
-							break;
-						}
-					}
-				} else if (vec==VoxelMesher.VEC_YMINUS) {
-					Vector3d projB = rayPlane(cur, ray, new Vector3d(0, cubeY, 0), new Vector3d(vec).mul(-1), proj);
-					//Vector3d projB = rayPlaneY(cur, ray, cubeY, proj);
-					if (projB!=null) {
-						
-						if ((projB.x>=cubeX && projB.x<=cubeX+1) && (projB.z>=cubeZ && projB.z<=cubeZ+1)) {
-							double crossing = new Vector3d(projB).sub(cur).length(); //How far did we go during this projection?
-							len += crossing;
-							if (result!=null && verbose) result.addStep(new Vector3d(projB));
-							//grab the target cube to see if we collided
-							VoxelShape shape = getVoxelShape.apply(cubeX, cubeY-1, cubeZ);
-							if (shape!=VoxelShape.EMPTY) {
-								if (result!=null) {
-									result.setVoxelPos(cubeX, cubeY-1, cubeZ);
-									result.setHitLocation(projB);
-									result.setHitNormal(new Vector3d(0, 1, 0));
-								}
-								
-								return projB;
-							}
-							failure = false;
-							cur.set(projB);
-							cubeY -= 1;
-							break;
-						}
-					}
-				} else if (vec==VoxelMesher.VEC_XPLUS) {
-					Vector3d projB = rayPlane(cur, ray, new Vector3d(cubeX+1, 0, 0), new Vector3d(vec).mul(-1), proj);
-					//Vector3d projB = rayPlaneX(cur, ray, cubeX+1, proj);
-					if (projB!=null) {
-						
-						if ((projB.y>=cubeY && projB.y<=cubeY+1) && (projB.z>=cubeZ && projB.z<=cubeZ+1)) {
-							double crossing = new Vector3d(projB).sub(cur).length(); //How far did we go during this projection?
-							len += crossing;
-							if (result!=null && verbose) result.addStep(new Vector3d(projB));
-							//grab the target cube to see if we collided
-							VoxelShape shape = getVoxelShape.apply(cubeX+1, cubeY, cubeZ);
-							if (shape!=VoxelShape.EMPTY) {
-								if (result!=null) {
-									result.setVoxelPos(cubeX+1, cubeY, cubeZ);
-									result.setHitLocation(projB);
-									result.setHitNormal(new Vector3d(-1, 0, 0));
-								}
-								
-								return projB;
-							}
-							failure = false;
-							cur.set(projB);
-							cubeX += 1;
-							break;
-						}
-					}
-				} else if (vec==VoxelMesher.VEC_XMINUS) {
-					Vector3d projB = rayPlane(cur, ray, new Vector3d(cubeX, 0, 0), new Vector3d(vec).mul(-1), proj);
-					//Vector3d projB = rayPlaneX(cur, ray, cubeX, proj);
-					if (projB!=null) {
-						
-						if ((projB.y>=cubeY && projB.y<=cubeY+1) && (projB.z>=cubeZ && projB.z<=cubeZ+1)) {
-							double crossing = new Vector3d(projB).sub(cur).length(); //How far did we go during this projection?
-							len += crossing;
-							if (result!=null && verbose) result.addStep(new Vector3d(projB));
-							//grab the target cube to see if we collided
-							VoxelShape shape = getVoxelShape.apply(cubeX-1, cubeY, cubeZ);
-							if (shape!=VoxelShape.EMPTY) {
-								if (result!=null) {
-									result.setVoxelPos(cubeX-1, cubeY, cubeZ);
-									result.setHitLocation(projB);
-									result.setHitNormal(new Vector3d(1, 0, 0));
-								}
-								
-								return projB;
-							}
-							failure = false;
-							cur.set(projB);
-							cubeX -= 1;
-							break;
-						}
-					}
-				} else if (vec==VoxelMesher.VEC_ZPLUS) {
-					Vector3d projB = rayPlane(cur, ray, new Vector3d(0, 0, cubeZ+1), new Vector3d(vec).mul(-1), proj);
-					//Vector3d projB = rayPlaneZ(cur, ray, cubeZ+1, proj);
-					if (projB!=null) {
-						
-						if ((projB.x>=cubeX && projB.x<=cubeX+1) && (projB.y>=cubeY && projB.y<=cubeY+1)) {
-							double crossing = new Vector3d(projB).sub(cur).length(); //How far did we go during this projection?
-							len += crossing;
-							if (result!=null && verbose) result.addStep(new Vector3d(projB));
-							//grab the target cube to see if we collided
-							VoxelShape shape = getVoxelShape.apply(cubeX, cubeY, cubeZ+1);
-							if (shape!=VoxelShape.EMPTY) {
-								if (result!=null) {
-									result.setVoxelPos(cubeX, cubeY, cubeZ+1);
-									result.setHitLocation(projB);
-									result.setHitNormal(new Vector3d(0, 0, -1));
-								}
-								
-								return projB;
-							}
-							failure = false;
-							cur.set(projB);
-							cubeZ += 1;
-							break;
-						}
-					}
-				} else if (vec==VoxelMesher.VEC_ZMINUS) {
-					Vector3d projB = rayPlane(cur, ray, new Vector3d(0, 0, cubeZ), new Vector3d(vec).mul(-1), proj);
-					//Vector3d projB = rayPlaneZ(cur, ray, cubeZ, proj);
-					if (projB!=null) {
-						
-						if ((projB.x>=cubeX && projB.x<=cubeX+1) && (projB.y>=cubeY && projB.y<=cubeY+1)) {
-							if (result!=null && verbose) result.addStep(new Vector3d(projB));
-							double crossing = new Vector3d(projB).sub(cur).length(); //How far did we go during this projection?
-							len += crossing;
-							//grab the target cube to see if we collided
-							VoxelShape shape = getVoxelShape.apply(cubeX, cubeY, cubeZ-1);
-							if (shape!=VoxelShape.EMPTY) {
-								if (result!=null) {
-									result.setVoxelPos(cubeX, cubeY, cubeZ-1);
-									result.setHitLocation(projB);
-									result.setHitNormal(new Vector3d(0, 0, 1));
-								}
-								
-								return projB;
-							}
-							failure = false;
-							cur.set(projB);
-							cubeZ -= 1;
-							break;
-						}
-					}
-				}
-			}
+			double px = sx + dx*len;
+			double py = sy + dy*len;
+			double pz = sz + dz*len;
+			int x = (int) Math.floor(px);
+			int y = (int) Math.floor(py);
+			int z = (int) Math.floor(pz);
 			
-			if (failure) {
-				return null; //Rebellion 2.0 You Can Not Advance
+			if (patch.isInEmptyBrick(x, y, z)) {
+				//Find where the ray leaves this brick, and resume at the first sample past that point
+				int brickX = patch.xOffset() + Math.floorDiv(x-patch.xOffset(), VoxelPatch.BRICK_SIZE)*VoxelPatch.BRICK_SIZE;
+				int brickY = patch.yOffset() + Math.floorDiv(y-patch.yOffset(), VoxelPatch.BRICK_SIZE)*VoxelPatch.BRICK_SIZE;
+				int brickZ = patch.zOffset() + Math.floorDiv(z-patch.zOffset(), VoxelPatch.BRICK_SIZE)*VoxelPatch.BRICK_SIZE;
+				double exit = Math.min(brickExit(px, dx, brickX), Math.min(brickExit(py, dy, brickY), brickExit(pz, dz, brickZ)));
+				len += Math.max(1, Math.ceil(exit / stepMagnitude)) * stepMagnitude;
+				continue;
 			}
 			
+			if (patch.getShape(x, y, z)!=VoxelShape.EMPTY) {
+				return new Vector3d(px, py, pz);
+			}
+			len += stepMagnitude;
 		}
 		return null;
 	}
 	
+	/** How far along the ray, in ray lengths, a point at {@code p} moving by {@code d} leaves the brick starting at {@code brickMin} */
+	private static double brickExit(double p, double d, int brickMin) {
+		if (d>0) return (brickMin + VoxelPatch.BRICK_SIZE - p) / d;
+		if (d<0) return (brickMin - p) / d;
+		return Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Casts a ray through unit voxels, stopping at the first voxel which isn't {@link VoxelShape#EMPTY}. The voxel the ray starts in is never
+	 * considered a hit. Verbose collisions include stepping information across the ray.
+	 * @param limit the maximum distance to travel, in world units
+	 * @return the hit location, or null if nothing was hit within the limit
+	 */
+	public static @Nullable Vector3d raycastVoxel(Vector3dc start, Vector3dc ray, double limit, VecFunction<VoxelShape> getVoxelShape, @Nullable CollisionResult result, boolean verbose) {
+		if (result==null) result = new CollisionResult();
+		if (!traverseVoxels(start.x(), start.y(), start.z(), ray.x(), ray.y(), ray.z(), limit, getVoxelShape, result, verbose)) return null;
+		return new Vector3d(result.getHitLocation());
+	}
+	
+	/**
+	 * Casts a ray through unit voxels without allocating anything, stopping at the first voxel which isn't {@link VoxelShape#EMPTY}. The voxel
+	 * the ray starts in is never considered a hit.
+	 * @param limit the maximum distance to travel, in world units
+	 * @param result receives the hit voxel, location, and normal. Left unchanged (apart from its steps being cleared) if nothing was hit.
+	 * @return true if a voxel was hit within the limit
+	 */
+	public static boolean raycastVoxel(Vector3dc start, Vector3dc ray, double limit, VecFunction<VoxelShape> getVoxelShape, CollisionResult result) {
+		return traverseVoxels(start.x(), start.y(), start.z(), ray.x(), ray.y(), ray.z(), limit, getVoxelShape, result, false);
+	}
+	
+	/** Primitive version of {@link #raycastVoxel(Vector3dc, Vector3dc, double, VecFunction, CollisionResult)} */
+	public static boolean raycastVoxel(double startX, double startY, double startZ, double rayX, double rayY, double rayZ, double limit, VecFunction<VoxelShape> getVoxelShape, CollisionResult result) {
+		return traverseVoxels(startX, startY, startZ, rayX, rayY, rayZ, limit, getVoxelShape, result, false);
+	}
+	
+	/** Casts every ray in the batch on the common ForkJoinPool. See {@link #raycastVoxels(VoxelRaycastBatch, VecFunction, ForkJoinPool)}. */
+	public static int raycastVoxels(VoxelRaycastBatch batch, VecFunction<VoxelShape> getVoxelShape) {
+		return raycastVoxels(batch, getVoxelShape, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Casts every ray in the batch, splitting the batch into runs of neighbouring rays which are cast in parallel on the provided pool. Each ray
+	 * behaves exactly like {@link #raycastVoxel(double, double, double, double, double, double, double, VecFunction, CollisionResult)}, and its
+	 * results land in the batch's hit arrays.
+	 * 
+	 * <p>getVoxelShape will be called from several threads at once, so it must be safe to read concurrently. A VoxelPatch which isn't being
+	 * edited is fine, and so is a VoxelWorld, which only takes its lock when a ray reaches a chunk that isn't loaded yet.
+	 * @return the number of rays which hit something
+	 */
+	public static int raycastVoxels(VoxelRaycastBatch batch, VecFunction<VoxelShape> getVoxelShape, ForkJoinPool pool) {
+		int hits = pool.invoke(new RaycastTask(batch, getVoxelShape, 0, batch.size()));
+		batch.setHitCount(hits);
+		return hits;
+	}
+	
+	/** Casts the rays [start, end) of a batch, splitting the range in half until it's small enough to just do. Returns the number of hits. */
+	private static class RaycastTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = -3318262520183326498L;
+		private static final int RAYS_PER_TASK = 64;
+		
+		private final VoxelRaycastBatch batch;
+		private final VecFunction<VoxelShape> getVoxelShape;
+		private final int start;
+		private final int end;
+		
+		public RaycastTask(VoxelRaycastBatch batch, VecFunction<VoxelShape> getVoxelShape, int start, int end) {
+			this.batch = batch;
+			this.getVoxelShape = getVoxelShape;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected Integer compute() {
+			if (end-start>RAYS_PER_TASK) {
+				int mid = (start+end)/2;
+				RaycastTask left = new RaycastTask(batch, getVoxelShape, start, mid);
+				RaycastTask right = new RaycastTask(batch, getVoxelShape, mid, end);
+				right.fork();
+				int leftHits = left.compute();
+				return right.join() + leftHits;
+			}
+			
+			return batch.cast(start, end, getVoxelShape);
+		}
+	}
+	
+	/**
+	 * Amanatides-Woo grid traversal. Rather than projecting onto each candidate plane, we keep the ray parameter {@code t} at which the ray next
+	 * crosses an X, Y, and Z voxel boundary, and always step across whichever comes first. Every boundary on an axis is the same distance apart
+	 * in {@code t}, so each step is a compare and an add.
+	 */
+	private static boolean traverseVoxels(double startX, double startY, double startZ, double rayX, double rayY, double rayZ, double limit, VecFunction<VoxelShape> getVoxelShape, CollisionResult result, boolean verbose) {
+		result.clearSteps();
+		double rayLength = Math.sqrt(rayX*rayX + rayY*rayY + rayZ*rayZ);
+		if (rayLength==0 || Double.isNaN(rayLength)) return false;
+		double tLimit = limit / rayLength;
+		
+		//Math.floor rather than an (int) cast, so that negative coordinates land in the right voxel
+		int x = (int) Math.floor(startX);
+		int y = (int) Math.floor(startY);
+		int z = (int) Math.floor(startZ);
+		
+		int stepX = (rayX>0) ? 1 : (rayX<0) ? -1 : 0;
+		int stepY = (rayY>0) ? 1 : (rayY<0) ? -1 : 0;
+		int stepZ = (rayZ>0) ? 1 : (rayZ<0) ? -1 : 0;
+		
+		double tDeltaX = (stepX!=0) ? 1.0 / Math.abs(rayX) : Double.POSITIVE_INFINITY;
+		double tDeltaY = (stepY!=0) ? 1.0 / Math.abs(rayY) : Double.POSITIVE_INFINITY;
+		double tDeltaZ = (stepZ!=0) ? 1.0 / Math.abs(rayZ) : Double.POSITIVE_INFINITY;
+		
+		double tMaxX = (stepX>0) ? (x+1-startX) / rayX : (stepX<0) ? (x-startX) / rayX : Double.POSITIVE_INFINITY;
+		double tMaxY = (stepY>0) ? (y+1-startY) / rayY : (stepY<0) ? (y-startY) / rayY : Double.POSITIVE_INFINITY;
+		double tMaxZ = (stepZ>0) ? (z+1-startZ) / rayZ : (stepZ<0) ? (z-startZ) / rayZ : Double.POSITIVE_INFINITY;
+		
+		while(true) {
+			double t;
+			double normalX = 0;
+			double normalY = 0;
+			double normalZ = 0;
+			if (tMaxX<=tMaxY && tMaxX<=tMaxZ) {
+				t = tMaxX;
+				if (t>tLimit) return false;
+				x += stepX;
+				tMaxX += tDeltaX;
+				normalX = -stepX;
+			} else if (tMaxY<=tMaxZ) {
+				t = tMaxY;
+				if (t>tLimit) return false;
+				y += stepY;
+				tMaxY += tDeltaY;
+				normalY = -stepY;
+			} else {
+				t = tMaxZ;
+				if (t>tLimit) return false;
+				z += stepZ;
+				tMaxZ += tDeltaZ;
+				normalZ = -stepZ;
+			}
+			
+			double hitX = startX + rayX*t;
+			double hitY = startY + rayY*t;
+			double hitZ = startZ + rayZ*t;
+			if (verbose) result.addStep(new Vector3d(hitX, hitY, hitZ));
+			
+			if (getVoxelShape.apply(x, y, z)!=VoxelShape.EMPTY) {
+				result.setVoxelPos(x, y, z);
+				result.setHitLocation(hitX, hitY, hitZ);
+				result.setHitNormal(normalX, normalY, normalZ);
+				return true;
+			}
+		}
+	}
+	
+	
+	public static final int BLOCKED_X = 1;
+	public static final int BLOCKED_Y = 2;
+	public static final int BLOCKED_Z = 4;
+	
+	/** Slack for boxes resting exactly against a voxel face, so float error doesn't count them as overlapping it */
+	private static final double SWEEP_EPSILON = 1e-7;
+	
+	/**
+	 * Moves an axis-aligned box through unit voxels, stopping it against any voxel which isn't {@link VoxelShape#EMPTY}. Movement is resolved
+	 * one axis at a time (Y, then X, then Z), so a box blocked along one axis still slides along the others. Only the voxels the box sweeps
+	 * across are looked at, nearest first, and nothing is allocated. Voxels the box already overlaps are ignored, so a box which starts inside
+	 * the ground can climb out.
+	 * @param motion the movement to try. It's overwritten with the movement which actually happened.
+	 * @return a combination of {@link #BLOCKED_X}, {@link #BLOCKED_Y}, and {@link #BLOCKED_Z} for each axis the box was stopped on
+	 */
+	public static int sweepBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ, Vector3d motion, VecFunction<VoxelShape> getVoxelShape) {
+		int blocked = 0;
+		
+		double dy = sweepAxis(minY, maxY, minX, maxX, minZ, maxZ, motion.y, 1, getVoxelShape);
+		if (dy!=motion.y) blocked |= BLOCKED_Y;
+		minY += dy;
+		maxY += dy;
+		
+		double dx = sweepAxis(minX, maxX, minY, maxY, minZ, maxZ, motion.x, 0, getVoxelShape);
+		if (dx!=motion.x) blocked |= BLOCKED_X;
+		minX += dx;
+		maxX += dx;
+		
+		double dz = sweepAxis(minZ, maxZ, minX, maxX, minY, maxY, motion.z, 2, getVoxelShape);
+		if (dz!=motion.z) blocked |= BLOCKED_Z;
+		
+		motion.set(dx, dy, dz);
+		return blocked;
+	}
+	
+	/**
+	 * Finds how far a box can move along one axis. {@code min} and {@code max} are the box's extent on the moving axis, and {@code aMin..bMax}
+	 * its extent on the other two axes, in X, Y, Z order with the moving axis left out.
+	 */
+	private static double sweepAxis(double min, double max, double aMin, double aMax, double bMin, double bMax, double distance, int axis, VecFunction<VoxelShape> getVoxelShape) {
+		if (distance==0) return 0;
+		
+		int a0 = (int) Math.floor(aMin + SWEEP_EPSILON);
+		int a1 = (int) Math.ceil(aMax - SWEEP_EPSILON) - 1;
+		int b0 = (int) Math.floor(bMin + SWEEP_EPSILON);
+		int b1 = (int) Math.ceil(bMax - SWEEP_EPSILON) - 1;
+		
+		if (distance>0) {
+			int first = (int) Math.ceil(max - SWEEP_EPSILON);
+			int last = (int) Math.ceil(max + distance - SWEEP_EPSILON) - 1;
+			for(int layer=first; layer<=last; layer++) {
+				if (isLayerBlocked(layer, a0, a1, b0, b1, axis, getVoxelShape)) return Math.max(0, layer - max);
+			}
+		} else {
+			int first = (int) Math.floor(min + SWEEP_EPSILON) - 1;
+			int last = (int) Math.floor(min + distance + SWEEP_EPSILON);
+			for(int layer=first; layer>=last; layer--) {
+				if (isLayerBlocked(layer, a0, a1, b0, b1, axis, getVoxelShape)) return Math.min(0, (layer+1) - min);
+			}
+		}
+		
+		return distance;
+	}
+	
+	private static boolean isLayerBlocked(int layer, int a0, int a1, int b0, int b1, int axis, VecFunction<VoxelShape> getVoxelShape) {
+		for(int a=a0; a<=a1; a++) {
+			for(int b=b0; b<=b1; b++) {
+				VoxelShape shape;
+				switch(axis) {
+					case 0:  shape = getVoxelShape.apply(layer, a, b); break;
+					case 1:  shape = getVoxelShape.apply(a, layer, b); break;
+					default: shape = getVoxelShape.apply(a, b, layer); break;
+				}
+				if (shape!=VoxelShape.EMPTY) return true;
+			}
+		}
+		return false;
+	}
+	
 	
 	public static Vector3d rayPlane(Vector3dc start, Vector3dc ray, Vector3dc planePoint, Vector3dc planeNormal, Vector3d result) {
 		double denominator = planeNormal.dot(ray);
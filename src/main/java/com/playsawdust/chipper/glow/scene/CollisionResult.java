@@ -21,9 +21,9 @@ public class CollisionResult {
 	private int voxelY;
 	private int voxelZ;
 	
-	private Vector3dc normal;
+	private final Vector3d normal = new Vector3d();
 	
-	private Vector3dc hitLocation;
+	private final Vector3d hitLocation = new Vector3d();
 	
 	private ArrayList<Vector3dc> steps = new ArrayList<>();
 	
@@ -32,12 +32,20 @@ public class CollisionResult {
 		return result.set(voxelX+0.5, voxelY+0.5, voxelZ+0.5);
 	}
 	
+	public int getVoxelX() { return voxelX; }
+	public int getVoxelY() { return voxelY; }
+	public int getVoxelZ() { return voxelZ; }
+	
 	public Vector3dc getHitLocation() {
 		return hitLocation;
 	}
 	
 	public void setHitLocation(Vector3dc loc) {
-		hitLocation = loc;
+		hitLocation.set(loc);
+	}
+	
+	public void setHitLocation(double x, double y, double z) {
+		hitLocation.set(x, y, z);
 	}
 	
 	public void setVoxelPos(int x, int y, int z) {
@@ -66,7 +74,11 @@ public class CollisionResult {
 	}
 
 	public void setHitNormal(Vector3dc normal) {
-		this.normal = normal;
+		this.normal.set(normal);
+	}
+	
+	public void setHitNormal(double x, double y, double z) {
+		normal.set(x, y, z);
 	}
 	
 	public Vector3d getHitNormal(Vector3d result) {
@@ -20,6 +20,12 @@ public abstract class CollisionVolume {
 	protected double sphereY = 0;
 	protected double sphereZ = 0;
 	protected double sphereRadius = 0;
+	protected double boxMinX = 0;
+	protected double boxMinY = 0;
+	protected double boxMinZ = 0;
+	protected double boxMaxX = 0;
+	protected double boxMaxY = 0;
+	protected double boxMaxZ = 0;
 	
 	public static class Sphere extends CollisionVolume {
 		public Sphere(double x, double y, double z, double radius) {
@@ -27,6 +33,34 @@ public abstract class CollisionVolume {
 			this.sphereY = y;
 			this.sphereZ = z;
 			this.sphereRadius = radius;
+			
+			this.boxMinX = x-radius;
+			this.boxMinY = y-radius;
+			this.boxMinZ = z-radius;
+			this.boxMaxX = x+radius;
+			this.boxMaxY = y+radius;
+			this.boxMaxZ = z+radius;
+		}
+	}
+	
+	/** An axis-aligned box, with a coarse sphere that just encloses it */
+	public static class Box extends CollisionVolume {
+		public Box(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+			if (minX>maxX || minY>maxY || minZ>maxZ) throw new IllegalArgumentException("Box minimum can't be greater than its maximum");
+			this.boxMinX = minX;
+			this.boxMinY = minY;
+			this.boxMinZ = minZ;
+			this.boxMaxX = maxX;
+			this.boxMaxY = maxY;
+			this.boxMaxZ = maxZ;
+			
+			this.sphereX = (minX+maxX)/2;
+			this.sphereY = (minY+maxY)/2;
+			this.sphereZ = (minZ+maxZ)/2;
+			double halfX = (maxX-minX)/2;
+			double halfY = (maxY-minY)/2;
+			double halfZ = (maxZ-minZ)/2;
+			this.sphereRadius = Math.sqrt(halfX*halfX + halfY*halfY + halfZ*halfZ);
 		}
 	}
 	
@@ -45,4 +79,23 @@ public abstract class CollisionVolume {
 	public double getSphereRadius() {
 		return sphereRadius;
 	}
+	
+	/**
+	 * Gets the minimum corner of the axis-aligned box the Actor collides with voxels as, relative to the Actor. Spheres collide as the box
+	 * which encloses them.
+	 */
+	public Vector3d getBoxMin(@Nullable Vector3d dest) {
+		if (dest==null) dest = new Vector3d();
+		dest.set(boxMinX, boxMinY, boxMinZ);
+		return dest;
+	}
+	
+	/**
+	 * Gets the maximum corner of the axis-aligned box the Actor collides with voxels as, relative to the Actor.
+	 */
+	public Vector3d getBoxMax(@Nullable Vector3d dest) {
+		if (dest==null) dest = new Vector3d();
+		dest.set(boxMaxX, boxMaxY, boxMaxZ);
+		return dest;
+	}
 }
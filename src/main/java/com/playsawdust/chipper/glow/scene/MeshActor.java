@@ -9,6 +9,9 @@
 
 package com.playsawdust.chipper.glow.scene;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.joml.Matrix3d;
+import org.joml.Vector3d;
 import org.joml.Vector3dc;
 
 import com.playsawdust.chipper.glow.gl.BakedModel;
@@ -20,7 +23,14 @@ import com.playsawdust.chipper.glow.model.Vertex;
 
 public class MeshActor extends Actor {
 	protected Mesh detailedCollision;
+	/** Built from detailedCollision the first time it's needed */
+	protected TriangleBVH collisionBVH = null;
 	//protected BakedModel renderObject;
+	/** Coarser stand-ins for renderObject, from most to least detailed. Null if this actor has no levels of detail. */
+	protected Object[] lodObjects = null;
+	/** Each level in lodObjects is drawn once this actor covers less than the matching fraction of the screen's height */
+	protected double[] lodScreenSizes = null;
+	private Vector3d sphereCenter = new Vector3d();
 	
 	public MeshActor() {}
 	
@@ -38,8 +48,47 @@ public class MeshActor extends Actor {
 		this.renderObject = renderModel;
 	}
 	
+	/**
+	 * Sets coarser render objects to draw in place of the render model when this actor is small on screen, such as baked levels from
+	 * {@link com.playsawdust.chipper.glow.model.MeshSimplifier#buildLODChain MeshSimplifier.buildLODChain}. Screen sizes are measured across
+	 * the collision volume's bounding sphere, as a fraction of the screen's height.
+	 * @param levels render objects from most to least detailed, not including the full-detail render model
+	 * @param screenSizes for each level, the screen size below which it's drawn. These must go from largest to smallest.
+	 */
+	public void setLevelsOfDetail(Object[] levels, double[] screenSizes) {
+		if (levels.length!=screenSizes.length) throw new IllegalArgumentException("Every level of detail needs a screen size");
+		for(int i=1; i<screenSizes.length; i++) {
+			if (screenSizes[i]>screenSizes[i-1]) throw new IllegalArgumentException("Screen sizes must go from largest to smallest");
+		}
+		this.lodObjects = levels.clone();
+		this.lodScreenSizes = screenSizes.clone();
+	}
+	
+	public void clearLevelsOfDetail() {
+		this.lodObjects = null;
+		this.lodScreenSizes = null;
+	}
+	
+	/** Gets the level of detail this actor would be drawn at from the camera: 0 for the full-detail render model, 1 for the first coarser level, and so on */
+	public int getLevelOfDetail(Camera camera) {
+		if (lodObjects==null || collisionVolume==null) return 0;
+		collisionVolume.getSphereOffset(sphereCenter).add(position);
+		double size = camera.getScreenSize(sphereCenter.x, sphereCenter.y, sphereCenter.z, collisionVolume.getSphereRadius());
+		
+		int level = 0;
+		while(level<lodScreenSizes.length && size<lodScreenSizes[level]) level++;
+		return level;
+	}
+	
+	@Override
+	public Object getRenderObject(Camera camera) {
+		int level = getLevelOfDetail(camera);
+		return (level==0) ? renderObject : lodObjects[level-1];
+	}
+	
 	public void setCollisionMesh(Mesh collisionMesh) {
 		this.detailedCollision = collisionMesh;
+		this.collisionBVH = null;
 		
 		//Figure out the bounding sphere
 		double furthestD2 = 0.0;
@@ -61,4 +110,34 @@ public class MeshActor extends Actor {
 		}
 		setCollisionMesh(detailedCollision);
 	}
+	
+	/** Gets a BVH over the collision mesh, in the actor's local space, building it if needed. Returns null if there's no collision mesh. */
+	public @Nullable TriangleBVH getCollisionBVH() {
+		if (collisionBVH==null && detailedCollision!=null) collisionBVH = TriangleBVH.of(detailedCollision);
+		return collisionBVH;
+	}
+	
+	/**
+	 * Casts a world-space ray against this actor's collision mesh, taking its position and orientation into account.
+	 * @param result if not null and the mesh is hit, receives the world-space hit location and normal
+	 * @return the index of the collision mesh Face that was hit, or -1 if nothing was
+	 */
+	public int raycast(Vector3dc start, Vector3dc ray, double limit, @Nullable CollisionResult result) {
+		TriangleBVH bvh = getCollisionBVH();
+		if (bvh==null) return -1;
+		
+		//Bring the ray into local space. Orientation is a rotation, so distances along the ray don't change.
+		Matrix3d inverse = new Matrix3d(orientation).invert();
+		Vector3d localStart = new Vector3d(start).sub(position).mul(inverse);
+		Vector3d localRay = new Vector3d(ray).mul(inverse);
+		int hit = bvh.raycast(localStart, localRay, limit, result);
+		
+		if (hit!=-1 && result!=null) {
+			Vector3d vec = new Vector3d(result.getHitLocation()).mul(orientation).add(position);
+			result.setHitLocation(vec);
+			result.getHitNormal(vec).mul(orientation);
+			result.setHitNormal(vec);
+		}
+		return hit;
+	}
 }
@@ -27,6 +27,8 @@ import com.playsawdust.chipper.glow.model.MaterialAttribute;
 import com.playsawdust.chipper.glow.model.SimpleMaterialAttributeContainer;
 import com.playsawdust.chipper.glow.pass.MeshPass;
 import com.playsawdust.chipper.glow.pass.RenderPass;
+import com.playsawdust.chipper.glow.voxel.VecFunction;
+import com.playsawdust.chipper.glow.voxel.VoxelShape;
 
 public class Scene extends BoundingVolume {
 	public static final Vector3dc WORLDSPACE_UP = new Vector3d(0, 1, 0);
@@ -34,12 +36,13 @@ public class Scene extends BoundingVolume {
 	private Camera camera = new Camera();
 	private Timestep timestep = FixedTimestep.ofTPS(20);
 	
-	private Matrix4d projectionMatrix = new Matrix4d();
 	private SimpleMaterialAttributeContainer environment = new SimpleMaterialAttributeContainer();
 	private LightTexture lights = new LightTexture();
 	private Light sunLight = new Light();
 	//private long globalStart = -1L;
 	private ConsumerEvent<Integer> onTick = new ConsumerEvent<>();
+	private ChunkVisibilityGraph visibility = null;
+	private VecFunction<VoxelShape> voxelCollision = null;
 	
 	public Scene() {
 		camera.collisionVolume = null;
@@ -71,6 +74,11 @@ public class Scene extends BoundingVolume {
 	
 	private void onTickHandler(int delta) {
 		Vector3d pos = new Vector3d();
+		Vector3d motion = new Vector3d();
+		Vector3d boxMin = new Vector3d();
+		Vector3d boxMax = new Vector3d();
+		double seconds = delta / 1000.0;
+		
 		camera.clearLastPosition();
 		for(Light light : lights) {
 			light.clearLastPosition();
@@ -79,7 +87,26 @@ public class Scene extends BoundingVolume {
 			actor.clearLastPosition();
 			//actor.setLastPosition(actor.getPosition(pos)); //Discard previous frame
 			
-			//TODO: move actors if they have velocity, collide them if they have colliders
+			if (!actor.isPhysicsEnabled()) continue;
+			actor.getVelocity(motion).mul(seconds);
+			if (motion.x==0 && motion.y==0 && motion.z==0) continue;
+			actor.getPosition(pos);
+			
+			CollisionVolume collision = actor.getCollision();
+			if (voxelCollision!=null && actor.isCollisionEnabled() && collision!=null) {
+				collision.getBoxMin(boxMin).add(pos);
+				collision.getBoxMax(boxMax).add(pos);
+				int blocked = Collision.sweepBox(boxMin.x, boxMin.y, boxMin.z, boxMax.x, boxMax.y, boxMax.z, motion, voxelCollision);
+				
+				//Whatever we ran into soaks up our velocity along that axis
+				if (blocked!=0) {
+					if ((blocked & Collision.BLOCKED_X)!=0) actor.velocity.x = 0;
+					if ((blocked & Collision.BLOCKED_Y)!=0) actor.velocity.y = 0;
+					if ((blocked & Collision.BLOCKED_Z)!=0) actor.velocity.z = 0;
+				}
+			}
+			
+			actor.setPosition(pos.add(motion));
 		}
 		
 		//Fire the window onTick
@@ -99,12 +126,34 @@ public class Scene extends BoundingVolume {
 		return camera;
 	}
 	
+	/** Sets the Camera's projection. The Camera holds the only copy, so this is the same as {@code getCamera().setProjectionMatrix(projection)}. */
 	public void setProjectionMatrix(Matrix4dc projection) {
-		this.projectionMatrix.set(projection);
+		camera.setProjectionMatrix(projection);
 	}
 	
 	public Matrix4dc getProjectionMatrix() {
-		return this.projectionMatrix;
+		return camera.getProjectionMatrix();
+	}
+	
+	public ChunkVisibilityGraph getVisibilityGraph() {
+		return visibility;
+	}
+	
+	/** Sets a graph which is searched from the camera each frame, so that chunk Actors hidden behind solid ground aren't scheduled. May be null. */
+	public void setVisibilityGraph(ChunkVisibilityGraph visibility) {
+		this.visibility = visibility;
+	}
+	
+	public VecFunction<VoxelShape> getVoxelCollision() {
+		return voxelCollision;
+	}
+	
+	/**
+	 * Sets the voxels which Actors with physics and collision enabled are stopped by each tick, such as {@code world::getShape}. If null,
+	 * physics Actors move freely.
+	 */
+	public void setVoxelCollision(VecFunction<VoxelShape> voxelCollision) {
+		this.voxelCollision = voxelCollision;
 	}
 	
 	//public long getElapsed() {
@@ -121,17 +170,20 @@ public class Scene extends BoundingVolume {
 		lights.upload(tickProgress);
 		
 		//Get the rotated/translated view matrix
-		Matrix4d viewMatrix = new Matrix4d(projectionMatrix);
+		Matrix4d viewMatrix = new Matrix4d(camera.getProjectionMatrix());
 		viewMatrix.mul(new Matrix4d(camera.getOrientation(null)));
 		
 		Vector3d cameraLast = camera.getLastPosition(null);
 		Vector3d cameraCur = camera.getPosition(null);
 		Vector3d cameraLerped = cameraLast.lerp(cameraCur, tickProgress); //overwrites cameraLast
 		
+		Vector3d cameraPosition = new Vector3d(cameraLerped);
+		
 		viewMatrix.translate(cameraLerped.mul(-1));
 		Matrix4f viewFloats = new Matrix4f(viewMatrix);
 		
 		FrustumIntersection frustumTest = new FrustumIntersection(viewFloats);
+		if (visibility!=null) visibility.update(cameraPosition, frustumTest);
 		//Reuse vectors to cut down on eden pressure
 		Vector3d collisionCenter = new Vector3d();
 		Vector3d last = new Vector3d();
@@ -139,6 +191,8 @@ public class Scene extends BoundingVolume {
 		double collisionRadius = 0.0;
 		
 		for(Actor actor : this) {
+			if (visibility!=null && !visibility.isVisible(actor)) continue;
+			
 			//Get current position
 			actor.getLastPosition(last);
 			actor.getPosition(cur);
@@ -179,7 +233,7 @@ public class Scene extends BoundingVolume {
 		}
 		
 		/*
-		Matrix4d viewMatrix = new Matrix4d(projectionMatrix);
+		Matrix4d viewMatrix = new Matrix4d(camera.getProjectionMatrix());
 		viewMatrix.mul(new Matrix4d(camera.getOrientation(null)));
 		viewMatrix.translate(camera.getPosition(null).mul(-1));
 		scheduler.render(viewMatrix);*/
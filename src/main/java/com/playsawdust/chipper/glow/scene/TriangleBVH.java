@@ -0,0 +1,737 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.scene;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+
+import com.playsawdust.chipper.glow.model.Face;
+import com.playsawdust.chipper.glow.model.IndexedMesh;
+import com.playsawdust.chipper.glow.model.MaterialAttribute;
+import com.playsawdust.chipper.glow.model.Mesh;
+import com.playsawdust.chipper.glow.model.Model;
+import com.playsawdust.chipper.glow.model.PackedMesh;
+import com.playsawdust.chipper.glow.model.Vertex;
+
+/**
+ * A bounding volume hierarchy over the triangles of a mesh, for ray picking, closest-point, and sphere-overlap queries that only look at
+ * the handful of triangles near the query instead of every face.
+ *
+ * <p>The tree is built top-down with a binned surface area heuristic and stored as flat arrays in depth-first order, so a node's left child
+ * always directly follows it. Triangles are copied out of the source mesh and reordered so each leaf's triangles are contiguous; queries
+ * report the <em>source</em> index of a triangle, which is its face index for a Mesh (counting across meshes, in order, for a Model) and its
+ * triangle index for an IndexedMesh or PackedMesh. Faces with more than three vertices are split into fans which share the face's index.
+ *
+ * <p>The BVH is a snapshot: changing the mesh afterwards does not update it. Queries don't modify anything, so one BVH can be shared
+ * between threads.
+ */
+public class TriangleBVH {
+	private static final int BIN_COUNT = 12;
+	/** Nodes with this many triangles or fewer are never split */
+	private static final int MIN_SPLIT_SIZE = 2;
+	/** Nodes with more triangles than this are always split, even if the heuristic says a leaf would be cheaper */
+	private static final int MAX_LEAF_SIZE = 8;
+	/** The cost of visiting a node, relative to testing one triangle */
+	private static final double TRAVERSAL_COST = 1.0;
+	private static final double PARALLEL_EPSILON = 1.0E-12;
+	
+	/** Nine doubles per triangle, the three corners in counter-clockwise order, in leaf order */
+	private final double[] triangles;
+	/** For each triangle in leaf order, the index the caller knows it by */
+	private final int[] sources;
+	private final int triangleCount;
+	
+	/** Six doubles per node: minX, minY, minZ, maxX, maxY, maxZ */
+	private double[] nodeBounds;
+	/** For a leaf, the first triangle. For an interior node, the index of its right child; the left child is always the next node. */
+	private int[] nodeOffsets;
+	/** For a leaf, the number of triangles. For an interior node, -1 minus the axis it was split along. */
+	private int[] nodeCounts;
+	private int nodeCount = 0;
+	private int depth = 0;
+	
+	private TriangleBVH(double[] unordered, int[] unorderedSources, int triangleCount) {
+		this.triangleCount = triangleCount;
+		this.triangles = new double[triangleCount*9];
+		this.sources = new int[triangleCount];
+		
+		int maxNodes = Math.max(1, triangleCount*2-1);
+		nodeBounds = new double[maxNodes*6];
+		nodeOffsets = new int[maxNodes];
+		nodeCounts = new int[maxNodes];
+		
+		if (triangleCount==0) {
+			nodeCount = 1;
+			nodeOffsets[0] = 0;
+			nodeCounts[0] = 0;
+			depth = 1;
+			return;
+		}
+		
+		//Gather per-triangle bounds and centroids, which are all the builder ever looks at
+		double[] triBounds = new double[triangleCount*6];
+		double[] centroids = new double[triangleCount*3];
+		for(int i=0; i<triangleCount; i++) {
+			int t = i*9;
+			int b = i*6;
+			for(int axis=0; axis<3; axis++) {
+				double p0 = unordered[t+axis];
+				double p1 = unordered[t+3+axis];
+				double p2 = unordered[t+6+axis];
+				triBounds[b+axis] = Math.min(p0, Math.min(p1, p2));
+				triBounds[b+3+axis] = Math.max(p0, Math.max(p1, p2));
+				centroids[i*3+axis] = (triBounds[b+axis] + triBounds[b+3+axis]) / 2;
+			}
+		}
+		
+		int[] order = new int[triangleCount];
+		for(int i=0; i<triangleCount; i++) order[i] = i;
+		
+		Builder builder = new Builder(triBounds, centroids, order);
+		builder.build(0, triangleCount, 1);
+		
+		for(int i=0; i<triangleCount; i++) {
+			int src = order[i];
+			System.arraycopy(unordered, src*9, triangles, i*9, 9);
+			sources[i] = unorderedSources[src];
+		}
+		
+		//Trim the node arrays down to what was actually used
+		nodeBounds = Arrays.copyOf(nodeBounds, nodeCount*6);
+		nodeOffsets = Arrays.copyOf(nodeOffsets, nodeCount);
+		nodeCounts = Arrays.copyOf(nodeCounts, nodeCount);
+	}
+	
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+	
+	public int getNodeCount() {
+		return nodeCount;
+	}
+	
+	/** Gets the number of levels in the tree, counting the root */
+	public int getDepth() {
+		return depth;
+	}
+	
+	/** Gets the bounds of every triangle in this BVH. Returns false, leaving result untouched, if there are no triangles. */
+	public boolean getBounds(Vector3d min, Vector3d max) {
+		if (triangleCount==0) return false;
+		min.set(nodeBounds[0], nodeBounds[1], nodeBounds[2]);
+		max.set(nodeBounds[3], nodeBounds[4], nodeBounds[5]);
+		return true;
+	}
+	
+	/**
+	 * Finds the nearest triangle along a ray. Triangles are hit from either side.
+	 * @param start where the ray starts
+	 * @param ray the direction of the ray. Doesn't need to be normalized.
+	 * @param limit how far along the ray to look, in world units
+	 * @param result if not null and something is hit, receives the hit location and the triangle's counter-clockwise face normal
+	 * @return the source index of the triangle that was hit, or -1 if nothing was
+	 */
+	public int raycast(Vector3dc start, Vector3dc ray, double limit, @Nullable CollisionResult result) {
+		return raycast(start.x(), start.y(), start.z(), ray.x(), ray.y(), ray.z(), limit, result);
+	}
+	
+	/** Primitive version of {@link #raycast(Vector3dc, Vector3dc, double, CollisionResult)} */
+	public int raycast(double startX, double startY, double startZ, double rayX, double rayY, double rayZ, double limit, @Nullable CollisionResult result) {
+		int hit = trace(startX, startY, startZ, rayX, rayY, rayZ, limit, false, result);
+		return (hit==-1) ? -1 : sources[hit];
+	}
+	
+	/**
+	 * Returns true if anything lies along the ray within the limit. This stops at the first triangle found rather than the nearest one, so
+	 * it's the cheaper choice for line-of-sight and shadow tests.
+	 */
+	public boolean raycastAny(Vector3dc start, Vector3dc ray, double limit) {
+		return raycastAny(start.x(), start.y(), start.z(), ray.x(), ray.y(), ray.z(), limit);
+	}
+	
+	/** Primitive version of {@link #raycastAny(Vector3dc, Vector3dc, double)} */
+	public boolean raycastAny(double startX, double startY, double startZ, double rayX, double rayY, double rayZ, double limit) {
+		return trace(startX, startY, startZ, rayX, rayY, rayZ, limit, true, null) != -1;
+	}
+	
+	/** Walks the tree near-child-first, shrinking the search distance with each hit. Returns the leaf-order index of the hit triangle, or -1. */
+	private int trace(double sx, double sy, double sz, double rx, double ry, double rz, double limit, boolean any, @Nullable CollisionResult result) {
+		double length = Math.sqrt(rx*rx + ry*ry + rz*rz);
+		if (length==0 || triangleCount==0) return -1;
+		double dx = rx/length;
+		double dy = ry/length;
+		double dz = rz/length;
+		double invX = 1/dx;
+		double invY = 1/dy;
+		double invZ = 1/dz;
+		
+		double closest = limit;
+		int closestTri = -1;
+		
+		int[] stack = new int[depth+1];
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		while(stackSize>0) {
+			int node = stack[--stackSize];
+			if (!rayHitsBox(node, sx, sy, sz, invX, invY, invZ, closest)) continue;
+			
+			int count = nodeCounts[node];
+			if (count>=0) {
+				int first = nodeOffsets[node];
+				for(int i=first; i<first+count; i++) {
+					double t = intersectTriangle(i, sx, sy, sz, dx, dy, dz);
+					if (t>=0 && t<=closest) {
+						closest = t;
+						closestTri = i;
+						if (any) return i;
+					}
+				}
+			} else {
+				//Push the far child first so the near one is popped next
+				int axis = -count-1;
+				double dir = (axis==0) ? dx : (axis==1) ? dy : dz;
+				int left = node+1;
+				int right = nodeOffsets[node];
+				if (dir<0) {
+					stack[stackSize++] = left;
+					stack[stackSize++] = right;
+				} else {
+					stack[stackSize++] = right;
+					stack[stackSize++] = left;
+				}
+			}
+		}
+		
+		if (closestTri!=-1 && result!=null) {
+			result.setHitLocation(sx + dx*closest, sy + dy*closest, sz + dz*closest);
+			int t = closestTri*9;
+			double e1x = triangles[t+3]-triangles[t];
+			double e1y = triangles[t+4]-triangles[t+1];
+			double e1z = triangles[t+5]-triangles[t+2];
+			double e2x = triangles[t+6]-triangles[t];
+			double e2y = triangles[t+7]-triangles[t+1];
+			double e2z = triangles[t+8]-triangles[t+2];
+			double nx = e1y*e2z - e1z*e2y;
+			double ny = e1z*e2x - e1x*e2z;
+			double nz = e1x*e2y - e1y*e2x;
+			double nLength = Math.sqrt(nx*nx + ny*ny + nz*nz);
+			if (nLength>0) {
+				result.setHitNormal(nx/nLength, ny/nLength, nz/nLength);
+			} else {
+				result.setHitNormal(0, 0, 0);
+			}
+		}
+		return closestTri;
+	}
+	
+	/** Slab test. Axes where the ray is parallel to the slab produce NaNs, which every comparison here ignores, leaving that axis unconstrained. */
+	private boolean rayHitsBox(int node, double sx, double sy, double sz, double invX, double invY, double invZ, double limit) {
+		int b = node*6;
+		double near = 0;
+		double far = limit;
+		
+		double t1 = (nodeBounds[b]-sx)*invX;
+		double t2 = (nodeBounds[b+3]-sx)*invX;
+		if (t1>t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+		if (t1>near) near = t1;
+		if (t2<far) far = t2;
+		
+		t1 = (nodeBounds[b+1]-sy)*invY;
+		t2 = (nodeBounds[b+4]-sy)*invY;
+		if (t1>t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+		if (t1>near) near = t1;
+		if (t2<far) far = t2;
+		
+		t1 = (nodeBounds[b+2]-sz)*invZ;
+		t2 = (nodeBounds[b+5]-sz)*invZ;
+		if (t1>t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+		if (t1>near) near = t1;
+		if (t2<far) far = t2;
+		
+		return near<=far;
+	}
+	
+	/** Moller-Trumbore. Returns the distance along the (normalized) ray to the triangle, or -1 if it misses. */
+	private double intersectTriangle(int tri, double sx, double sy, double sz, double dx, double dy, double dz) {
+		int t = tri*9;
+		double ax = triangles[t];
+		double ay = triangles[t+1];
+		double az = triangles[t+2];
+		double e1x = triangles[t+3]-ax;
+		double e1y = triangles[t+4]-ay;
+		double e1z = triangles[t+5]-az;
+		double e2x = triangles[t+6]-ax;
+		double e2y = triangles[t+7]-ay;
+		double e2z = triangles[t+8]-az;
+		
+		double px = dy*e2z - dz*e2y;
+		double py = dz*e2x - dx*e2z;
+		double pz = dx*e2y - dy*e2x;
+		double det = e1x*px + e1y*py + e1z*pz;
+		if (Math.abs(det)<PARALLEL_EPSILON) return -1;
+		double invDet = 1/det;
+		
+		double ox = sx-ax;
+		double oy = sy-ay;
+		double oz = sz-az;
+		double u = (ox*px + oy*py + oz*pz) * invDet;
+		if (u<0 || u>1) return -1;
+		
+		double qx = oy*e1z - oz*e1y;
+		double qy = oz*e1x - ox*e1z;
+		double qz = ox*e1y - oy*e1x;
+		double v = (dx*qx + dy*qy + dz*qz) * invDet;
+		if (v<0 || u+v>1) return -1;
+		
+		double dist = (e2x*qx + e2y*qy + e2z*qz) * invDet;
+		return (dist>=0) ? dist : -1;
+	}
+	
+	/**
+	 * Finds the point on any triangle which is closest to a point.
+	 * @param point the point to search around
+	 * @param maxDistance how far away to look. Passing a tight bound here lets the search skip most of the tree.
+	 * @param result if something is found, set to the closest point on it
+	 * @return the source index of the triangle containing the closest point, or -1 if no triangle is within maxDistance
+	 */
+	public int closestPoint(Vector3dc point, double maxDistance, Vector3d result) {
+		return closestPoint(point.x(), point.y(), point.z(), maxDistance, result);
+	}
+	
+	/** Primitive version of {@link #closestPoint(Vector3dc, double, Vector3d)} */
+	public int closestPoint(double x, double y, double z, double maxDistance, Vector3d result) {
+		if (triangleCount==0) return -1;
+		double bestDistSq = maxDistance*maxDistance;
+		int bestTri = -1;
+		double[] scratch = new double[3];
+		double bestX = 0, bestY = 0, bestZ = 0;
+		
+		int[] stack = new int[depth+1];
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		while(stackSize>0) {
+			int node = stack[--stackSize];
+			if (boxDistanceSquared(node, x, y, z)>bestDistSq) continue;
+			
+			int count = nodeCounts[node];
+			if (count>=0) {
+				int first = nodeOffsets[node];
+				for(int i=first; i<first+count; i++) {
+					double distSq = closestPointOnTriangle(i, x, y, z, scratch);
+					if (distSq<=bestDistSq) {
+						bestDistSq = distSq;
+						bestTri = i;
+						bestX = scratch[0];
+						bestY = scratch[1];
+						bestZ = scratch[2];
+					}
+				}
+			} else {
+				int left = node+1;
+				int right = nodeOffsets[node];
+				if (boxDistanceSquared(left, x, y, z) <= boxDistanceSquared(right, x, y, z)) {
+					stack[stackSize++] = right;
+					stack[stackSize++] = left;
+				} else {
+					stack[stackSize++] = left;
+					stack[stackSize++] = right;
+				}
+			}
+		}
+		
+		if (bestTri==-1) return -1;
+		result.set(bestX, bestY, bestZ);
+		return sources[bestTri];
+	}
+	
+	/** Returns true if any triangle touches the sphere. Stops at the first one found. */
+	public boolean intersectsSphere(Vector3dc center, double radius) {
+		return intersectsSphere(center.x(), center.y(), center.z(), radius);
+	}
+	
+	/** Primitive version of {@link #intersectsSphere(Vector3dc, double)} */
+	public boolean intersectsSphere(double x, double y, double z, double radius) {
+		return sphereQuery(x, y, z, radius, null) > 0;
+	}
+	
+	/**
+	 * Calls the consumer with the source index of every triangle that touches the sphere. Faces split into several triangles may be reported
+	 * more than once.
+	 * @return the number of triangles found
+	 */
+	public int forEachInSphere(Vector3dc center, double radius, IntConsumer consumer) {
+		return sphereQuery(center.x(), center.y(), center.z(), radius, consumer);
+	}
+	
+	/** Primitive version of {@link #forEachInSphere(Vector3dc, double, IntConsumer)} */
+	public int forEachInSphere(double x, double y, double z, double radius, IntConsumer consumer) {
+		return sphereQuery(x, y, z, radius, consumer);
+	}
+	
+	/** If consumer is null, stops at the first triangle found */
+	private int sphereQuery(double x, double y, double z, double radius, @Nullable IntConsumer consumer) {
+		if (triangleCount==0) return 0;
+		double radiusSq = radius*radius;
+		double[] scratch = new double[3];
+		int found = 0;
+		
+		int[] stack = new int[depth+1];
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		while(stackSize>0) {
+			int node = stack[--stackSize];
+			if (boxDistanceSquared(node, x, y, z)>radiusSq) continue;
+			
+			int count = nodeCounts[node];
+			if (count>=0) {
+				int first = nodeOffsets[node];
+				for(int i=first; i<first+count; i++) {
+					if (closestPointOnTriangle(i, x, y, z, scratch)<=radiusSq) {
+						found++;
+						if (consumer==null) return found;
+						consumer.accept(sources[i]);
+					}
+				}
+			} else {
+				stack[stackSize++] = nodeOffsets[node];
+				stack[stackSize++] = node+1;
+			}
+		}
+		return found;
+	}
+	
+	private double boxDistanceSquared(int node, double x, double y, double z) {
+		int b = node*6;
+		double dx = Math.max(0, Math.max(nodeBounds[b]-x, x-nodeBounds[b+3]));
+		double dy = Math.max(0, Math.max(nodeBounds[b+1]-y, y-nodeBounds[b+4]));
+		double dz = Math.max(0, Math.max(nodeBounds[b+2]-z, z-nodeBounds[b+5]));
+		return dx*dx + dy*dy + dz*dz;
+	}
+	
+	/**
+	 * Finds the closest point on a triangle to p by working out which Voronoi region of the triangle p falls in (Ericson, Real-Time
+	 * Collision Detection 5.1.5). Unlike {@link Collision#closestTrianglePointToSphere}, this doesn't allocate, and works for either winding.
+	 * @return the squared distance from p to the closest point, which is stored in result
+	 */
+	private double closestPointOnTriangle(int tri, double px, double py, double pz, double[] result) {
+		int t = tri*9;
+		double ax = triangles[t],   ay = triangles[t+1], az = triangles[t+2];
+		double bx = triangles[t+3], by = triangles[t+4], bz = triangles[t+5];
+		double cx = triangles[t+6], cy = triangles[t+7], cz = triangles[t+8];
+		
+		double abx = bx-ax, aby = by-ay, abz = bz-az;
+		double acx = cx-ax, acy = cy-ay, acz = cz-az;
+		double apx = px-ax, apy = py-ay, apz = pz-az;
+		double d1 = abx*apx + aby*apy + abz*apz;
+		double d2 = acx*apx + acy*apy + acz*apz;
+		if (d1<=0 && d2<=0) return store(ax, ay, az, px, py, pz, result);
+		
+		double bpx = px-bx, bpy = py-by, bpz = pz-bz;
+		double d3 = abx*bpx + aby*bpy + abz*bpz;
+		double d4 = acx*bpx + acy*bpy + acz*bpz;
+		if (d3>=0 && d4<=d3) return store(bx, by, bz, px, py, pz, result);
+		
+		double vc = d1*d4 - d3*d2;
+		if (vc<=0 && d1>=0 && d3<=0) {
+			double v = d1 / (d1-d3);
+			return store(ax + abx*v, ay + aby*v, az + abz*v, px, py, pz, result);
+		}
+		
+		double cpx = px-cx, cpy = py-cy, cpz = pz-cz;
+		double d5 = abx*cpx + aby*cpy + abz*cpz;
+		double d6 = acx*cpx + acy*cpy + acz*cpz;
+		if (d6>=0 && d5<=d6) return store(cx, cy, cz, px, py, pz, result);
+		
+		double vb = d5*d2 - d1*d6;
+		if (vb<=0 && d2>=0 && d6<=0) {
+			double w = d2 / (d2-d6);
+			return store(ax + acx*w, ay + acy*w, az + acz*w, px, py, pz, result);
+		}
+		
+		double va = d3*d6 - d5*d4;
+		if (va<=0 && (d4-d3)>=0 && (d5-d6)>=0) {
+			double w = (d4-d3) / ((d4-d3) + (d5-d6));
+			return store(bx + (cx-bx)*w, by + (cy-by)*w, bz + (cz-bz)*w, px, py, pz, result);
+		}
+		
+		double denom = va+vb+vc;
+		if (denom==0) return store(ax, ay, az, px, py, pz, result); //Degenerate triangle, and every region test above was a tie
+		double v = vb / denom;
+		double w = vc / denom;
+		return store(ax + abx*v + acx*w, ay + aby*v + acy*w, az + abz*v + acz*w, px, py, pz, result);
+	}
+	
+	private static double store(double x, double y, double z, double px, double py, double pz, double[] result) {
+		result[0] = x;
+		result[1] = y;
+		result[2] = z;
+		double dx = x-px;
+		double dy = y-py;
+		double dz = z-pz;
+		return dx*dx + dy*dy + dz*dz;
+	}
+	
+	/** Builds a BVH over every face of a Mesh. Faces with fewer than three vertices are skipped. */
+	public static TriangleBVH of(Mesh mesh) {
+		TriangleList list = new TriangleList();
+		list.addMesh(mesh, 0);
+		return list.build();
+	}
+	
+	/** Builds a BVH over every face of every Mesh in a Model. Source indices count up through each mesh's faces in turn. */
+	public static TriangleBVH of(Model model) {
+		TriangleList list = new TriangleList();
+		int base = 0;
+		for(Mesh mesh : model) {
+			list.addMesh(mesh, base);
+			base += mesh.getFaceCount();
+		}
+		return list.build();
+	}
+	
+	public static TriangleBVH of(IndexedMesh mesh) {
+		int count = mesh.getTriangleCount();
+		double[] tris = new double[count*9];
+		int[] sources = new int[count];
+		for(int i=0; i<count; i++) {
+			for(int corner=0; corner<3; corner++) {
+				Vector3dc pos = mesh.getVertex(mesh.getIndex(i*3+corner)).getMaterialAttribute(MaterialAttribute.POSITION);
+				if (pos==null) continue;
+				tris[i*9 + corner*3  ] = pos.x();
+				tris[i*9 + corner*3+1] = pos.y();
+				tris[i*9 + corner*3+2] = pos.z();
+			}
+			sources[i] = i;
+		}
+		return new TriangleBVH(tris, sources, count);
+	}
+	
+	public static TriangleBVH of(PackedMesh mesh) {
+		int count = mesh.getTriangleCount();
+		float[] positions = mesh.getPositions();
+		int[] indices = mesh.getIndices();
+		double[] tris = new double[count*9];
+		int[] sources = new int[count];
+		for(int i=0; i<count; i++) {
+			for(int corner=0; corner<3; corner++) {
+				int v = indices[i*3+corner]*3;
+				tris[i*9 + corner*3  ] = positions[v];
+				tris[i*9 + corner*3+1] = positions[v+1];
+				tris[i*9 + corner*3+2] = positions[v+2];
+			}
+			sources[i] = i;
+		}
+		return new TriangleBVH(tris, sources, count);
+	}
+	
+	/** Flattens Faces into triangle fans, growing as it goes */
+	private static class TriangleList {
+		private double[] tris = new double[9*64];
+		private int[] sources = new int[64];
+		private int count = 0;
+		
+		public void addMesh(Mesh mesh, int baseIndex) {
+			for(int i=0; i<mesh.getFaceCount(); i++) {
+				Face face = mesh.getFace(i);
+				Vector3dc first = null;
+				Vector3dc prev = null;
+				for(Vertex v : face) {
+					Vector3dc pos = v.getMaterialAttribute(MaterialAttribute.POSITION);
+					if (pos==null) continue;
+					if (first==null) {
+						first = pos;
+					} else {
+						if (prev!=null) add(first, prev, pos, baseIndex+i);
+						prev = pos;
+					}
+				}
+			}
+		}
+		
+		private void add(Vector3dc a, Vector3dc b, Vector3dc c, int source) {
+			if (count>=sources.length) {
+				sources = Arrays.copyOf(sources, sources.length*2);
+				tris = Arrays.copyOf(tris, sources.length*9);
+			}
+			int t = count*9;
+			tris[t  ] = a.x(); tris[t+1] = a.y(); tris[t+2] = a.z();
+			tris[t+3] = b.x(); tris[t+4] = b.y(); tris[t+5] = b.z();
+			tris[t+6] = c.x(); tris[t+7] = c.y(); tris[t+8] = c.z();
+			sources[count] = source;
+			count++;
+		}
+		
+		public TriangleBVH build() {
+			return new TriangleBVH(tris, sources, count);
+		}
+	}
+	
+	/** Top-down binned SAH builder. Holds the scratch state for one build so the recursion only has to pass ranges around. */
+	private class Builder {
+		private final double[] triBounds;
+		private final double[] centroids;
+		private final int[] order;
+		
+		private final int[] binCounts = new int[BIN_COUNT];
+		private final double[] binBounds = new double[BIN_COUNT*6];
+		private final double[] rightAreas = new double[BIN_COUNT];
+		private final int[] rightCounts = new int[BIN_COUNT];
+		
+		public Builder(double[] triBounds, double[] centroids, int[] order) {
+			this.triBounds = triBounds;
+			this.centroids = centroids;
+			this.order = order;
+		}
+		
+		/** Builds the node for order[start..end) and everything under it. Returns the node's index. */
+		public int build(int start, int end, int level) {
+			int node = nodeCount++;
+			if (level>depth) depth = level;
+			int count = end-start;
+			
+			//Node bounds, plus the bounds of the centroids, which is what the bins span
+			int b = node*6;
+			double[] centroidBounds = new double[6];
+			for(int axis=0; axis<3; axis++) {
+				nodeBounds[b+axis] = Double.POSITIVE_INFINITY;
+				nodeBounds[b+3+axis] = Double.NEGATIVE_INFINITY;
+				centroidBounds[axis] = Double.POSITIVE_INFINITY;
+				centroidBounds[3+axis] = Double.NEGATIVE_INFINITY;
+			}
+			for(int i=start; i<end; i++) {
+				int tri = order[i];
+				for(int axis=0; axis<3; axis++) {
+					nodeBounds[b+axis] = Math.min(nodeBounds[b+axis], triBounds[tri*6+axis]);
+					nodeBounds[b+3+axis] = Math.max(nodeBounds[b+3+axis], triBounds[tri*6+3+axis]);
+					double c = centroids[tri*3+axis];
+					centroidBounds[axis] = Math.min(centroidBounds[axis], c);
+					centroidBounds[3+axis] = Math.max(centroidBounds[3+axis], c);
+				}
+			}
+			
+			if (count<=MIN_SPLIT_SIZE) return makeLeaf(node, start, count);
+			
+			//Find the cheapest bin boundary across all three axes
+			double leafCost = count;
+			double parentArea = surfaceArea(nodeBounds, b);
+			double bestCost = Double.POSITIVE_INFINITY;
+			int bestAxis = -1;
+			int bestSplit = -1;
+			for(int axis=0; axis<3; axis++) {
+				double lo = centroidBounds[axis];
+				double extent = centroidBounds[3+axis]-lo;
+				if (extent<=0) continue;
+				
+				Arrays.fill(binCounts, 0);
+				for(int i=0; i<BIN_COUNT; i++) clearBox(binBounds, i*6);
+				for(int i=start; i<end; i++) {
+					int tri = order[i];
+					int bin = binFor(centroids[tri*3+axis], lo, extent);
+					binCounts[bin]++;
+					growBox(binBounds, bin*6, triBounds, tri*6);
+				}
+				
+				//Sweep right-to-left to get the area and count on the right of each boundary, then left-to-right to price each boundary
+				double[] sweep = new double[6];
+				clearBox(sweep, 0);
+				int sweepCount = 0;
+				for(int i=BIN_COUNT-1; i>0; i--) {
+					sweepCount += binCounts[i];
+					growBox(sweep, 0, binBounds, i*6);
+					rightCounts[i] = sweepCount;
+					rightAreas[i] = (sweepCount==0) ? 0 : surfaceArea(sweep, 0);
+				}
+				clearBox(sweep, 0);
+				sweepCount = 0;
+				for(int i=0; i<BIN_COUNT-1; i++) {
+					sweepCount += binCounts[i];
+					growBox(sweep, 0, binBounds, i*6);
+					if (sweepCount==0 || rightCounts[i+1]==0) continue;
+					double cost = TRAVERSAL_COST + (surfaceArea(sweep, 0)*sweepCount + rightAreas[i+1]*rightCounts[i+1]) / parentArea;
+					if (cost<bestCost) {
+						bestCost = cost;
+						bestAxis = axis;
+						bestSplit = i;
+					}
+				}
+			}
+			
+			int mid;
+			if (bestAxis==-1) {
+				//Every centroid is in the same spot, so no plane separates them. Split down the middle just to keep leaves small.
+				if (count<=MAX_LEAF_SIZE) return makeLeaf(node, start, count);
+				mid = start + count/2;
+				bestAxis = 0;
+			} else {
+				if (bestCost>=leafCost && count<=MAX_LEAF_SIZE) return makeLeaf(node, start, count);
+				mid = partition(start, end, bestAxis, bestSplit, centroidBounds[bestAxis], centroidBounds[3+bestAxis]-centroidBounds[bestAxis]);
+			}
+			
+			build(start, mid, level+1);
+			int right = build(mid, end, level+1);
+			nodeOffsets[node] = right;
+			nodeCounts[node] = -1-bestAxis;
+			return node;
+		}
+		
+		/** Moves triangles whose centroids fall in bins 0..split to the front of the range. Returns the first index of the back half. */
+		private int partition(int start, int end, int axis, int split, double lo, double extent) {
+			int i = start;
+			int j = end-1;
+			while(i<=j) {
+				if (binFor(centroids[order[i]*3+axis], lo, extent)<=split) {
+					i++;
+				} else {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+					j--;
+				}
+			}
+			return i;
+		}
+		
+		private int makeLeaf(int node, int start, int count) {
+			nodeOffsets[node] = start;
+			nodeCounts[node] = count;
+			return node;
+		}
+	}
+	
+	private static int binFor(double centroid, double lo, double extent) {
+		int bin = (int) ((centroid-lo) / extent * BIN_COUNT);
+		return Math.min(BIN_COUNT-1, Math.max(0, bin));
+	}
+	
+	private static void clearBox(double[] box, int offset) {
+		for(int axis=0; axis<3; axis++) {
+			box[offset+axis] = Double.POSITIVE_INFINITY;
+			box[offset+3+axis] = Double.NEGATIVE_INFINITY;
+		}
+	}
+	
+	private static void growBox(double[] box, int offset, double[] other, int otherOffset) {
+		for(int axis=0; axis<3; axis++) {
+			box[offset+axis] = Math.min(box[offset+axis], other[otherOffset+axis]);
+			box[offset+3+axis] = Math.max(box[offset+3+axis], other[otherOffset+3+axis]);
+		}
+	}
+	
+	private static double surfaceArea(double[] box, int offset) {
+		double x = box[offset+3]-box[offset];
+		double y = box[offset+4]-box[offset+1];
+		double z = box[offset+5]-box[offset+2];
+		return 2*(x*y + y*z + z*x);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.scene;
+
+import java.util.Arrays;
+
+import org.joml.Vector3d;
+
+import com.playsawdust.chipper.glow.voxel.VecFunction;
+import com.playsawdust.chipper.glow.voxel.VoxelShape;
+
+/**
+ * A reusable set of rays for {@link Collision#raycastVoxels(VoxelRaycastBatch, VecFunction)}, with inputs and results held in flat primitive
+ * arrays. Ray {@code i}'s vector components live at {@code i*3}, {@code i*3+1}, and {@code i*3+2} of the arrays that hold three values per ray.
+ *
+ * <p>The raw arrays are handed out directly so callers can fill and read them in bulk. They're replaced when the batch grows, so grab them
+ * again after calling {@link #setSize(int)}.
+ */
+public class VoxelRaycastBatch {
+	private int size = 0;
+	
+	private double[] starts;
+	private double[] rays;
+	private double[] limits;
+	
+	private boolean[] hits;
+	private double[] hitLocations;
+	private int[] hitNormals;
+	private int[] hitVoxels;
+	private int hitCount = 0;
+	
+	public VoxelRaycastBatch(int capacity) {
+		allocate(Math.max(1, capacity));
+	}
+	
+	public int size() { return size; }
+	
+	/** Sets the number of rays in the batch, growing the arrays if needed. Existing rays are kept; new ones are zeroed. */
+	public void setSize(int size) {
+		if (size<0) throw new IllegalArgumentException("Batch size can't be negative");
+		if (size>limits.length) {
+			int capacity = Math.max(size, limits.length*2);
+			starts = Arrays.copyOf(starts, capacity*3);
+			rays = Arrays.copyOf(rays, capacity*3);
+			limits = Arrays.copyOf(limits, capacity);
+			hits = Arrays.copyOf(hits, capacity);
+			hitLocations = Arrays.copyOf(hitLocations, capacity*3);
+			hitNormals = Arrays.copyOf(hitNormals, capacity*3);
+			hitVoxels = Arrays.copyOf(hitVoxels, capacity*3);
+		} else if (size<this.size) {
+			Arrays.fill(starts, size*3, this.size*3, 0);
+			Arrays.fill(rays, size*3, this.size*3, 0);
+			Arrays.fill(limits, size, this.size, 0);
+		}
+		this.size = size;
+	}
+	
+	/** Sets one ray, growing the batch to include it if needed */
+	public void setRay(int i, double startX, double startY, double startZ, double rayX, double rayY, double rayZ, double limit) {
+		if (i>=size) setSize(i+1);
+		starts[i*3  ] = startX;
+		starts[i*3+1] = startY;
+		starts[i*3+2] = startZ;
+		rays[i*3  ] = rayX;
+		rays[i*3+1] = rayY;
+		rays[i*3+2] = rayZ;
+		limits[i] = limit;
+	}
+	
+	/** Adds a ray to the end of the batch and returns its index */
+	public int addRay(double startX, double startY, double startZ, double rayX, double rayY, double rayZ, double limit) {
+		int i = size;
+		setRay(i, startX, startY, startZ, rayX, rayY, rayZ, limit);
+		return i;
+	}
+	
+	/** Removes every ray, keeping the arrays for reuse */
+	public void clear() {
+		setSize(0);
+		hitCount = 0;
+	}
+	
+	/** Ray start points, three per ray */
+	public double[] getStarts() { return starts; }
+	/** Ray directions, three per ray. These don't need to be normalized. */
+	public double[] getRays() { return rays; }
+	/** The furthest distance each ray may travel, in world units */
+	public double[] getLimits() { return limits; }
+	
+	/** Whether each ray hit anything in the last cast */
+	public boolean[] getHits() { return hits; }
+	/** Where each ray hit, three per ray. Only meaningful where {@link #isHit(int)} is true. */
+	public double[] getHitLocations() { return hitLocations; }
+	/** The face normal of each hit, three per ray, each component -1, 0, or 1 */
+	public int[] getHitNormals() { return hitNormals; }
+	/** The coordinates of the voxel each ray hit, three per ray */
+	public int[] getHitVoxels() { return hitVoxels; }
+	/** The number of rays which hit something in the last cast */
+	public int getHitCount() { return hitCount; }
+	
+	public boolean isHit(int i) {
+		return hits[i];
+	}
+	
+	void setHitCount(int hitCount) {
+		this.hitCount = hitCount;
+	}
+	
+	/** Casts rays [from, to) one after another, reusing one CollisionResult for the lot. Returns the number of hits. */
+	int cast(int from, int to, VecFunction<VoxelShape> getVoxelShape) {
+		CollisionResult result = new CollisionResult();
+		Vector3d normal = new Vector3d();
+		int count = 0;
+		for(int i=from; i<to; i++) {
+			int i3 = i*3;
+			boolean hit = Collision.raycastVoxel(starts[i3], starts[i3+1], starts[i3+2], rays[i3], rays[i3+1], rays[i3+2], limits[i], getVoxelShape, result);
+			hits[i] = hit;
+			if (!hit) continue;
+			
+			count++;
+			hitLocations[i3  ] = result.getHitLocation().x();
+			hitLocations[i3+1] = result.getHitLocation().y();
+			hitLocations[i3+2] = result.getHitLocation().z();
+			result.getHitNormal(normal);
+			hitNormals[i3  ] = (int) normal.x;
+			hitNormals[i3+1] = (int) normal.y;
+			hitNormals[i3+2] = (int) normal.z;
+			hitVoxels[i3  ] = result.getVoxelX();
+			hitVoxels[i3+1] = result.getVoxelY();
+			hitVoxels[i3+2] = result.getVoxelZ();
+		}
+		return count;
+	}
+	
+	private void allocate(int capacity) {
+		starts = new double[capacity*3];
+		rays = new double[capacity*3];
+		limits = new double[capacity];
+		hits = new boolean[capacity];
+		hitLocations = new double[capacity*3];
+		hitNormals = new int[capacity*3];
+		hitVoxels = new int[capacity*3];
+	}
+}
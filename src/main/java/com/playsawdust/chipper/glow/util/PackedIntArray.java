@@ -0,0 +1,150 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.util;
+
+/**
+ * A fixed-length array of unsigned ints which are each stored in only as many bits as they need. Entries never straddle two longs, so a
+ * handful of bits may go unused at the top of each long, but reads and writes are a single shift and mask.
+ *
+ * <p>Writing a value too large for the current width widens the whole array first, so callers never need to think about the width unless
+ * they want to shrink it again with {@link #repack(int)}.
+ */
+public class PackedIntArray {
+	private final int size;
+	private int bits;
+	private int entriesPerLong;
+	private long mask;
+	private long[] data;
+	
+	/** Creates an array of {@code size} zeroes, {@code bits} wide */
+	public PackedIntArray(int size, int bits) {
+		if (size<0) throw new IllegalArgumentException("Size cannot be negative");
+		this.size = size;
+		setBits(bits);
+		this.data = new long[longsFor(size, entriesPerLong)];
+	}
+	
+	/** Creates a packed copy of the provided data, just wide enough for its largest value. Negative values are not allowed. */
+	public PackedIntArray(int[] data) {
+		this(data.length, bitsFor(max(data)));
+		for(int i=0; i<data.length; i++) {
+			setUnchecked(i, data[i]);
+		}
+	}
+	
+	private PackedIntArray(PackedIntArray other) {
+		this.size = other.size;
+		setBits(other.bits);
+		this.data = other.data.clone();
+	}
+	
+	public int size() { return size; }
+	
+	/** Gets the number of bits each entry currently takes up */
+	public int getBits() { return bits; }
+	
+	/** Gets the largest value which can be stored without widening */
+	public int getMaxValue() { return (int) Math.min(mask, Integer.MAX_VALUE); }
+	
+	/** Gets the approximate number of bytes of heap this array's storage occupies */
+	public long getStorageSize() { return data.length * 8L; }
+	
+	public int get(int index) {
+		if (index<0 || index>=size) throw new ArrayIndexOutOfBoundsException(index);
+		int slot = index / entriesPerLong;
+		int shift = (index - slot*entriesPerLong) * bits;
+		return (int) ((data[slot] >>> shift) & mask);
+	}
+	
+	/** Stores a value, widening the array first if it doesn't fit. Negative values are not allowed. */
+	public void set(int index, int value) {
+		if (index<0 || index>=size) throw new ArrayIndexOutOfBoundsException(index);
+		if (value<0) throw new IllegalArgumentException("Packed values must be non-negative");
+		if (value>mask) repack(bitsFor(value));
+		setUnchecked(index, value);
+	}
+	
+	/** Changes the width of every entry. Shrinking the array below the width of a value it holds will throw IllegalStateException. */
+	public void repack(int newBits) {
+		if (newBits==bits) return;
+		if (newBits<bits) {
+			long newMask = maskFor(newBits);
+			for(int i=0; i<size; i++) {
+				if (get(i)>newMask) throw new IllegalStateException("Cannot pack value "+get(i)+" into "+newBits+" bits");
+			}
+		}
+		
+		PackedIntArray old = new PackedIntArray(this);
+		setBits(newBits);
+		this.data = new long[longsFor(size, entriesPerLong)];
+		for(int i=0; i<size; i++) {
+			setUnchecked(i, old.get(i));
+		}
+	}
+	
+	/** Unpacks this array into {@code dest}, copying at most {@code dest.length} entries */
+	public void toIntArray(int[] dest) {
+		int count = Math.min(size, dest.length);
+		int index = 0;
+		for(int slot=0; index<count; slot++) {
+			long cur = data[slot];
+			for(int i=0; i<entriesPerLong && index<count; i++) {
+				dest[index] = (int) (cur & mask);
+				cur >>>= bits;
+				index++;
+			}
+		}
+	}
+	
+	public int[] toIntArray() {
+		int[] result = new int[size];
+		toIntArray(result);
+		return result;
+	}
+	
+	public PackedIntArray copy() {
+		return new PackedIntArray(this);
+	}
+	
+	private void setUnchecked(int index, int value) {
+		int slot = index / entriesPerLong;
+		int shift = (index - slot*entriesPerLong) * bits;
+		data[slot] = (data[slot] & ~(mask << shift)) | ((value & mask) << shift);
+	}
+	
+	private void setBits(int bits) {
+		if (bits<1 || bits>32) throw new IllegalArgumentException("Entries must be between 1 and 32 bits wide");
+		this.bits = bits;
+		this.entriesPerLong = 64 / bits;
+		this.mask = maskFor(bits);
+	}
+	
+	/** Gets the number of bits needed to store {@code value}, which is always at least 1 */
+	public static int bitsFor(int value) {
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(value));
+	}
+	
+	private static long maskFor(int bits) {
+		return (1L << bits) - 1L;
+	}
+	
+	private static int longsFor(int size, int entriesPerLong) {
+		return (size + entriesPerLong - 1) / entriesPerLong;
+	}
+	
+	private static int max(int[] data) {
+		int result = 0;
+		for(int i : data) {
+			if (i<0) throw new IllegalArgumentException("Packed values must be non-negative");
+			result = Math.max(result, i);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.voxel;
+
+import java.util.Arrays;
+
+/**
+ * Flood-fill sky light and block light for a VoxelPatch, in levels from 0 to {@link #MAX_LIGHT}. Light spreads through any voxel which isn't
+ * a {@link VoxelShape#CUBE}, losing one level per step, except that full-strength sky light travels straight down without fading.
+ *
+ * <p>Updates are incremental: after an edit, {@link #voxelChanged(int, int, int)} or {@link #setEmitter(int, int, int, int)} first flood out
+ * the light that depended on the old state, then refill just the region that went dark, so the cost depends on the size of the affected area
+ * rather than the size of the patch. Coordinates are in the same space as {@link VoxelPatch#getVoxel(int, int, int)}.
+ *
+ * <p>If the patch is resized or its data is replaced wholesale, call {@link #relightAll()}.
+ */
+public class VoxelLighting {
+	public static final int MAX_LIGHT = 15;
+	
+	private final VoxelPatch patch;
+	private int xSize;
+	private int ySize;
+	private int zSize;
+	
+	private byte[] sky;
+	private byte[] block;
+	/** The light level each voxel emits on its own. Emitters light their own voxel even if it's solid. */
+	private byte[] emission;
+	private boolean skyExposed = true;
+	
+	private final IntQueue addQueue = new IntQueue();
+	/** Holds pairs of {index, level the voxel had before it was darkened} */
+	private final IntQueue removeQueue = new IntQueue();
+	
+	public VoxelLighting(VoxelPatch patch) {
+		this.patch = patch;
+		relightAll();
+	}
+	
+	public VoxelPatch getPatch() { return patch; }
+	
+	public boolean isSkyExposed() { return skyExposed; }
+	
+	/** Sets whether full-strength sky light pours in through the top of the patch. This relights everything. */
+	public void setSkyExposed(boolean skyExposed) {
+		this.skyExposed = skyExposed;
+		relightAll();
+	}
+	
+	/** Gets the sky light at a voxel. Outside the patch this is full brightness if the sky is exposed, and dark otherwise. */
+	public int getSkyLight(int x, int y, int z) {
+		int i = index(x, y, z);
+		if (i==-1) return (skyExposed) ? MAX_LIGHT : 0;
+		return sky[i];
+	}
+	
+	/** Gets the block light at a voxel. Outside the patch this is always dark. */
+	public int getBlockLight(int x, int y, int z) {
+		int i = index(x, y, z);
+		if (i==-1) return 0;
+		return block[i];
+	}
+	
+	/** Gets the brighter of the sky light and block light at a voxel */
+	public int getLight(int x, int y, int z) {
+		return Math.max(getSkyLight(x, y, z), getBlockLight(x, y, z));
+	}
+	
+	public int getEmitter(int x, int y, int z) {
+		int i = index(x, y, z);
+		if (i==-1) return 0;
+		return emission[i];
+	}
+	
+	/**
+	 * Makes a voxel emit block light, or stops it emitting if {@code level} is 0, and relights the area around it.
+	 * @param level the emitted light level, which will be clamped to between 0 and MAX_LIGHT
+	 */
+	public void setEmitter(int x, int y, int z, int level) {
+		int i = index(x, y, z);
+		if (i==-1) return;
+		level = Math.max(0, Math.min(MAX_LIGHT, level));
+		int old = emission[i];
+		if (old==level) return;
+		emission[i] = (byte) level;
+		
+		if (level>block[i]) {
+			block[i] = (byte) level;
+			addQueue.push(i);
+		} else if (level<old) {
+			darken(block, i);
+			propagateRemove(block, false);
+		}
+		propagateAdd(block, false);
+	}
+	
+	/** Relights the area around a voxel whose shape just changed. Call this after every edit which might have changed whether a voxel is solid. */
+	public void voxelChanged(int x, int y, int z) {
+		int i = index(x, y, z);
+		if (i==-1) return;
+		
+		if (isOpaque(i)) {
+			//Everything this voxel was lighting has to go dark and be refilled from elsewhere
+			darken(sky, i);
+			propagateRemove(sky, true);
+			propagateAdd(sky, true);
+			
+			darken(block, i);
+			propagateRemove(block, false);
+			propagateAdd(block, false);
+		} else {
+			//Let the light around this voxel back in
+			if (skyExposed && y-patch.yOffset()==ySize-1) {
+				sky[i] = MAX_LIGHT;
+				addQueue.push(i);
+			}
+			pushLitNeighbours(sky, i);
+			propagateAdd(sky, true);
+			
+			if (emission[i]>block[i]) {
+				block[i] = emission[i];
+				addQueue.push(i);
+			}
+			pushLitNeighbours(block, i);
+			propagateAdd(block, false);
+		}
+	}
+	
+	/** Throws away all light and recomputes it from scratch, keeping emitters where they are */
+	public void relightAll() {
+		int oldX = xSize;
+		int oldY = ySize;
+		int oldZ = zSize;
+		xSize = patch.xSize();
+		ySize = patch.ySize();
+		zSize = patch.zSize();
+		int volume = xSize*ySize*zSize;
+		
+		if (emission==null || oldX!=xSize || oldY!=ySize || oldZ!=zSize) {
+			sky = new byte[volume];
+			block = new byte[volume];
+			emission = new byte[volume];
+		} else {
+			Arrays.fill(sky, (byte) 0);
+			Arrays.fill(block, (byte) 0);
+		}
+		
+		if (skyExposed) {
+			for(int z=0; z<zSize; z++) {
+				for(int x=0; x<xSize; x++) {
+					for(int y=ySize-1; y>=0; y--) {
+						int i = y + x*ySize + z*ySize*xSize;
+						if (isOpaque(i)) break;
+						sky[i] = MAX_LIGHT;
+						addQueue.push(i);
+					}
+				}
+			}
+			propagateAdd(sky, true);
+		}
+		
+		for(int i=0; i<volume; i++) {
+			if (emission[i]>0) {
+				block[i] = emission[i];
+				addQueue.push(i);
+			}
+		}
+		propagateAdd(block, false);
+	}
+	
+	/** Zeroes one voxel's light and queues the flood that darkens everything which depended on it. Emitters keep their own light. */
+	private void darken(byte[] light, int i) {
+		int old = light[i];
+		if (old==0) return;
+		light[i] = 0;
+		removeQueue.push(i);
+		removeQueue.push(old);
+		if (light==block && emission[i]>0) {
+			block[i] = emission[i];
+			addQueue.push(i);
+		}
+	}
+	
+	private void pushLitNeighbours(byte[] light, int i) {
+		int y = i % ySize;
+		int x = (i / ySize) % xSize;
+		int z = i / (ySize*xSize);
+		if (x>0       && light[i-ySize]>0)       addQueue.push(i-ySize);
+		if (x<xSize-1 && light[i+ySize]>0)       addQueue.push(i+ySize);
+		if (y>0       && light[i-1]>0)           addQueue.push(i-1);
+		if (y<ySize-1 && light[i+1]>0)           addQueue.push(i+1);
+		if (z>0       && light[i-ySize*xSize]>0) addQueue.push(i-ySize*xSize);
+		if (z<zSize-1 && light[i+ySize*xSize]>0) addQueue.push(i+ySize*xSize);
+	}
+	
+	/** Spreads light outwards from every voxel in the add queue until it runs dry */
+	private void propagateAdd(byte[] light, boolean isSky) {
+		while(!addQueue.isEmpty()) {
+			int i = addQueue.pop();
+			int level = light[i];
+			if (level<=0) continue;
+			int y = i % ySize;
+			int x = (i / ySize) % xSize;
+			int z = i / (ySize*xSize);
+			
+			int spread = level-1;
+			int down = (isSky && level==MAX_LIGHT) ? MAX_LIGHT : spread;
+			if (x>0)       spreadTo(light, i-ySize,       spread);
+			if (x<xSize-1) spreadTo(light, i+ySize,       spread);
+			if (y>0)       spreadTo(light, i-1,           down);
+			if (y<ySize-1) spreadTo(light, i+1,           spread);
+			if (z>0)       spreadTo(light, i-ySize*xSize, spread);
+			if (z<zSize-1) spreadTo(light, i+ySize*xSize, spread);
+		}
+	}
+	
+	private void spreadTo(byte[] light, int i, int level) {
+		if (level<=light[i] || isOpaque(i)) return;
+		light[i] = (byte) level;
+		addQueue.push(i);
+	}
+	
+	/**
+	 * Darkens every voxel whose light came from the voxels in the remove queue. Neighbours which are at least as bright as the light being removed
+	 * must have their own source, so they're queued to refill the darkened area once this finishes.
+	 */
+	private void propagateRemove(byte[] light, boolean isSky) {
+		while(!removeQueue.isEmpty()) {
+			int i = removeQueue.pop();
+			int old = removeQueue.pop();
+			int y = i % ySize;
+			int x = (i / ySize) % xSize;
+			int z = i / (ySize*xSize);
+			
+			if (x>0)       unspread(light, i-ySize,       old, false);
+			if (x<xSize-1) unspread(light, i+ySize,       old, false);
+			if (y>0)       unspread(light, i-1,           old, isSky);
+			if (y<ySize-1) unspread(light, i+1,           old, false);
+			if (z>0)       unspread(light, i-ySize*xSize, old, false);
+			if (z<zSize-1) unspread(light, i+ySize*xSize, old, false);
+		}
+	}
+	
+	private void unspread(byte[] light, int i, int removed, boolean skyDown) {
+		int level = light[i];
+		if (level==0) return;
+		if (level<removed || (skyDown && removed==MAX_LIGHT && level==MAX_LIGHT)) {
+			darken(light, i);
+		} else {
+			addQueue.push(i);
+		}
+	}
+	
+	private boolean isOpaque(int i) {
+		int y = i % ySize;
+		int x = (i / ySize) % xSize;
+		int z = i / (ySize*xSize);
+		return patch.getShape(x+patch.xOffset(), y+patch.yOffset(), z+patch.zOffset())==VoxelShape.CUBE;
+	}
+	
+	private int index(int x, int y, int z) {
+		x -= patch.xOffset();
+		y -= patch.yOffset();
+		z -= patch.zOffset();
+		if (x<0 || y<0 || z<0 || x>=xSize || y>=ySize || z>=zSize) return -1;
+		return y + x*ySize + z*ySize*xSize;
+	}
+	
+	/** A growable ring buffer of ints, so flood fills don't box every index they touch */
+	private static class IntQueue {
+		private int[] data = new int[256];
+		private int head = 0;
+		private int size = 0;
+		
+		public boolean isEmpty() {
+			return size==0;
+		}
+		
+		public void push(int i) {
+			if (size==data.length) {
+				int[] grown = new int[data.length*2];
+				for(int j=0; j<size; j++) grown[j] = data[(head+j) % data.length];
+				data = grown;
+				head = 0;
+			}
+			data[(head+size) % data.length] = i;
+			size++;
+		}
+		
+		public int pop() {
+			int result = data[head];
+			head = (head+1) % data.length;
+			size--;
+			return result;
+		}
+	}
+}
@@ -9,14 +9,20 @@
 
 package com.playsawdust.chipper.glow.voxel;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import com.playsawdust.chipper.glow.model.Material;
-import com.playsawdust.chipper.glow.util.Histogram;
+import com.playsawdust.chipper.glow.util.PackedIntArray;
 
 public class VoxelPatch {
 	private int x = 0;
@@ -26,18 +32,53 @@ public class VoxelPatch {
 	private int ySize = 16;
 	private int zSize = 16;
 	
-	private int[] voxels = new int[16*16*16];
-	private ArrayList<MeshableVoxel> palette = new ArrayList<>();
+	/** Palette indices, packed to as few bits as the largest index needs */
+	private PackedIntArray voxels = new PackedIntArray(16*16*16, 1);
+	private PaletteList palette = new PaletteList();
 	
 	private boolean lossless = true;
 	
-	public VoxelPatch() {}
+	/** Edge length of the cubic sub-blocks that edits are tracked in */
+	private int dirtyGranularity = 8;
+	private BitSet dirty = new BitSet();
+	/** Counts changes to voxel data, independent of the dirty flags, which meshers clear as they catch up */
+	private int editCount = 0;
+	
+	/** One bit per voxel for each brick, set where the voxel isn't EMPTY-shaped */
+	private long[] occupancy = new long[0];
+	/** One bit per brick, set if its occupancy mask is nonzero */
+	private long[] occupiedBricks = new long[0];
+	/** The edit count and palette version the occupancy masks were built against. Written last, so a reader who sees them current sees the masks too. */
+	private volatile int occupancyEdits = -1;
+	private volatile int occupancyPalette = -1;
+	
+	public VoxelPatch() {
+		markAllDirty();
+	}
 	
 	public VoxelPatch(int xsize, int ysize, int zsize) {
 		this.xSize = xsize;
 		this.ySize = ysize;
 		this.zSize = zsize;
-		this.voxels = new int[xSize*ySize*zSize];
+		this.voxels = new PackedIntArray(xSize*ySize*zSize, 1);
+		markAllDirty();
+	}
+	
+	/** Creates an independent copy of the patch, sharing only the (immutable) MeshableVoxel objects in the palette */
+	public VoxelPatch copy() {
+		VoxelPatch result = new VoxelPatch();
+		result.x = x;
+		result.y = y;
+		result.z = z;
+		result.xSize = xSize;
+		result.ySize = ySize;
+		result.zSize = zSize;
+		result.voxels = voxels.copy();
+		result.palette.addAll(palette);
+		result.lossless = lossless;
+		result.dirtyGranularity = dirtyGranularity;
+		result.markAllDirty();
+		return result;
 	}
 	
 	public VoxelShape getShape(int x, int y, int z) {
@@ -57,49 +98,152 @@ public class VoxelPatch {
 		return palette;
 	}
 	
-	/** Gets a VoxelPatch half the size of this one which is a rough representation of it */
+	/** Gets a VoxelPatch half the size of this one which is a rough representation of it, or null if any dimension is odd */
 	public VoxelPatch getLoD() {
 		if (xSize%2==1 || ySize%2==1 || zSize%2==1) return null;
-		int halfX = xSize/2;
-		int halfY = ySize/2;
-		int halfZ = zSize/2;
+		int[] data = voxels.toIntArray();
+		return downsample(data, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Builds a full mip pyramid for this patch. Element 0 is this patch, and each element after it is half the size of the one before on every
+	 * axis (rounding up), down to a single voxel. Each level is built from the one before it by taking the most common of the (up to) eight
+	 * voxels each output voxel covers, breaking ties in favor of the lowest palette id.
+	 *
+	 * <p>{@link #isLossless()} on each level reports whether every level up to and including it was built without discarding any detail.
+	 * LoD patches share this patch's palette entries and sit at the origin.
+	 */
+	public VoxelPatch[] getLoDPyramid() {
+		return getLoDPyramid(ForkJoinPool.commonPool());
+	}
+	
+	/** Builds a full mip pyramid, splitting each level into slabs along Z which are downsampled in parallel on the provided pool */
+	public VoxelPatch[] getLoDPyramid(ForkJoinPool pool) {
+		int levels = 1;
+		for(int size = Math.max(xSize, Math.max(ySize, zSize)); size>1; size = (size+1)/2) levels++;
+		
+		VoxelPatch[] result = new VoxelPatch[levels];
+		result[0] = this;
+		int[] data = voxels.toIntArray();
+		for(int i=1; i<levels; i++) {
+			result[i] = result[i-1].downsample(data, pool);
+			data = result[i].voxels.toIntArray();
+		}
+		return result;
+	}
+	
+	/** Builds the next level down from this patch, whose unpacked data is passed in so that pyramid builds don't unpack each level twice */
+	private VoxelPatch downsample(int[] data, ForkJoinPool pool) {
+		int halfX = (xSize+1)/2;
+		int halfY = (ySize+1)/2;
+		int halfZ = (zSize+1)/2;
+		
+		int[] out = new int[halfX*halfY*halfZ];
+		boolean exact = pool.invoke(new DownsampleTask(data, xSize, ySize, zSize, out, 0, halfZ));
+		
 		VoxelPatch result = new VoxelPatch();
-		result.setSize(halfX, halfY, halfZ);
-		
-		for(MeshableVoxel v : palette) result.palette.add(v);
-		
-		for(int y=0; y<halfY; y++) {
-			for(int z=0; z<halfZ; z++) {
-				for(int x=0; x<halfX; x++) {
-					//Grab 4 samples
-					Histogram<Integer> histogram = new Histogram<>();
-					
-					histogram.add( getRaw(x*2,   y*2,   z*2  ) );
-					histogram.add( getRaw(x*2+1, y*2,   z*2  ) );
-					histogram.add( getRaw(x*2,   y*2+1, z*2  ) );
-					histogram.add( getRaw(x*2,   y*2,   z*2+1) );
-					histogram.add( getRaw(x*2+1, y*2+1, z*2  ) );
-					histogram.add( getRaw(x*2+1, y*2,   z*2+1) );
-					histogram.add( getRaw(x*2,   y*2+1, z*2+1) );
-					histogram.add( getRaw(x*2+1, y*2+1, z*2+1) );
-					
-					if (histogram.size()>1) result.lossless = false;
-					
-					int best = histogram.getMode();
-					int ofs = result.ofs(x,y,z);
-					if (ofs==-1) continue; //Shouldn't happen
-					result.voxels[ofs] = best;
+		result.palette.addAll(palette);
+		result.voxels = new PackedIntArray(out.length, voxels.getBits());
+		for(int i=0; i<out.length; i++) result.voxels.set(i, out[i]);
+		result.xSize = halfX;
+		result.ySize = halfY;
+		result.zSize = halfZ;
+		result.lossless = lossless && exact;
+		result.markAllDirty();
+		return result;
+	}
+	
+	/** Downsamples the output slab [zStart, zEnd), splitting it in half until it's small enough to just do. Returns true if nothing was lost. */
+	private static class DownsampleTask extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 2406151863125793412L;
+		private static final int CELLS_PER_TASK = 4096;
+		
+		private final int[] src;
+		private final int srcX;
+		private final int srcY;
+		private final int srcZ;
+		private final int[] dest;
+		private final int zStart;
+		private final int zEnd;
+		
+		public DownsampleTask(int[] src, int srcX, int srcY, int srcZ, int[] dest, int zStart, int zEnd) {
+			this.src = src;
+			this.srcX = srcX;
+			this.srcY = srcY;
+			this.srcZ = srcZ;
+			this.dest = dest;
+			this.zStart = zStart;
+			this.zEnd = zEnd;
+		}
+		
+		@Override
+		protected Boolean compute() {
+			int destX = (srcX+1)/2;
+			int destY = (srcY+1)/2;
+			if (zEnd-zStart>1 && (zEnd-zStart)*destX*destY>CELLS_PER_TASK) {
+				int mid = (zStart+zEnd)/2;
+				DownsampleTask left = new DownsampleTask(src, srcX, srcY, srcZ, dest, zStart, mid);
+				DownsampleTask right = new DownsampleTask(src, srcX, srcY, srcZ, dest, mid, zEnd);
+				right.fork();
+				boolean leftExact = left.compute();
+				return right.join() && leftExact;
+			}
+			
+			boolean exact = true;
+			int[] samples = new int[8];
+			for(int z=zStart; z<zEnd; z++) {
+				int z0 = z*2;
+				int z1 = Math.min(z0+1, srcZ-1);
+				for(int x=0; x<destX; x++) {
+					int x0 = x*2;
+					int x1 = Math.min(x0+1, srcX-1);
+					for(int y=0; y<destY; y++) {
+						int y0 = y*2;
+						int y1 = Math.min(y0+1, srcY-1);
+						
+						//Grab 8 samples. On odd edges the clamped coordinates repeat samples, which doesn't change the mode.
+						samples[0] = src[y0 + x0*srcY + z0*srcY*srcX];
+						samples[1] = src[y1 + x0*srcY + z0*srcY*srcX];
+						samples[2] = src[y0 + x1*srcY + z0*srcY*srcX];
+						samples[3] = src[y1 + x1*srcY + z0*srcY*srcX];
+						samples[4] = src[y0 + x0*srcY + z1*srcY*srcX];
+						samples[5] = src[y1 + x0*srcY + z1*srcY*srcX];
+						samples[6] = src[y0 + x1*srcY + z1*srcY*srcX];
+						samples[7] = src[y1 + x1*srcY + z1*srcY*srcX];
+						
+						int best = samples[0];
+						int bestCount = 0;
+						boolean uniform = true;
+						for(int i=0; i<8; i++) {
+							int cur = samples[i];
+							if (cur!=samples[0]) uniform = false;
+							int count = 0;
+							for(int j=0; j<8; j++) {
+								if (samples[j]==cur) count++;
+							}
+							if (count>bestCount || (count==bestCount && cur<best)) {
+								best = cur;
+								bestCount = count;
+							}
+						}
+						if (!uniform) exact = false;
+						
+						dest[y + x*destY + z*destY*destX] = best;
+					}
 				}
 			}
+			return exact;
 		}
-		
-		return result;
 	}
 	
 	public int xSize() { return xSize; }
 	public int ySize() { return ySize; }
 	public int zSize() { return zSize; }
 	
+	public int xOffset() { return x; }
+	public int yOffset() { return y; }
+	public int zOffset() { return z; }
+	
 	/**
 	 * Sets this patch's palette to a copy of the passed-in list.
 	 * @param palette a List of MeshableVoxel objects where each element's position in the list is its ID in the voxel data of this patch
@@ -109,71 +253,353 @@ public class VoxelPatch {
 		for(int i=0; i<palette.size(); i++) {
 			this.palette.add(palette.get(i));
 		}
+		int bits = PackedIntArray.bitsFor(Math.max(0, this.palette.size()-1));
+		if (bits>voxels.getBits()) voxels.repack(bits);
+		editCount++;
+		markAllDirty();
 	}
 	
+	/**
+	 * Gets the numeric voxel data in this patch, unpacked into a new array. Voxels are stored bit-packed, so this is a copy: writes to it don't
+	 * change the patch until they're handed back through {@link #setData(int[])}.
+	 */
 	public int[] getData() {
-		return voxels;
+		return voxels.toIntArray();
+	}
+	
+	/**
+	 * Unpacks the numeric voxel data in this patch into an existing array, so that repeated reads don't allocate.
+	 * @param dest the array to fill. At most xSize*ySize*zSize entries are written.
+	 */
+	public void getData(int[] dest) {
+		voxels.toIntArray(dest);
 	}
 	
 	/**
-	 * Sets the numeric voxel data in this patch. Numbers will be interpreted as indices into the MeshableVoxel palette.
+	 * Sets the numeric voxel data in this patch. Numbers will be interpreted as indices into the MeshableVoxel palette; negative numbers are
+	 * stored as 0.
 	 * @param data numeric voxel data. MUST be xSize*ySize*zSize length or the chunk data may be ordered strangely!
 	 */
 	public void setData(int[] data) {
-		int copyLength = Math.min(data.length, voxels.length);
-		System.arraycopy(data, 0, voxels, 0, copyLength);
+		int copyLength = Math.min(data.length, voxels.size());
+		for(int i=0; i<copyLength; i++) {
+			voxels.set(i, Math.max(0, data[i]));
+		}
+		editCount++;
+		markAllDirty();
+	}
+	
+	/** Gets the number of bits each voxel currently takes up in storage */
+	public int getBitsPerVoxel() {
+		return voxels.getBits();
+	}
+	
+	/** Gets a rough estimate of how many bytes of heap this patch's voxel data, palette, dirty flags, and occupancy masks occupy */
+	public long estimateMemoryUsage() {
+		return voxels.getStorageSize() + palette.size()*8L + dirty.size()/8 + occupancy.length*8L + occupiedBricks.length*8L;
 	}
 	
 	/**
 	 * Sets the dimensions of this patch. Any existing data may be in a strange order after this!
 	 */
 	public void setSize(int xSize, int ySize, int zSize) {
-		voxels = Arrays.copyOf(voxels, xSize*ySize*zSize);
+		PackedIntArray resized = new PackedIntArray(xSize*ySize*zSize, voxels.getBits());
+		int copyLength = Math.min(resized.size(), voxels.size());
+		for(int i=0; i<copyLength; i++) {
+			resized.set(i, voxels.get(i));
+		}
+		voxels = resized;
 		this.xSize = xSize;
 		this.ySize = ySize;
 		this.zSize = zSize;
+		editCount++;
+		markAllDirty();
 	}
 	
 	public void setOffset(int x, int y, int z) {
 		this.x = x;
 		this.y = y;
 		this.z = z;
+		markAllDirty();
 	}
 	
 	public @Nullable MeshableVoxel getVoxel(int x, int y, int z) {
 		int ofs = ofs(x, y, z);
 		if (ofs==-1) return null;
-		int data = voxels[ofs];
+		int data = voxels.get(ofs);
 		return palette(data);
 	}
 	
 	public int getRaw(int x, int y, int z) {
 		int ofs = ofs(x, y, z);
 		if (ofs==-1) return 0;
-		return voxels[ofs];
+		return voxels.get(ofs);
 	}
 	
 	public void setVoxel(int x, int y, int z, MeshableVoxel voxel, boolean addToPalette) {
 		int ofs = ofs(x, y, z);
 		if (ofs==-1) return;
+		boolean occupancyCurrent = occupancyEdits==editCount && occupancyPalette==palette.version();
 		int id = idFor(voxel);
 		if (id==-1) {
-			if (addToPalette) {
-				id = palette.size();
-				palette.add(voxel);
-				voxels[ofs] = id;
+			if (!addToPalette) return;
+			id = palette.size();
+			palette.add(voxel);
+		}
+		
+		if (voxels.get(ofs)!=id) {
+			voxels.set(ofs, id);
+			editCount++;
+			markDirty(x, y, z);
+			
+			//Appending to the palette doesn't change what any existing id means, so a current occupancy mask only needs this one bit fixed
+			if (occupancyCurrent) {
+				MeshableVoxel placed = palette(id);
+				setOccupied(x-this.x, y-this.y, z-this.z, placed!=null && placed.getShape()!=VoxelShape.EMPTY);
+				occupancyPalette = palette.version();
+				occupancyEdits = editCount;
+			}
+		}
+	}
+	
+	/*
+	 * Occupancy
+	 * The patch is also divided into 4x4x4 bricks, each summarized by a 64-bit mask with one bit per voxel which isn't EMPTY-shaped, and one
+	 * bit per brick saying whether its mask is nonzero. Raycasts and meshers can use these to skip whole bricks of air at once. The masks are
+	 * kept up to date through setVoxel, and rebuilt the next time they're asked for after any bulk change or any change to the palette.
+	 */
+	
+	/** Edge length of an occupancy brick */
+	public static final int BRICK_SIZE = 4;
+	
+	public int xBricks() { return (xSize+BRICK_SIZE-1) / BRICK_SIZE; }
+	public int yBricks() { return (ySize+BRICK_SIZE-1) / BRICK_SIZE; }
+	public int zBricks() { return (zSize+BRICK_SIZE-1) / BRICK_SIZE; }
+	
+	/**
+	 * Gets the occupancy mask of one brick. Brick coordinates count bricks from this patch's origin. Voxel (x, y, z) within the brick is bit
+	 * {@code y + x*4 + z*16}, following the same y-first order as the voxel data. Bricks outside the patch are empty.
+	 */
+	public long getBrickOccupancy(int brickX, int brickY, int brickZ) {
+		if (brickX<0 || brickY<0 || brickZ<0 || brickX>=xBricks() || brickY>=yBricks() || brickZ>=zBricks()) return 0L;
+		ensureOccupancy();
+		return occupancy[occupancyIndex(brickX, brickY, brickZ)];
+	}
+	
+	/** Returns true if every voxel in the brick is EMPTY-shaped. Brick coordinates count bricks from this patch's origin. */
+	public boolean isBrickEmpty(int brickX, int brickY, int brickZ) {
+		if (brickX<0 || brickY<0 || brickZ<0 || brickX>=xBricks() || brickY>=yBricks() || brickZ>=zBricks()) return true;
+		ensureOccupancy();
+		int i = occupancyIndex(brickX, brickY, brickZ);
+		return (occupiedBricks[i >>> 6] & (1L << i))==0;
+	}
+	
+	/**
+	 * Returns the index of the first brick at or after {@code fromIndex} with anything in it, or -1 if there isn't one. Bricks are indexed
+	 * {@code brickY + brickX*yBricks() + brickZ*yBricks()*xBricks()}, the same y-first order as the voxel data, and the search skips 64 empty
+	 * bricks at a time.
+	 */
+	public int nextOccupiedBrick(int fromIndex) {
+		if (fromIndex<0) fromIndex = 0;
+		ensureOccupancy();
+		int word = fromIndex >>> 6;
+		if (word>=occupiedBricks.length) return -1;
+		long bits = occupiedBricks[word] & (-1L << fromIndex);
+		while(bits==0L) {
+			word++;
+			if (word>=occupiedBricks.length) return -1;
+			bits = occupiedBricks[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+	
+	/** Like {@link #nextOccupiedBrick(int)}, but only searches up to {@code toIndex} (exclusive), so short runs of bricks don't scan the rest of the patch */
+	public int nextOccupiedBrick(int fromIndex, int toIndex) {
+		if (fromIndex<0) fromIndex = 0;
+		if (fromIndex>=toIndex) return -1;
+		ensureOccupancy();
+		int word = fromIndex >>> 6;
+		int lastWord = Math.min((toIndex-1) >>> 6, occupiedBricks.length-1);
+		if (word>lastWord) return -1;
+		long bits = occupiedBricks[word] & (-1L << fromIndex);
+		while(bits==0L) {
+			word++;
+			if (word>lastWord) return -1;
+			bits = occupiedBricks[word];
+		}
+		int result = (word << 6) + Long.numberOfTrailingZeros(bits);
+		return (result<toIndex) ? result : -1;
+	}
+	
+	/**
+	 * Returns true if the voxel at x, y, z is inside this patch and the whole brick around it is empty. Coordinates are in the same space as
+	 * {@link #getVoxel(int, int, int)}.
+	 */
+	public boolean isInEmptyBrick(int x, int y, int z) {
+		if (ofs(x, y, z)==-1) return false;
+		return isBrickEmpty((x-this.x) / BRICK_SIZE, (y-this.y) / BRICK_SIZE, (z-this.z) / BRICK_SIZE);
+	}
+	
+	/** Returns true if the voxel at x, y, z isn't EMPTY-shaped, by way of the occupancy masks. Coordinates are the same as {@link #getVoxel(int, int, int)}. */
+	public boolean isOccupied(int x, int y, int z) {
+		if (ofs(x, y, z)==-1) return false;
+		x -= this.x;
+		y -= this.y;
+		z -= this.z;
+		ensureOccupancy();
+		long mask = occupancy[occupancyIndex(x / BRICK_SIZE, y / BRICK_SIZE, z / BRICK_SIZE)];
+		return (mask & (1L << brickBit(x, y, z)))!=0;
+	}
+	
+	/** Returns true if every voxel in this patch is EMPTY-shaped */
+	public boolean isEmpty() {
+		ensureOccupancy();
+		for(long l : occupiedBricks) {
+			if (l!=0L) return false;
+		}
+		return true;
+	}
+	
+	private void ensureOccupancy() {
+		if (occupancyEdits!=editCount || occupancyPalette!=palette.version()) rebuildOccupancy();
+	}
+	
+	private synchronized void rebuildOccupancy() {
+		int edits = editCount;
+		int paletteVersion = palette.version();
+		if (occupancyEdits==edits && occupancyPalette==paletteVersion) return;
+		
+		boolean[] paletteSolid = new boolean[palette.size()];
+		for(int i=1; i<paletteSolid.length; i++) { //id 0 is always empty
+			MeshableVoxel voxel = palette.get(i);
+			paletteSolid[i] = voxel!=null && voxel.getShape()!=VoxelShape.EMPTY;
+		}
+		
+		int bricks = xBricks()*yBricks()*zBricks();
+		if (occupancy.length!=bricks) {
+			occupancy = new long[bricks];
+			occupiedBricks = new long[(bricks+63) >>> 6];
+		} else {
+			Arrays.fill(occupancy, 0L);
+			Arrays.fill(occupiedBricks, 0L);
+		}
+		
+		int i = 0;
+		for(int z=0; z<zSize; z++) {
+			for(int x=0; x<xSize; x++) {
+				for(int y=0; y<ySize; y++) {
+					int id = voxels.get(i++);
+					if (id<paletteSolid.length && paletteSolid[id]) {
+						int brick = occupancyIndex(x / BRICK_SIZE, y / BRICK_SIZE, z / BRICK_SIZE);
+						occupancy[brick] |= 1L << brickBit(x, y, z);
+						occupiedBricks[brick >>> 6] |= 1L << brick;
+					}
+				}
 			}
+		}
+		
+		occupancyPalette = paletteVersion;
+		occupancyEdits = edits;
+	}
+	
+	/** Flips one bit of an up-to-date occupancy mask. Coordinates are relative to this patch's origin. */
+	private void setOccupied(int x, int y, int z, boolean occupied) {
+		int brick = occupancyIndex(x / BRICK_SIZE, y / BRICK_SIZE, z / BRICK_SIZE);
+		if (occupied) {
+			occupancy[brick] |= 1L << brickBit(x, y, z);
+		} else {
+			occupancy[brick] &= ~(1L << brickBit(x, y, z));
+		}
+		if (occupancy[brick]!=0L) {
+			occupiedBricks[brick >>> 6] |= 1L << brick;
 		} else {
-			voxels[ofs] = id;
+			occupiedBricks[brick >>> 6] &= ~(1L << brick);
 		}
 	}
 	
+	private int occupancyIndex(int brickX, int brickY, int brickZ) {
+		return brickY + brickX*yBricks() + brickZ*yBricks()*xBricks();
+	}
+	
+	private static int brickBit(int x, int y, int z) {
+		return (y & 3) + ((x & 3) << 2) + ((z & 3) << 4);
+	}
+	
+	/*
+	 * Dirty tracking
+	 * The patch is divided into cubic sub-blocks of dirtyGranularity voxels on a side (the blocks on the far edges may be smaller). Any edit marks
+	 * the sub-block it lands in, so a mesher can rebuild only the parts of the patch that changed.
+	 */
+	
+	public int getDirtyGranularity() {
+		return dirtyGranularity;
+	}
+	
+	/** Sets the edge length of the sub-blocks that edits are tracked in. Every sub-block is marked dirty afterwards, since the old marks no longer line up. */
+	public void setDirtyGranularity(int granularity) {
+		if (granularity<=0) throw new IllegalArgumentException("Dirty granularity must be at least 1");
+		this.dirtyGranularity = granularity;
+		markAllDirty();
+	}
+	
+	/** Gets the number of sub-blocks along the X axis */
+	public int xBlocks() { return (xSize+dirtyGranularity-1) / dirtyGranularity; }
+	/** Gets the number of sub-blocks along the Y axis */
+	public int yBlocks() { return (ySize+dirtyGranularity-1) / dirtyGranularity; }
+	/** Gets the number of sub-blocks along the Z axis */
+	public int zBlocks() { return (zSize+dirtyGranularity-1) / dirtyGranularity; }
+	
+	/** Marks the sub-block containing the voxel at x, y, z as needing a remesh. Coordinates are in the same space as {@link #getVoxel(int, int, int)}. */
+	public void markDirty(int x, int y, int z) {
+		if (ofs(x, y, z)==-1) return;
+		int blockX = (x-this.x) / dirtyGranularity;
+		int blockY = (y-this.y) / dirtyGranularity;
+		int blockZ = (z-this.z) / dirtyGranularity;
+		dirty.set(blockIndex(blockX, blockY, blockZ));
+	}
+	
+	public void markAllDirty() {
+		dirty.set(0, xBlocks()*yBlocks()*zBlocks());
+	}
+	
+	/** Returns true if any sub-block in this patch has been edited since the last {@link #clearDirty()} */
+	public boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+	
+	/** Returns true if the sub-block at the given block coordinates has been edited. Block coordinates count sub-blocks from this patch's origin. */
+	public boolean isDirty(int blockX, int blockY, int blockZ) {
+		if (blockX<0 || blockY<0 || blockZ<0 || blockX>=xBlocks() || blockY>=yBlocks() || blockZ>=zBlocks()) return false;
+		return dirty.get(blockIndex(blockX, blockY, blockZ));
+	}
+	
+	public void clearDirty(int blockX, int blockY, int blockZ) {
+		if (blockX<0 || blockY<0 || blockZ<0 || blockX>=xBlocks() || blockY>=yBlocks() || blockZ>=zBlocks()) return;
+		dirty.clear(blockIndex(blockX, blockY, blockZ));
+	}
+	
+	public void clearDirty() {
+		dirty.clear();
+	}
+	
+	private int blockIndex(int blockX, int blockY, int blockZ) {
+		return blockX + blockY*xBlocks() + blockZ*xBlocks()*yBlocks();
+	}
+	
+	/**
+	 * Gets a counter which changes whenever voxel data, the palette, or the size of this patch is changed through this class. Unlike the dirty
+	 * flags this is never reset, so any number of observers can each remember the count they last saw.
+	 */
+	public int getEditCount() {
+		return editCount;
+	}
+	
 	public boolean isLossless() {
 		return lossless;
 	}
 	
 	private int ofs(int x, int y, int z) {
-		if (x<this.x || y<this.x || z<this.z) return -1;
+		if (x<this.x || y<this.y || z<this.z) return -1;
 		if (x-this.x>=xSize || y-this.y>=ySize || z-this.z>=zSize) return -1;
 		
 		return (y-this.y) + ((x-this.x)*ySize) + ((z-this.z)*ySize*xSize);
@@ -185,9 +611,143 @@ public class VoxelPatch {
 	}
 	
 	private int idFor(MeshableVoxel voxel) {
-		for(int i=0; i<palette.size(); i++) {
-			if (palette.get(i).equals(voxel)) return i;
+		return palette.indexOf(voxel);
+	}
+	
+	/**
+	 * Drops palette entries which no voxel uses, merges entries which are equal to each other, and renumbers the voxel data to match, packing it
+	 * down to fewer bits if the palette shrank enough. Entry 0 is always kept, since it means "empty" no matter what's stored there.
+	 * @return the number of palette entries removed
+	 */
+	public int compactPalette() {
+		int[] data = voxels.toIntArray();
+		int oldSize = palette.size();
+		
+		boolean[] used = new boolean[oldSize];
+		if (oldSize>0) used[0] = true;
+		for(int id : data) {
+			if (id<oldSize) used[id] = true;
+		}
+		
+		int[] remap = new int[oldSize];
+		ArrayList<MeshableVoxel> compacted = new ArrayList<>();
+		HashMap<MeshableVoxel, Integer> newIds = new HashMap<>();
+		for(int i=0; i<oldSize; i++) {
+			if (!used[i]) continue;
+			MeshableVoxel voxel = palette.get(i);
+			Integer existing = (i==0) ? null : newIds.get(voxel);
+			if (existing!=null) {
+				remap[i] = existing;
+			} else {
+				remap[i] = compacted.size();
+				if (i!=0) newIds.put(voxel, compacted.size());
+				compacted.add(voxel);
+			}
+		}
+		if (compacted.size()==oldSize) return 0;
+		
+		PackedIntArray remapped = new PackedIntArray(data.length, PackedIntArray.bitsFor(Math.max(0, compacted.size()-1)));
+		for(int i=0; i<data.length; i++) {
+			int id = data[i];
+			remapped.set(i, (id<oldSize) ? remap[id] : 0);
+		}
+		voxels = remapped;
+		palette.clear();
+		palette.addAll(compacted);
+		editCount++;
+		
+		return oldSize - compacted.size();
+	}
+	
+	/**
+	 * The palette, plus a reverse index so that looking up a voxel's id is a hash lookup instead of a scan. The list stays fully mutable, since
+	 * {@link #getPalette()} hands it out; appends update the index in place, and anything else rebuilds it.
+	 */
+	private static class PaletteList extends AbstractList<MeshableVoxel> implements RandomAccess {
+		private final ArrayList<MeshableVoxel> entries = new ArrayList<>();
+		/** The first index of each entry, by equals */
+		private final HashMap<MeshableVoxel, Integer> index = new HashMap<>();
+		/** Bumped by every change, including set(), which modCount doesn't count */
+		private int version = 0;
+		
+		public int version() {
+			return version;
+		}
+		
+		@Override
+		public MeshableVoxel get(int i) {
+			return entries.get(i);
+		}
+		
+		@Override
+		public int size() {
+			return entries.size();
+		}
+		
+		@Override
+		public boolean add(MeshableVoxel voxel) {
+			if (voxel!=null) index.putIfAbsent(voxel, entries.size());
+			entries.add(voxel);
+			modCount++;
+			version++;
+			return true;
+		}
+		
+		@Override
+		public void add(int i, MeshableVoxel voxel) {
+			if (i==entries.size()) {
+				add(voxel);
+				return;
+			}
+			entries.add(i, voxel);
+			modCount++;
+			version++;
+			reindex();
+		}
+		
+		@Override
+		public MeshableVoxel set(int i, MeshableVoxel voxel) {
+			MeshableVoxel result = entries.set(i, voxel);
+			version++;
+			reindex();
+			return result;
+		}
+		
+		@Override
+		public MeshableVoxel remove(int i) {
+			MeshableVoxel result = entries.remove(i);
+			modCount++;
+			version++;
+			reindex();
+			return result;
+		}
+		
+		@Override
+		public void clear() {
+			entries.clear();
+			index.clear();
+			modCount++;
+			version++;
+		}
+		
+		@Override
+		public int indexOf(Object o) {
+			if (o==null) return entries.indexOf(null);
+			Integer result = index.get(o);
+			return (result==null) ? -1 : result;
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			return indexOf(o)!=-1;
+		}
+		
+		private void reindex() {
+			index.clear();
+			for(int i=0; i<entries.size(); i++) {
+				MeshableVoxel voxel = entries.get(i);
+				if (voxel!=null) index.putIfAbsent(voxel, i);
+			}
 		}
-		return -1;
 	}
 }
@@ -9,7 +9,85 @@
 
 package com.playsawdust.chipper.glow.voxel;
 
+/**
+ * The solid part of a voxel, built from the eight half-size octants of the cube. Octant (x, y, z), each 0 or 1, is bit {@code y + x*2 + z*4}
+ * of {@link #getOctants()}, following the same y-first order as voxel data.
+ *
+ * <p>Each shape also carries a precomputed occlusion mask for each of its six faces, saying which quarters of that face of the voxel are
+ * covered. Faces are numbered X-, X+, Y-, Y+, Z-, Z+, the same as VoxelMesher's NEIGHBOUR_ constants, so the opposite of face {@code f} is
+ * {@code f^1}. Within a face, the quarter at (u, v) is bit {@code u + v*2}, where u runs along Z for X faces and along X otherwise, and v runs
+ * along Z for Y faces and along Y otherwise.
+ */
 public enum VoxelShape {
-	EMPTY,
-	CUBE;
+	EMPTY        (0x00),
+	CUBE         (0xFF),
+	
+	SLAB_BOTTOM  (0x55),
+	SLAB_TOP     (0xAA),
+	SLAB_XMINUS  (0x33),
+	SLAB_XPLUS   (0xCC),
+	SLAB_ZMINUS  (0x0F),
+	SLAB_ZPLUS   (0xF0),
+	
+	/** A bottom slab with the tall half of the step on the X- side */
+	STAIRS_XMINUS(0x77),
+	STAIRS_XPLUS (0xDD),
+	STAIRS_ZMINUS(0x5F),
+	STAIRS_ZPLUS (0xF5);
+	
+	/** A face mask with all four quarters covered */
+	public static final int FULL_FACE = 0xF;
+	
+	private final int octants;
+	private final int[] faceMasks = new int[6];
+	
+	VoxelShape(int octants) {
+		this.octants = octants;
+		for(int face=0; face<6; face++) {
+			int axis = face >> 1;
+			int side = face & 1;
+			int uAxis = (axis==0) ? 2 : 0;
+			int vAxis = (axis==1) ? 2 : 1;
+			int mask = 0;
+			int[] pos = new int[3];
+			pos[axis] = side;
+			for(int v=0; v<2; v++) {
+				for(int u=0; u<2; u++) {
+					pos[uAxis] = u;
+					pos[vAxis] = v;
+					if (hasOctant(pos[0], pos[1], pos[2])) mask |= 1 << (u + v*2);
+				}
+			}
+			faceMasks[face] = mask;
+		}
+	}
+	
+	public int getOctants() {
+		return octants;
+	}
+	
+	/** Returns true if the octant at x, y, z (each 0 or 1) is solid */
+	public boolean hasOctant(int x, int y, int z) {
+		return (octants & (1 << (y + x*2 + z*4)))!=0;
+	}
+	
+	/** Returns true if this shape fills the whole voxel */
+	public boolean isFull() {
+		return octants==0xFF;
+	}
+	
+	/** Gets which quarters of one face of the voxel this shape covers */
+	public int getFaceMask(int face) {
+		return faceMasks[face];
+	}
+	
+	/** Returns true if this shape covers the whole of one face of the voxel */
+	public boolean isFaceFull(int face) {
+		return faceMasks[face]==FULL_FACE;
+	}
+	
+	/** Returns true if everything this shape has on {@code face} is covered up by the neighbouring voxel on that side */
+	public boolean isFaceHidden(int face, VoxelShape neighbour) {
+		return (faceMasks[face] & ~neighbour.faceMasks[face^1])==0;
+	}
 }
\ No newline at end of file
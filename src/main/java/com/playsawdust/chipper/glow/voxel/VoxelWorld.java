@@ -0,0 +1,313 @@
+/*
+ * Glow - GL Object Wrapper
+ * Copyright (C) 2020 the Chipper developers
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.playsawdust.chipper.glow.voxel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.playsawdust.chipper.glow.model.Material;
+import com.playsawdust.chipper.glow.model.io.VoxelLoader;
+
+/**
+ * An unbounded voxel space made of fixed-size cubic VoxelPatch chunks. Chunks are pulled in from a {@link ChunkLoader} the first time anything
+ * touches them, and the least-recently-used chunks are handed back to the loader and dropped whenever the estimated memory use of the loaded
+ * chunks goes over budget.
+ *
+ * <p>{@link #getShape(int, int, int)} and {@link #getMaterial(int, int, int)} line up with {@link VecFunction}, so {@code world::getShape}
+ * can be handed straight to the mesher or to Collision. The same world can be shared between threads. Voxel reads from chunks which are
+ * already loaded don't take the world's lock, so parallel meshing and raycasting don't queue up behind each other; everything else, including
+ * reads which have to load a chunk, is synchronized. As with a VoxelPatch, don't edit voxels while other threads are reading them.
+ */
+public class VoxelWorld {
+	/** Rough heap cost of a map entry and a chunk's bookkeeping, on top of its voxel storage */
+	private static final long CHUNK_OVERHEAD = 256;
+	
+	private final int chunkSize;
+	private final ChunkLoader loader;
+	private long memoryBudget;
+	private long memoryUsed = 0;
+	
+	/** Loaded chunks in least-recently-used order. A null chunk means the loader had nothing for that location. */
+	private final LinkedHashMap<Long, Slot> chunks = new LinkedHashMap<>(64, 0.75f, true);
+	/** The same slots as {@link #chunks}, for voxel reads which don't take the lock. Only changed while holding it. */
+	private final ConcurrentHashMap<Long, Slot> readable = new ConcurrentHashMap<>();
+	/** The last chunk looked up, so runs of lookups inside one chunk skip the map */
+	private long lastKey = Long.MIN_VALUE;
+	private Slot lastSlot = null;
+	
+	/**
+	 * @param chunkSize the edge length of each chunk, in voxels
+	 * @param loader supplies chunks as they're needed, and receives them back when they're evicted
+	 * @param memoryBudget the approximate number of bytes of chunk data to keep loaded before evicting
+	 */
+	public VoxelWorld(int chunkSize, ChunkLoader loader, long memoryBudget) {
+		if (chunkSize<=0) throw new IllegalArgumentException("Chunk size must be at least 1");
+		this.chunkSize = chunkSize;
+		this.loader = loader;
+		this.memoryBudget = memoryBudget;
+	}
+	
+	public int getChunkSize() { return chunkSize; }
+	
+	public synchronized long getMemoryBudget() { return memoryBudget; }
+	public synchronized long getMemoryUsed() { return memoryUsed; }
+	public synchronized int getLoadedChunkCount() { return chunks.size(); }
+	
+	public synchronized void setMemoryBudget(long budget) {
+		this.memoryBudget = budget;
+		evict();
+	}
+	
+	public VoxelShape getShape(int x, int y, int z) {
+		MeshableVoxel voxel = getVoxel(x, y, z);
+		if (voxel==null) return VoxelShape.EMPTY;
+		return voxel.getShape();
+	}
+	
+	public Material getMaterial(int x, int y, int z) {
+		MeshableVoxel voxel = getVoxel(x, y, z);
+		if (voxel==null) return Material.BLANK;
+		return voxel.getMaterial();
+	}
+	
+	/**
+	 * Gets a voxel. If its chunk is already loaded, this doesn't take the world's lock or re-measure the chunk; the chunk is only marked as
+	 * used, and moves to the back of the eviction order the next time the world is over budget.
+	 */
+	public @Nullable MeshableVoxel getVoxel(int x, int y, int z) {
+		int chunkX = Math.floorDiv(x, chunkSize);
+		int chunkY = Math.floorDiv(y, chunkSize);
+		int chunkZ = Math.floorDiv(z, chunkSize);
+		Slot slot = readable.get(chunkKey(chunkX, chunkY, chunkZ));
+		if (slot==null) {
+			slot = loadSlot(chunkX, chunkY, chunkZ);
+		} else if (!slot.used) {
+			slot.used = true;
+		}
+		VoxelPatch chunk = slot.chunk;
+		if (chunk==null) return null;
+		return chunk.getVoxel(x, y, z);
+	}
+	
+	/** Sets a voxel, loading its chunk or creating an empty one if the loader has nothing there */
+	public synchronized void setVoxel(int x, int y, int z, MeshableVoxel voxel) {
+		int chunkX = Math.floorDiv(x, chunkSize);
+		int chunkY = Math.floorDiv(y, chunkSize);
+		int chunkZ = Math.floorDiv(z, chunkSize);
+		VoxelPatch chunk = getChunk(chunkX, chunkY, chunkZ);
+		if (chunk==null) {
+			chunk = new VoxelPatch(chunkSize, chunkSize, chunkSize);
+			chunk.setOffset(chunkX*chunkSize, chunkY*chunkSize, chunkZ*chunkSize);
+			chunk.getPalette().add(VoxelLoader.VOXEL_EMPTY);
+			putChunk(chunkX, chunkY, chunkZ, chunk);
+		}
+		
+		chunk.setVoxel(x, y, z, voxel, true);
+		recharge(lastSlot);
+		evict();
+	}
+	
+	/**
+	 * Gets the chunk at the given chunk coordinates, loading it if needed. Chunk coordinates are voxel coordinates divided by the chunk size,
+	 * rounded down. Returns null if the loader has nothing at that location.
+	 * 
+	 * <p>Chunks can be edited directly, but finish before the next lookup: any lookup may evict the chunk, and edits made after it's been
+	 * handed back to the loader are lost. A chunk's memory use is re-measured every time it's looked up, so growth from direct edits counts
+	 * against the budget.
+	 */
+	public synchronized @Nullable VoxelPatch getChunk(int chunkX, int chunkY, int chunkZ) {
+		return getSlot(chunkX, chunkY, chunkZ).chunk;
+	}
+	
+	/**
+	 * Gets the six chunks face-adjacent to a chunk, loading them if needed, in the order VoxelMesher.meshChunk expects. The chunk itself and
+	 * all six neighbours are kept loaded until every one has been fetched, so nothing in the result has already been evicted when it's
+	 * returned, even if the memory budget is too small to hold all seven. The world may be over budget until the next lookup.
+	 */
+	public synchronized @Nullable VoxelPatch[] getNeighbours(int chunkX, int chunkY, int chunkZ) {
+		int[][] offsets = { {0,0,0}, {-1,0,0}, {1,0,0}, {0,-1,0}, {0,1,0}, {0,0,-1}, {0,0,1} };
+		Slot[] pinned = new Slot[offsets.length];
+		VoxelPatch[] result = new VoxelPatch[offsets.length-1];
+		try {
+			for(int i=0; i<offsets.length; i++) {
+				Slot slot = getSlot(chunkX+offsets[i][0], chunkY+offsets[i][1], chunkZ+offsets[i][2]);
+				slot.pins++;
+				pinned[i] = slot;
+				if (i>0) result[i-1] = slot.chunk;
+			}
+		} finally {
+			for(Slot slot : pinned) {
+				if (slot!=null) slot.pins--;
+			}
+		}
+		return result;
+	}
+	
+	/** Replaces the chunk at the given chunk coordinates, handing any chunk that was there back to the loader */
+	public synchronized void putChunk(int chunkX, int chunkY, int chunkZ, @Nullable VoxelPatch chunk) {
+		long key = chunkKey(chunkX, chunkY, chunkZ);
+		Slot old = chunks.remove(key);
+		if (old!=null) unload(key, old);
+		if (chunk!=null) chunk.setOffset(chunkX*chunkSize, chunkY*chunkSize, chunkZ*chunkSize);
+		Slot slot = new Slot(chunk);
+		chunks.put(key, slot);
+		readable.put(key, slot);
+		recharge(slot);
+		lastKey = key;
+		lastSlot = slot;
+		evict();
+	}
+	
+	/** Returns true if the chunk is currently in memory, without loading it or touching its place in the eviction order */
+	public synchronized boolean isLoaded(int chunkX, int chunkY, int chunkZ) {
+		return chunks.containsKey(chunkKey(chunkX, chunkY, chunkZ));
+	}
+	
+	/** Hands every loaded chunk back to the loader and drops it */
+	public synchronized void unloadAll() {
+		for(Map.Entry<Long, Slot> entry : chunks.entrySet()) {
+			VoxelPatch chunk = entry.getValue().chunk;
+			if (chunk!=null) loader.unload(chunkX(entry.getKey()), chunkY(entry.getKey()), chunkZ(entry.getKey()), chunk);
+		}
+		chunks.clear();
+		readable.clear();
+		memoryUsed = 0;
+		lastKey = Long.MIN_VALUE;
+		lastSlot = null;
+	}
+	
+	private synchronized Slot loadSlot(int chunkX, int chunkY, int chunkZ) {
+		return getSlot(chunkX, chunkY, chunkZ);
+	}
+	
+	private Slot getSlot(int chunkX, int chunkY, int chunkZ) {
+		long key = chunkKey(chunkX, chunkY, chunkZ);
+		if (key==lastKey) {
+			recharge(lastSlot);
+			return lastSlot;
+		}
+		
+		Slot slot = chunks.get(key);
+		if (slot==null) {
+			VoxelPatch chunk = loader.load(chunkX, chunkY, chunkZ, chunkSize);
+			if (chunk!=null) chunk.setOffset(chunkX*chunkSize, chunkY*chunkSize, chunkZ*chunkSize);
+			slot = new Slot(chunk);
+			chunks.put(key, slot);
+			readable.put(key, slot);
+			recharge(slot);
+			lastKey = key;
+			lastSlot = slot;
+			evict();
+			return slot;
+		}
+		
+		//The chunk may have grown since it was last charged, through direct edits or lazily-built masks
+		recharge(slot);
+		lastKey = key;
+		lastSlot = slot;
+		return slot;
+	}
+	
+	/** Re-measures a slot's chunk and moves the difference from what it was last charged into memoryUsed */
+	private void recharge(Slot slot) {
+		long estimate = estimate(slot.chunk);
+		memoryUsed += estimate - slot.charged;
+		slot.charged = estimate;
+	}
+	
+	/**
+	 * Drops least-recently-used chunks until we're back under budget. The most recently used chunk and pinned chunks are never evicted. Chunks
+	 * read without the lock since the last time we were over budget count as used just now, and are re-measured.
+	 */
+	private void evict() {
+		if (memoryUsed<=memoryBudget) return;
+		
+		ArrayList<Long> used = new ArrayList<>();
+		for(Map.Entry<Long, Slot> entry : chunks.entrySet()) {
+			if (entry.getValue().used) used.add(entry.getKey());
+		}
+		for(Long key : used) {
+			//A get moves the chunk to the back of the access order. Reads may have built masks, so it's re-measured as well.
+			Slot slot = chunks.get(key);
+			slot.used = false;
+			recharge(slot);
+		}
+		if (memoryUsed<=memoryBudget) return;
+		
+		Iterator<Map.Entry<Long, Slot>> iterator = chunks.entrySet().iterator();
+		while(memoryUsed>memoryBudget && chunks.size()>1 && iterator.hasNext()) {
+			Map.Entry<Long, Slot> eldest = iterator.next();
+			long key = eldest.getKey();
+			if (key==lastKey || eldest.getValue().pins>0) continue;
+			iterator.remove();
+			readable.remove(key);
+			unload(key, eldest.getValue());
+		}
+	}
+	
+	/** Takes back exactly what the slot was charged, so memoryUsed can't drift no matter how the chunk changed while it was loaded */
+	private void unload(long key, Slot slot) {
+		memoryUsed -= slot.charged;
+		slot.charged = 0;
+		if (key==lastKey) {
+			lastKey = Long.MIN_VALUE;
+			lastSlot = null;
+		}
+		if (slot.chunk!=null) loader.unload(chunkX(key), chunkY(key), chunkZ(key), slot.chunk);
+	}
+	
+	private static long estimate(@Nullable VoxelPatch chunk) {
+		if (chunk==null) return CHUNK_OVERHEAD;
+		return CHUNK_OVERHEAD + chunk.estimateMemoryUsage();
+	}
+	
+	/** A loaded chunk, along with the memory it's currently counted as using */
+	private static class Slot {
+		private final @Nullable VoxelPatch chunk;
+		private long charged = 0;
+		/** While above zero, the chunk can't be evicted */
+		private int pins = 0;
+		/** Set by reads which skip the lock, since they can't move the chunk to the back of the eviction order themselves */
+		private volatile boolean used = false;
+		
+		public Slot(@Nullable VoxelPatch chunk) {
+			this.chunk = chunk;
+		}
+	}
+	
+	/**
+	 * Packs three 21-bit signed chunk coordinates into one long, which covers a million chunks in every direction. Anything else keyed by chunk
+	 * coordinates should use this too, so keys can be passed between them.
+	 */
+	public static long chunkKey(int chunkX, int chunkY, int chunkZ) {
+		return ((chunkX & 0x1FFFFFL) << 42) | ((chunkY & 0x1FFFFFL) << 21) | (chunkZ & 0x1FFFFFL);
+	}
+	
+	public static int chunkX(long key) { return (int) (key << 1 >> 43); }
+	public static int chunkY(long key) { return (int) (key << 22 >> 43); }
+	public static int chunkZ(long key) { return (int) (key << 43 >> 43); }
+	
+	/** Supplies chunks to a VoxelWorld as they're needed, and takes them back when they're evicted */
+	public interface ChunkLoader {
+		/**
+		 * Loads a chunk. The world will set the chunk's offset, so loaders can build every chunk at the origin.
+		 * @return the chunk, sized chunkSize on every side, or null if there's nothing there. Null results are remembered until evicted.
+		 */
+		public @Nullable VoxelPatch load(int chunkX, int chunkY, int chunkZ, int chunkSize);
+		
+		/** Called when a chunk is evicted or replaced. Loaders which persist edits should save the chunk here. */
+		public default void unload(int chunkX, int chunkY, int chunkZ, VoxelPatch chunk) {}
+	}
+}